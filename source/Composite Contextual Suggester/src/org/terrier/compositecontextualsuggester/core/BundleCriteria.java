@@ -0,0 +1,114 @@
+package org.terrier.compositecontextualsuggester.core;
+
+/**
+ * This class stores the values of the criteria used to score a bundle of
+ * venues, i.e. its overall popularity (opop), its topical coherence (tcoh)
+ * and its estimated appreciation (eapp). These values do not depend on the
+ * weights given to each criterion, which enables to compute the score of the
+ * bundle for any combination of weights without computing the criteria
+ * again.
+ * The score of a bundle is the weighted geometric mean of its criteria. It is
+ * computed in log space, as the weighted sum of the logarithms of the
+ * criteria divided by the total weight: the logarithms are computed once
+ * when the criteria are stored, and the exponential is only taken when the
+ * score itself is requested. Bundles are ranked by comparing the logarithms
+ * of their scores.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class BundleCriteria {
+
+	private double opop;
+	private double tcoh;
+	private double eapp;
+
+	// logOpop, logTcoh and logEapp are the logarithms of opop, tcoh and eapp.
+	private double logOpop;
+	private double logTcoh;
+	private double logEapp;
+
+	public BundleCriteria(double opop, double tcoh, double eapp) {
+		this.opop = opop;
+		this.tcoh = tcoh;
+		this.eapp = eapp;
+
+		// The logarithm of a criterion equal to 0 is negative infinity, and
+		// the logarithm of a criterion that is not a number (e.g. the eapp of
+		// a venue that is not similar to any rated venue) is not a number.
+		logOpop = Math.log(opop);
+		logTcoh = Math.log(tcoh);
+		logEapp = Math.log(eapp);
+	}
+
+	public double getOpop() {
+		return opop;
+	}
+
+	public double getTcoh() {
+		return tcoh;
+	}
+
+	public double getEapp() {
+		return eapp;
+	}
+
+	/**
+	 * This method computes the logarithm of the score of the bundle from its
+	 * criteria. It is the weighted sum of the logarithms of the criteria
+	 * divided by the total weight. A criterion which weight is 0 does not
+	 * contribute to the score, even if it is 0 or not a number.
+	 *
+	 * @param cOpop the weight of the overall popularity (opop)
+	 * @param cTcoh the weight of the topical coherence (tcoh)
+	 * @param cEapp the weight of the estimated appreciation (eapp)
+	 *
+	 * @return the logarithm of the score of the bundle, negative infinity if
+	 * the score is 0, and not a number if the score is not defined
+	 */
+	public double logScore(double cOpop, double cTcoh, double cEapp) {
+		return weightedLogSum(cOpop, cTcoh, cEapp)/(cOpop + cTcoh + cEapp);
+	}
+
+	/**
+	 * This method computes the score of the bundle from its criteria. The
+	 * score is the weighted geometric mean of the criteria; it is computed as
+	 * the exponential of the weighted mean of their logarithms.
+	 *
+	 * @param cOpop the weight of the overall popularity (opop)
+	 * @param cTcoh the weight of the topical coherence (tcoh)
+	 * @param cEapp the weight of the estimated appreciation (eapp)
+	 *
+	 * @return the score of the bundle
+	 */
+	public double score(double cOpop, double cTcoh, double cEapp) {
+		return Math.exp(logScore(cOpop, cTcoh, cEapp));
+	}
+
+	/**
+	 * This method computes the weighted sum of the logarithms of the
+	 * criteria, ignoring the criteria which weight is 0.
+	 *
+	 * @param cOpop the weight of the overall popularity (opop)
+	 * @param cTcoh the weight of the topical coherence (tcoh)
+	 * @param cEapp the weight of the estimated appreciation (eapp)
+	 *
+	 * @return the weighted sum of the logarithms of the criteria
+	 */
+	private double weightedLogSum(double cOpop, double cTcoh, double cEapp) {
+		double weightedLogSum = 0;
+
+		if (cOpop != 0) {
+			weightedLogSum += cOpop*logOpop;
+		}
+		if (cTcoh != 0) {
+			weightedLogSum += cTcoh*logTcoh;
+		}
+		if (cEapp != 0) {
+			weightedLogSum += cEapp*logEapp;
+		}
+
+		return weightedLogSum;
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import org.terrier.compositecontextualsuggester.util.Bundle;
+import org.terrier.compositecontextualsuggester.util.Venue;
+
+/**
+ * This interface is implemented by the classes that receive the bundles
+ * chosen by a ContextualBundleBuilder as soon as their rank is final (see
+ * ContextualBundleBuilder.setBundleListener), e.g. to display the best
+ * bundles before the other bundles have been generated.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public interface BundleListener {
+
+	/**
+	 * This method is called once for each chosen bundle, from the bundle with
+	 * the best score to the bundle with the worst score, as soon as no
+	 * bundle that remains to be generated can have a better score.
+	 *
+	 * @param rank the rank of the bundle, starting from 1
+	 * @param bundle the bundle
+	 * @param score the score of the bundle
+	 */
+	void bundleRanked(int rank, Bundle<Venue> bundle, double score);
+
+}
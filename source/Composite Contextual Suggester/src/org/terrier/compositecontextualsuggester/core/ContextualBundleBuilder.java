@@ -8,9 +8,14 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
 
 import org.terrier.compositecontextualsuggester.util.Bundle;
 import org.terrier.compositecontextualsuggester.util.Category;
+import org.terrier.compositecontextualsuggester.util.CategoryDistanceCache;
+import org.terrier.compositecontextualsuggester.util.RatingSnapshot;
+import org.terrier.compositecontextualsuggester.util.SpatialGrid;
 import org.terrier.compositecontextualsuggester.util.User;
 import org.terrier.compositecontextualsuggester.util.Venue;
 
@@ -31,19 +36,60 @@ import org.terrier.compositecontextualsuggester.util.Venue;
  * ones generated with bobo by calling the method chooseBundles. It creates a
  * list chosenBundles of venue bundles ordered from the bundle with the best
  * score to the bundle with the worst score.
+ * Optionally, a time budget and/or a work budget can be set before executing
+ * bobo. When the budget runs out, bobo stops generating bundles and the
+ * bundles chosen by chooseBundles are the best ones among the bundles that
+ * have been generated so far. The bundle of the first pivot is generated
+ * whatever the budget, so that at least one bundle is chosen. Whether bobo
+ * has been truncated can be checked by calling the method isTruncated.
+ * bobo can also be executed in a pruning mode, in which it keeps track of the
+ * best scores of the bundles generated so far and stops as soon as no bundle
+ * built around the remaining pivots can be chosen by chooseBundles. The
+ * bundles chosen afterwards are identical to the ones chosen after a complete
+ * execution of bobo.
+ * The criteria of each bundle (opop, tcoh and eapp) are computed once and
+ * kept, so that the candidate bundles can be ranked again for other weights
+ * of the criteria by calling the method rerankBundles, without executing
+ * bobo again.
+ * Optionally, a maximum bundle radius can be set before executing bobo, so
+ * that the bundles are walkable: the venues added to a bundle are then
+ * chosen among the venues located within this radius of the pivot, which
+ * are found with a spatial grid built on the local venues (see
+ * SpatialGrid).
+ * Optionally, a listener can be set before executing bobo, so that the
+ * chosen bundles are emitted one by one as soon as their rank is final (see
+ * BundleListener) rather than only when chooseBundles is done. In the
+ * pruning mode of bobo, the upper bound on the score of the bundles built
+ * around the remaining pivots shows that the best bundles generated so far
+ * cannot be outscored: they are emitted during bobo, often long before the
+ * other bundles have been generated. The other chosen bundles are emitted
+ * by chooseBundles.
  * 
  * @author Thibaut Thonet
  *
  */
 public class ContextualBundleBuilder {
 	
-	// C_OPOP, C_TCOH and C_EAPP are constants used to define the respective
-	// weight of overall popularity (opop), topical coherence (tcoh) and
-	// estimated appreciation (eapp) in the computation of the bundle score.
+	// C_OPOP, C_TCOH and C_EAPP are constants used to define the default
+	// respective weight of overall popularity (opop), topical coherence
+	// (tcoh) and estimated appreciation (eapp) in the computation of the
+	// bundle score.
 	private static double C_OPOP = 1.0;
 	private static double C_TCOH = 1.0;
 	private static double C_EAPP = 10.0;
 	
+	// cOpop, cTcoh and cEapp are the weights of opop, tcoh and eapp that are
+	// currently used in the computation of the bundle score.
+	private double cOpop = C_OPOP;
+	private double cTcoh = C_TCOH;
+	private double cEapp = C_EAPP;
+	
+	// PRUNING_TOLERANCE is the margin added to the logarithm of the upper
+	// bound of the score used in the pruning mode of bobo, so that rounding
+	// errors in the computation of the scores cannot lead to prune a chosen
+	// bundle.
+	private static final double PRUNING_TOLERANCE = 1e-12;
+	
 	// maxLikeNb corresponds to the maximum number of "likes" a Foursquare
 	// venue has been given by users, for all the venues contained in
 	// localVenues.
@@ -51,44 +97,195 @@ public class ContextualBundleBuilder {
 	
 	// user is the user for whom the bundles of venues are to be suggested.
 	private User user;
+	// ratingSnapshot is the snapshot of the ratings of user used by the
+	// builder; it is taken when the ratings are first needed, unless it is
+	// set with setRatingSnapshot.
+	private RatingSnapshot ratingSnapshot;
 	
 	// ratedVenues contains the venues that the user has rated.
 	private Map<String, Venue> ratedVenues;
+	// userRatedVenues contains the venues rated by user, aligned with
+	// userRatings which contains the corresponding ratings; they are
+	// resolved from ratingSnapshot and from ratedVenues when they are first
+	// needed.
+	private Venue[] userRatedVenues;
+	private double[] userRatings;
+	// relevantVenueIndex maps each category id with the venues rated by user
+	// that have this category and got a good rating, and relevantVenueEapps
+	// gives the eapp of these venues (see buildRelevantVenueIndex).
+	private Map<String, List<Integer>> relevantVenueIndex;
+	private double[] relevantVenueEapps;
+	// similarRelevantVenueCache maps the signature of a set of categories
+	// with the similar relevant venues of the venues having these categories.
+	private Map<String, List<Venue>> similarRelevantVenueCache = new HashMap<String, List<Venue>>();
 	// localVenues ccontains the venues located in a given context (i.e. city).
 	private Map<String, Venue> localVenues;
 	// categories contains the Foursquare categories.
 	private Map<String, Category> categories;
+	// categoryDistances caches the distances between the categories; it can
+	// be shared between several builders.
+	private CategoryDistanceCache categoryDistances;
+	// eappTable contains the estimated appreciations (eapp) computed for user
+	// (see EappTable); it can be shared between several builders.
+	private EappTable eappTable;
 	
 	// candidateBundles contains the bundles generated after bobo.
-	private Collection<Bundle<Venue>> candidateBundles;
+	private List<Bundle<Venue>> candidateBundles;
 	// chosenBundles contains the bundles chosen in chooseBundles, and that
 	// are ordered from the bundle with the best score to the bundle with the
 	// worst score.
 	private List<Bundle<Venue>> chosenBundles;
+	// bundleCriteria maps each bundle that has been scored with the values of
+	// its criteria (opop, tcoh and eapp).
+	private Map<Bundle<Venue>, BundleCriteria> bundleCriteria;
+	
+	// bundleListener receives the chosen bundles as soon as their rank is
+	// final; it can be null.
+	private BundleListener bundleListener;
+	// unrankedBundleIndices contains the indices in candidateBundles of the
+	// bundles generated by bobo that have not been emitted yet, the head of
+	// the queue being the best of them. rankedBundleNb is the number of
+	// bundles emitted so far, and maxRankedBundleNb the number of bundles
+	// that can be emitted during bobo.
+	private PriorityQueue<Integer> unrankedBundleIndices;
+	private int rankedBundleNb;
+	private int maxRankedBundleNb;
+	
+	// timeBudget is the maximum time (in milliseconds) bobo is allowed to
+	// spend generating bundles; 0 means no time limit.
+	private long timeBudget;
+	// workBudget is the maximum number of venues bobo is allowed to evaluate
+	// when picking the venues of the bundles; 0 means no work limit.
+	private long workBudget;
+	// boboDeadline is the time (as given by System.nanoTime) after which bobo
+	// stops generating bundles.
+	private long boboDeadline;
+	// evaluatedVenueNb is the number of venues evaluated by findMaxTsimVenue
+	// since the beginning of bobo.
+	private long evaluatedVenueNb;
+	// truncated indicates whether bobo stopped generating bundles because its
+	// budget ran out, and pickedBundleTruncated whether the last bundle built
+	// by pickBundle is incomplete because the budget ran out.
+	private boolean truncated;
+	private boolean pickedBundleTruncated;
+	// pruned indicates whether bobo stopped generating bundles because no
+	// bundle built around the remaining pivots could be chosen.
+	private boolean pruned;
+	
+	// maxBundleRadius is the maximum distance (in meters) between the pivot
+	// of a bundle and the other venues of the bundle; 0 means no limit.
+	private double maxBundleRadius;
+	// spatialGrid indexes the local venues when maxBundleRadius is set; it is
+	// built at the beginning of bobo.
+	private SpatialGrid<Venue> spatialGrid;
 	
 	public ContextualBundleBuilder() {
 		ratedVenues = new HashMap<String, Venue>();
 		localVenues = new HashMap<String, Venue>();
 		categories = new HashMap<String, Category>();
+		categoryDistances = new CategoryDistanceCache();
+		eappTable = new EappTable();
+		bundleCriteria = new HashMap<Bundle<Venue>, BundleCriteria>();
 	}
 	
 	public void setUser(User user) {
 		this.user = user;
+		// The estimated appreciations depend on the user.
+		ratingSnapshot = null;
+		eappTable = new EappTable();
+		userRatedVenues = null;
+		relevantVenueIndex = null;
+		similarRelevantVenueCache = new HashMap<String, List<Venue>>();
+	}
+	
+	/**
+	 * This method sets the snapshot of the ratings of user the bundles are
+	 * built from, e.g. so that the ratings are the ones the fingerprint of
+	 * which has been used to cache the result. It has to be set after the
+	 * user, and before the table of the eapps.
+	 * 
+	 * @param ratingSnapshot a snapshot of the ratings of user
+	 */
+	public void setRatingSnapshot(RatingSnapshot ratingSnapshot) {
+		this.ratingSnapshot = ratingSnapshot;
+		eappTable = new EappTable(ratingSnapshot.getFingerprint());
+		userRatedVenues = null;
+		relevantVenueIndex = null;
+		similarRelevantVenueCache = new HashMap<String, List<Venue>>();
 	}
 
 	public void setRatedVenues(Map<String, Venue> ratedVenues) {
 		this.ratedVenues = ratedVenues;
+		// The estimated appreciations depend on the rated venues.
+		eappTable = new EappTable();
+		userRatedVenues = null;
+		relevantVenueIndex = null;
+		similarRelevantVenueCache = new HashMap<String, List<Venue>>();
+	}
+	
+	public EappTable getEappTable() {
+		return eappTable;
+	}
+	
+	/**
+	 * This method sets the table of the estimated appreciations (eapp), e.g.
+	 * to reuse the eapps computed by another builder. The table must have
+	 * been computed for the current ratings and rated venues: it has to be
+	 * set after the user, the snapshot of its ratings and the rated venues.
+	 * 
+	 * @param eappTable a table of eapps for user
+	 */
+	public void setEappTable(EappTable eappTable) {
+		this.eappTable = eappTable;
+	}
+	
+	/**
+	 * This method sets the listener receiving the chosen bundles as soon as
+	 * their rank is final. The bundles can only be emitted during bobo if
+	 * bobo is given the number of bundles that will be chosen by
+	 * chooseBundles (i.e. in pruning mode); otherwise they are all emitted by
+	 * chooseBundles.
+	 * 
+	 * @param bundleListener a listener, or null to emit no bundle
+	 */
+	public void setBundleListener(BundleListener bundleListener) {
+		this.bundleListener = bundleListener;
 	}
 	
 	public void setLocalVenues(Map<String, Venue> localVenues) {
 		// Copy of localVenues to prevent the modification of the parameter.
 		this.localVenues = new HashMap<String, Venue>(localVenues);
+		// The spatial grid is built again for the new local venues.
+		spatialGrid = null;
 	}
 	
 	public void setCategories(Map<String, Category> categories) {
 		this.categories = categories;
 	}
 	
+	public void setCategoryDistanceCache(CategoryDistanceCache categoryDistances) {
+		this.categoryDistances = categoryDistances;
+	}
+	
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+	
+	public void setWorkBudget(long workBudget) {
+		this.workBudget = workBudget;
+	}
+	
+	public void setMaxBundleRadius(double maxBundleRadius) {
+		this.maxBundleRadius = maxBundleRadius;
+		spatialGrid = null;
+	}
+	
+	public void setScoreWeights(double cOpop, double cTcoh, double cEapp) {
+		this.cOpop = cOpop;
+		this.cTcoh = cTcoh;
+		this.cEapp = cEapp;
+	}
+	
 	/**
 	 * This method computes some overall statistics about the venues (e.g. the
 	 * maximum number of "likes" for a venue). These statistics are used to
@@ -146,12 +343,19 @@ public class ContextualBundleBuilder {
 	 * similarity of the parameter venue with the rated venues: it is assumed
 	 * that if two venues are topically similar and the user appreciates one of
 	 * them, then he is likely to appreciate as well the other venue.
+	 * The eapp of a venue is computed the first time it is requested and then
+	 * kept in eappTable until the user or the rated venues change.
 	 * 
 	 * @param venue a venue
 	 * 
 	 * @return the estimated appreciation (eapp) of the venue
 	 */
 	public double eapp(Venue venue) { // estimated appreciation of a venue given a user's relevance judgments.
+		Double cachedEapp = eappTable.getEapp(venue);
+		if (cachedEapp != null) {
+			return cachedEapp;
+		}
+		
 		double eapp = 0;
 		
 		// totalTsim is the sum of the topical similarity between venue and all
@@ -159,22 +363,92 @@ public class ContextualBundleBuilder {
 		// similarity is used as weight.
 		double totalTsim = 0;
 		
-		// venueRatings maps each rated venue Id with the rating user has
-		// given to this venue (the ratings have been rescaled from -1 to 4
-		// into -0.25 to 1.0).
-		Map<String, Double> venueRatings = user.getVenueRatings();
-		for (String ratedVenueId : venueRatings.keySet()) {
-			if (venueRatings.get(ratedVenueId) >= 0) {
+		// The ratings user has given to the rated venues have been rescaled
+		// from -1 to 4 into -0.25 to 1.0.
+		resolveUserRatings();
+		for (int i = 0; i < userRatings.length; i++) {
+			if (userRatings[i] >= 0) {
 				// The user was able to give a relevance judgment on this 
 				// venue.
-				eapp += venueRatings.get(ratedVenueId)*tsim(venue, ratedVenues.get(ratedVenueId));
-				totalTsim += tsim(venue, ratedVenues.get(ratedVenueId));
+				double ratedVenueTsim = tsim(venue, userRatedVenues[i]);
+				eapp += userRatings[i]*ratedVenueTsim;
+				totalTsim += ratedVenueTsim;
 			}
 		}
 		
-		eapp /= totalTsim;
+		// The eapp of venue is not defined if venue is not similar to any
+		// venue the user was able to rate (i.e. totalTsim is 0).
+		return eappTable.put(venue, eapp, totalTsim);
+	}
+	
+	/**
+	 * This method updates a table of estimated appreciations (eapp) after a
+	 * rating of user has been added, changed or removed. The numerator and
+	 * the denominator of the eapp of each venue of the table change by the
+	 * term of the rated venue, which requires a single computation of tsim
+	 * per venue instead of one per rated venue. The derived data of the
+	 * builder that depend on the ratings are computed again when they are
+	 * next needed.
+	 * 
+	 * @param eappTable the table to update, computed for the previous ratings
+	 * of user
+	 * @param ratedVenue the rated venue
+	 * @param previousRating the previous rating of the venue, or null if the
+	 * venue was not rated
+	 * @param rating the new rating of the venue, or null if the rating has
+	 * been removed
+	 */
+	public void updateRating(EappTable eappTable, Venue ratedVenue, Double previousRating, Double rating) {
+		// ratingTerm and weightTerm are the changes of the rating and of the
+		// weight of ratedVenue in the eapps. Only the ratings greater than or
+		// equal to 0 (i.e. the venues the user was able to rate) are counted.
+		double ratingTerm = 0;
+		double weightTerm = 0;
+		if (previousRating != null && previousRating >= 0) {
+			ratingTerm -= previousRating;
+			weightTerm--;
+		}
+		if (rating != null && rating >= 0) {
+			ratingTerm += rating;
+			weightTerm++;
+		}
 		
-		return eapp;
+		if (ratedVenue != null && (ratingTerm != 0 || weightTerm != 0)) {
+			for (Venue venue : eappTable.getVenues()) {
+				double ratedVenueTsim = tsim(venue, ratedVenue);
+				eappTable.addTerm(venue, ratingTerm*ratedVenueTsim, weightTerm*ratedVenueTsim);
+			}
+		}
+		
+		ratingSnapshot = null;
+		userRatedVenues = null;
+		relevantVenueIndex = null;
+		similarRelevantVenueCache = new HashMap<String, List<Venue>>();
+	}
+	
+	/**
+	 * This method resolves the venues rated by user from the compact form of
+	 * its ratings, so that the scoring loops iterate on arrays rather than on
+	 * the map of the ratings. The venues are resolved once for each user and
+	 * set of rated venues. The compact form is read from a single snapshot of
+	 * the ratings, so that it stays consistent if the ratings of user change
+	 * while the bundles are built.
+	 */
+	private void resolveUserRatings() {
+		if (userRatedVenues == null) {
+			if (ratingSnapshot == null) {
+				ratingSnapshot = user.getRatingSnapshot();
+			}
+			String[] venueIds = ratingSnapshot.getVenueIds();
+			int[] ratedVenueOrdinals = ratingSnapshot.getRatedVenueOrdinals();
+			
+			Venue[] resolvedVenues = new Venue[ratedVenueOrdinals.length];
+			for (int i = 0; i < ratedVenueOrdinals.length; i++) {
+				resolvedVenues[i] = ratedVenues.get(venueIds[ratedVenueOrdinals[i]]);
+			}
+			userRatings = ratingSnapshot.getRatings();
+			userRatedVenues = resolvedVenues;
+		}
 	}
 	
 	/**
@@ -233,7 +507,7 @@ public class ContextualBundleBuilder {
 				// The similarity between two categories is defined as 
 				// 1/(1 + distance) where distance is the number of edges
 				// separating these two categories in the category tree.
-				double similarity = (double) 1/(1 + Category.distance(category1, category2));
+				double similarity = (double) 1/(1 + categoryDistances.distance(category1, category2));
 				if (similarity > maxSimilarity) {
 					maxSimilarity = similarity;
 				}
@@ -267,6 +541,28 @@ public class ContextualBundleBuilder {
 		return tcoh;
 	}
 	
+	/**
+	 * This method gives the criteria of a bundle of venues, i.e. its overall
+	 * popularity (opop), its topical coherence (tcoh) and its estimated
+	 * appreciation (eapp). The criteria are computed the first time the
+	 * method is called for the bundle and then kept in bundleCriteria.
+	 * 
+	 * @param bundle a bundle of venues
+	 * 
+	 * @return the criteria of the bundle
+	 */
+	public BundleCriteria criteria(Bundle<Venue> bundle) {
+		BundleCriteria criteria = bundleCriteria.get(bundle);
+		
+		if (criteria == null) {
+			// First time the bundle is scored.
+			criteria = new BundleCriteria(opop(bundle), tcoh(bundle), eapp(bundle));
+			bundleCriteria.put(bundle, criteria);
+		}
+		
+		return criteria;
+	}
+	
 	/**
 	 * This method computes the score of a bundle of venues. It is based on a
 	 * combination of the overall popularity (opop), the topical coherence
@@ -278,11 +574,21 @@ public class ContextualBundleBuilder {
 	 * @return the score of the bundle
 	 */
 	public double score(Bundle<Venue> bundle) {
-		return Math.pow(
-				Math.pow(opop(bundle), C_OPOP)*
-				Math.pow(tcoh(bundle), C_TCOH)*
-				Math.pow(eapp(bundle), C_EAPP), 
-				1/(C_OPOP + C_TCOH + C_EAPP));
+		return criteria(bundle).score(cOpop, cTcoh, cEapp);
+	}
+	
+	/**
+	 * This method computes the logarithm of the score of a bundle of venues.
+	 * It is used to rank the bundles without computing their scores.
+	 * 
+	 * @param bundle a bundle of venues
+	 * 
+	 * @return the logarithm of the score of the bundle, negative infinity if
+	 * the score is 0 or negative, and not a number if the score is not
+	 * defined
+	 */
+	public double logScore(Bundle<Venue> bundle) {
+		return criteria(bundle).logScore(cOpop, cTcoh, cEapp);
 	}
 	
 	/**
@@ -293,13 +599,70 @@ public class ContextualBundleBuilder {
 	 * pivot is used to build a bundle, this pivot and the venues of this
 	 * bundle are tagged so that they will not be processed again. At the end
 	 * of the processing, the collection of bundles candidateBundles is built.
+	 * If a time or work budget has been set, the processing stops as soon as
+	 * the budget runs out, and candidateBundles only contains the bundles
+	 * built around the most popular pivots; bobo is then flagged as
+	 * truncated. The bundle of the first pivot is always built, even if the
+	 * budget runs out before or while it is built.
 	 * 
 	 * @param maxVenuesPerBundleNb the maximum number of venues a bundle should
 	 * contain
 	 * @param bundleNb the number of bundles to generate
 	 */
 	public void bobo(int maxVenuesPerBundleNb, int bundleNb) {
+		bobo(maxVenuesPerBundleNb, bundleNb, 0);
+	}
+	
+	/**
+	 * This method generates a definite amount of bundles of venues, as the
+	 * method bobo without pruning, but stops generating bundles as soon as it
+	 * is certain that no bundle built around the remaining pivots will be
+	 * chosen by chooseBundles. The pivots being processed by decreasing opop,
+	 * the opop of any bundle built around the current pivot or a following
+	 * one cannot exceed the opop of the current pivot; tcoh and eapp being
+	 * lower than or equal to 1, this gives an upper bound on the score of
+	 * such bundles. When this upper bound falls below the score of the
+	 * returnedBundleNb-th best bundle generated so far, the processing stops.
+	 * 
+	 * @param maxVenuesPerBundleNb the maximum number of venues a bundle should
+	 * contain
+	 * @param bundleNb the number of bundles to generate
+	 * @param returnedBundleNb the number of bundles that will be chosen by
+	 * chooseBundles; 0 disables the pruning
+	 */
+	public void bobo(int maxVenuesPerBundleNb, int bundleNb, int returnedBundleNb) {
 		candidateBundles = new ArrayList<Bundle<Venue>>();
+		bundleCriteria = new HashMap<Bundle<Venue>, BundleCriteria>();
+		
+		// The budget starts running at the beginning of bobo.
+		boboDeadline = System.nanoTime() + timeBudget*1000000;
+		evaluatedVenueNb = 0;
+		truncated = false;
+		pruned = false;
+		
+		// The bundles are emitted during bobo within the returnedBundleNb
+		// first ranks. As in findMaxScoreBundle, a bundle is better than
+		// another one with the same score if it comes first in
+		// candidateBundles.
+		rankedBundleNb = 0;
+		maxRankedBundleNb = bundleListener == null ? 0 : returnedBundleNb;
+		unrankedBundleIndices = new PriorityQueue<Integer>(Math.max(1, returnedBundleNb), new Comparator<Integer>() {
+			public int compare(Integer index1, Integer index2) {
+				int comparison = -Double.compare(logScore(candidateBundles.get(index1)), logScore(candidateBundles.get(index2)));
+				return comparison != 0 ? comparison : index1 - index2;
+			}
+		});
+		
+		if (maxBundleRadius > 0 && spatialGrid == null) {
+			// The local venues are indexed so that the venues located within
+			// the radius of each pivot can be found quickly.
+			spatialGrid = SpatialGrid.indexVenues(localVenues.values(), maxBundleRadius);
+		}
+		
+		// bestLogScores contains the logarithms of the returnedBundleNb best
+		// scores of the bundles generated so far, the head of the queue being
+		// the lowest of them.
+		PriorityQueue<Double> bestLogScores = new PriorityQueue<Double>();
 
 		// pivots is initialised with the local venues ordered by decreasing 
 		// opop.
@@ -320,29 +683,115 @@ public class ContextualBundleBuilder {
 
 		// Construction of candidateBundles by iterating on the pivots.
 		Iterator<Venue> pivotIterator = pivots.iterator();
-		while (pivotIterator.hasNext() && candidateBundles.size() < bundleNb) {
+		while (pivotIterator.hasNext() && candidateBundles.size() < bundleNb && !truncated && !pruned) {
 			Venue pivot = pivotIterator.next();
 			String pivotId = pivot.getId();
 
-			if (processPivot.get(pivotId)) {
+			if (processPivot.get(pivotId) && !candidateBundles.isEmpty() && isBudgetExhausted()) {
+				// The budget ran out: the bundles generated so far are kept
+				// and the remaining pivots are not processed.
+				truncated = true;
+			} else if (processPivot.get(pivotId) && returnedBundleNb > 0 && bestLogScores.size() == returnedBundleNb &&
+					logScoreUpperBound(pivot) + PRUNING_TOLERANCE < bestLogScores.peek()) {
+				// No bundle built around this pivot or the following ones can
+				// be among the returnedBundleNb best bundles.
+				pruned = true;
+			} else if (processPivot.get(pivotId)) {
 				// The current pivot has to be processed.
+				
+				// The bundles that no bundle built around this pivot or the
+				// following ones can outscore are emitted.
+				emitRankedBundles(logScoreUpperBound(pivot));
 
 				// A bundle is created around pivot using the other venues.
 				localVenues.remove(pivotId);
-				Bundle<Venue> bundle = pickBundle(pivot, maxVenuesPerBundleNb);
+				Bundle<Venue> bundle = pickBundle(pivot, maxVenuesPerBundleNb, !candidateBundles.isEmpty());
 				
-				// The venues chosen for the bundle are removed from venues and
-				// will not be processed as future pivots.
-				List<Venue> bundleVenues = bundle.getItems();
-				for (Venue bundleVenue : bundleVenues) {
-					localVenues.remove(bundleVenue.getId());
-					processPivot.put(bundleVenue.getId(), false);
+				if (pickedBundleTruncated) {
+					// The budget ran out while the bundle was being built:
+					// the incomplete bundle is discarded.
+					truncated = true;
+				} else {
+					// The venues chosen for the bundle are removed from venues
+					// and will not be processed as future pivots.
+					List<Venue> bundleVenues = bundle.getItems();
+					for (Venue bundleVenue : bundleVenues) {
+						localVenues.remove(bundleVenue.getId());
+						processPivot.put(bundleVenue.getId(), false);
+					}
+	
+					// bundle is added to the candidate bundles.
+					candidateBundles.add(bundle);
+					
+					if (returnedBundleNb > 0) {
+						// The best scores are updated. A bundle which score is
+						// not a number is never chosen and is thus ignored.
+						double logScore = logScore(bundle);
+						if (!Double.isNaN(logScore)) {
+							bestLogScores.add(logScore);
+							if (bestLogScores.size() > returnedBundleNb) {
+								bestLogScores.poll();
+							}
+							if (maxRankedBundleNb > 0) {
+								unrankedBundleIndices.add(candidateBundles.size() - 1);
+							}
+						}
+					}
 				}
-
-				// bundle is added to the candidate bundles.
-				candidateBundles.add(bundle);
 			}
 		}
+		
+		// No bundle remains to be generated.
+		emitRankedBundles(Double.NEGATIVE_INFINITY);
+	}
+	
+	/**
+	 * This method emits to bundleListener the best bundles generated so far
+	 * which score is greater than an upper bound on the score of the bundles
+	 * that remain to be generated, from the best one to the worst one and
+	 * within the maxRankedBundleNb first ranks.
+	 * 
+	 * @param logScoreUpperBound the logarithm of the upper bound on the score
+	 * of the bundles that remain to be generated
+	 */
+	private void emitRankedBundles(double logScoreUpperBound) {
+		while (rankedBundleNb < maxRankedBundleNb && !unrankedBundleIndices.isEmpty() &&
+				logScoreUpperBound + PRUNING_TOLERANCE < logScore(candidateBundles.get(unrankedBundleIndices.peek()))) {
+			emitBundle(candidateBundles.get(unrankedBundleIndices.poll()));
+		}
+	}
+	
+	private void emitBundle(Bundle<Venue> bundle) {
+		rankedBundleNb++;
+		bundleListener.bundleRanked(rankedBundleNb, bundle, score(bundle));
+	}
+	
+	/**
+	 * This method computes the logarithm of an upper bound on the score of
+	 * any bundle built around a pivot from venues that are not more popular
+	 * than the pivot. Such a bundle cannot have a greater opop than the
+	 * pivot, and its tcoh and eapp cannot be greater than 1 (their logarithms
+	 * are thus lower than or equal to 0).
+	 * 
+	 * @param pivot a pivotal venue
+	 * 
+	 * @return the logarithm of an upper bound on the score of the bundles
+	 * built around pivot
+	 */
+	public double logScoreUpperBound(Venue pivot) {
+		return cOpop == 0 ? 0 : cOpop*Math.log(opop(pivot))/(cOpop + cTcoh + cEapp);
+	}
+	
+	/**
+	 * This method indicates whether the time budget or the work budget of
+	 * bobo has run out.
+	 * 
+	 * @return true if one of the budgets is set and has run out, false
+	 * otherwise
+	 */
+	public boolean isBudgetExhausted() {
+		return (timeBudget > 0 && System.nanoTime() - boboDeadline >= 0) ||
+				(workBudget > 0 && evaluatedVenueNb >= workBudget);
 	}
 	
 	/**
@@ -350,7 +799,10 @@ public class ContextualBundleBuilder {
 	 * the best combination of topical similarity (tsim) with the pivot and
 	 * estimated appreciation (eapp) are selected to be aggregated to the
 	 * pivot in order to form a cohesive bundle. Such best venues are found by
-	 * calling the method findMaxTsimVenue.
+	 * calling the method findMaxTsimVenue. When a maximum bundle radius is
+	 * set, only the venues located within this radius of the pivot are
+	 * considered. The budget of bobo does not apply to this method: the
+	 * bundle is always complete.
 	 * 
 	 * @param pivot a pivotal venue
 	 * @param maxVenuePerBundleNb the maximum number of venues a bundle should
@@ -359,22 +811,68 @@ public class ContextualBundleBuilder {
 	 * @return a cohesive bundle built around the pivotal venue
 	 */
 	public Bundle<Venue> pickBundle(Venue pivot, int maxVenuePerBundleNb) {
+		return pickBundle(pivot, maxVenuePerBundleNb, false);
+	}
+	
+	/**
+	 * This method builds a bundle around a pivotal venue, as the method
+	 * pickBundle, and indicates in pickedBundleTruncated whether the
+	 * construction stopped early because the budget of bobo ran out. Only
+	 * bobo enforces its budget.
+	 * 
+	 * @param pivot a pivotal venue
+	 * @param maxVenuePerBundleNb the maximum number of venues a bundle should
+	 * contain
+	 * @param budgetEnforced false if the bundle has to be completed even if
+	 * the budget of bobo runs out
+	 * 
+	 * @return a cohesive bundle built around the pivotal venue
+	 */
+	private Bundle<Venue> pickBundle(Venue pivot, int maxVenuePerBundleNb, boolean budgetEnforced) {
+		pickedBundleTruncated = false;
+		
 		// At the beginning, the bundle of venues contains only the pivot.
 		List<Venue> bundleVenues = new ArrayList<Venue>();
 		bundleVenues.add(pivot);
 		Bundle<Venue> bundle = new Bundle<Venue>(bundleVenues);
 		
-		// activeVenues is initialized as a copy of venues.
-		Map<String, Venue> activeVenues = new HashMap<String, Venue>(localVenues);
+		Map<String, Venue> activeVenues;
+		if (maxBundleRadius > 0) {
+			// activeVenues is initialized with the venues located within the
+			// radius of the pivot that have not been processed yet (none if
+			// the coordinates of the pivot are unknown).
+			activeVenues = new HashMap<String, Venue>();
+			if (pivot.hasCoordinates()) {
+				for (Venue venue : spatialGrid.getItemsWithin(pivot.getLat(), pivot.getLon(), maxBundleRadius)) {
+					if (localVenues.containsKey(venue.getId())) {
+						activeVenues.put(venue.getId(), venue);
+					}
+				}
+			}
+		} else {
+			// activeVenues is initialized as a copy of venues.
+			activeVenues = new HashMap<String, Venue>(localVenues);
+		}
 		
 		// Construction of bundle by finding the most topically similar venues
 		// to the pivot.
-		while (bundle.getItemNb() < maxVenuePerBundleNb && !activeVenues.isEmpty()) {
-			Venue maxTsimVenue = findMaxTsimVenue(pivot, activeVenues);
-			if (maxTsimVenue != null) {
-				// maxTsimVenue won't be processed again.
-				activeVenues.remove(maxTsimVenue.getId());
-				bundleVenues.add(maxTsimVenue);
+		// The construction stops early if the budget of bobo runs out.
+		boolean candidateVenueLeft = true;
+		while (bundle.getItemNb() < maxVenuePerBundleNb && !activeVenues.isEmpty() && candidateVenueLeft && !pickedBundleTruncated) {
+			if (budgetEnforced && isBudgetExhausted()) {
+				// The bundle is left incomplete.
+				pickedBundleTruncated = true;
+			} else {
+				Venue maxTsimVenue = findMaxTsimVenue(pivot, activeVenues);
+				if (maxTsimVenue != null) {
+					// maxTsimVenue won't be processed again.
+					activeVenues.remove(maxTsimVenue.getId());
+					bundleVenues.add(maxTsimVenue);
+				} else {
+					// The eapp of the remaining venues is not defined: they
+					// cannot be added to the bundle.
+					candidateVenueLeft = false;
+				}
 			}
 		}
 		
@@ -396,6 +894,8 @@ public class ContextualBundleBuilder {
 		double maxTsim = -1;
 		Venue maxTsimVenue = null;
 		
+		evaluatedVenueNb += activeVenues.size();
+		
 		for (Venue venue : activeVenues.values()) {
 			double tsim = (2*tsim(pivot, venue) + eapp(venue))/3;
 			
@@ -412,7 +912,8 @@ public class ContextualBundleBuilder {
 	 * This method is used to choose the best bundles from the ones that have
 	 * been generated in candidateBundles. The best bundles are the ones
 	 * maximizing their score. Such best bundles are found by calling the
-	 * method findMaxScoreBundle.
+	 * method findMaxScoreBundle. If a listener is set, the chosen bundles
+	 * that have not been emitted during bobo are emitted to it.
 	 * 
 	 * @param bundleNb the number of bundles to return to the user
 	 */
@@ -423,49 +924,133 @@ public class ContextualBundleBuilder {
 		chosenBundles = new ArrayList<Bundle<Venue>>();
 		
 		// Selection of the bundles.
-		while (chosenBundles.size() < bundleNb && !activeBundles.isEmpty()) {
+		boolean scoredBundleLeft = true;
+		while (chosenBundles.size() < bundleNb && !activeBundles.isEmpty() && scoredBundleLeft) {
 			Bundle<Venue> maxScoreBundle = findMaxScoreBundle(activeBundles);
 			if (maxScoreBundle != null) {
 				activeBundles.remove(maxScoreBundle);
 				chosenBundles.add(maxScoreBundle);
+			} else {
+				// The score of the remaining bundles is not defined: they
+				// cannot be chosen.
+				scoredBundleLeft = false;
+			}
+		}
+		
+		// The chosen bundles that have not been emitted during bobo are
+		// emitted.
+		if (bundleListener != null) {
+			while (rankedBundleNb < chosenBundles.size()) {
+				emitBundle(chosenBundles.get(rankedBundleNb));
 			}
 		}
 	}
 
 	/**
 	 * This method finds the bundle that has the best score in a given
-	 * collection of bundles.
+	 * collection of bundles. The bundles are compared using the logarithms of
+	 * their scores; the bundles which score is not defined are ignored.
 	 * 
 	 * @param activeBundles the bundles in which the best bundle has to be
 	 * found
 	 * 
-	 * @return the bundle that has the best score in activeBundles
+	 * @return the bundle that has the best score in activeBundles, or null if
+	 * no bundle of activeBundles has a defined score
 	 */
 	public Bundle<Venue> findMaxScoreBundle(Collection<Bundle<Venue>> activeBundles) {
-		double maxScore = -1;
+		double maxLogScore = Double.NEGATIVE_INFINITY;
 		Bundle<Venue> maxScoreBundle = null;
 		
 		for (Bundle<Venue> bundle : activeBundles) {
-			double score = score(bundle);
-			if (score > maxScore) {
+			double logScore = logScore(bundle);
+			if (!Double.isNaN(logScore) && (maxScoreBundle == null || logScore > maxLogScore)) {
 				maxScoreBundle = bundle;
-				maxScore = score;
+				maxLogScore = logScore;
 			}
 		}
 		
 		return maxScoreBundle;
 	}
 
+	/**
+	 * This method chooses again the best bundles from the ones that have been
+	 * generated in candidateBundles, using new weights for the criteria.
+	 * The criteria of the candidate bundles are not computed again: only the
+	 * scores are, which makes the cost of the method linear in the number of
+	 * candidate bundles. The new weights are kept for the subsequent calls to
+	 * score, and the bundles are chosen in the same order as with
+	 * chooseBundles.
+	 * 
+	 * @param cOpop the new weight of the overall popularity (opop)
+	 * @param cTcoh the new weight of the topical coherence (tcoh)
+	 * @param cEapp the new weight of the estimated appreciation (eapp)
+	 * @param bundleNb the number of bundles to return to the user
+	 * 
+	 * @return the chosen bundles, ordered from the bundle with the best score
+	 * to the bundle with the worst score
+	 */
+	public List<Bundle<Venue>> rerankBundles(double cOpop, double cTcoh, double cEapp, int bundleNb) {
+		setScoreWeights(cOpop, cTcoh, cEapp);
+		
+		// activeBundles and logScores contain the candidate bundles and the
+		// logarithms of their score for the new weights.
+		final List<Bundle<Venue>> activeBundles = new ArrayList<Bundle<Venue>>(candidateBundles);
+		final double[] logScores = new double[activeBundles.size()];
+		for (int i = 0; i < logScores.length; i++) {
+			logScores[i] = logScore(activeBundles.get(i));
+		}
+		
+		// bestBundleIndices contains the indices of the bundleNb best bundles
+		// found so far, the head of the queue being the worst of them. As in
+		// findMaxScoreBundle, a bundle is better than another one with the
+		// same score if it comes first in candidateBundles.
+		PriorityQueue<Integer> bestBundleIndices = new PriorityQueue<Integer>(Math.max(1, bundleNb), new Comparator<Integer>() {
+			public int compare(Integer index1, Integer index2) {
+				int comparison = Double.compare(logScores[index1], logScores[index2]);
+				return comparison != 0 ? comparison : index2 - index1;
+			}
+		});
+		for (int i = 0; i < logScores.length && bundleNb > 0; i++) {
+			// A bundle which score is not defined is never chosen.
+			if (!Double.isNaN(logScores[i])) {
+				bestBundleIndices.add(i);
+				if (bestBundleIndices.size() > bundleNb) {
+					bestBundleIndices.poll();
+				}
+			}
+		}
+		
+		// The best bundles are polled from the worst to the best one.
+		chosenBundles = new ArrayList<Bundle<Venue>>();
+		while (!bestBundleIndices.isEmpty()) {
+			chosenBundles.add(activeBundles.get(bestBundleIndices.poll()));
+		}
+		Collections.reverse(chosenBundles);
+		
+		return chosenBundles;
+	}
+
 	public Collection<Bundle<Venue>> getChosenBundles() {
 		return chosenBundles;
 	}
 	
+	public boolean isTruncated() {
+		return truncated;
+	}
+	
+	public boolean isPruned() {
+		return pruned;
+	}
+	
 	/**
 	 * This method finds within the venues rated by the user which venues are
 	 * both similar to a given venue and have been given good ratings (i.e. 3
 	 * or 4 out of 4) by the user. It is used to inform the user that the
 	 * venues that are recommed to him are similar to other venues he liked 
 	 * when he rated the sample venues.
+	 * The similar relevant venues are found by merging the lists of the
+	 * categories of the venue in relevantVenueIndex, and are kept for each
+	 * set of categories.
 	 * 
 	 * @param venue a venue
 	 * 
@@ -474,34 +1059,114 @@ public class ContextualBundleBuilder {
 	 * ordered by decreasing estimated appreciation (eapp)
 	 */
 	public List<Venue> findSimilarRelevantVenues(Venue venue) {
-		List<Venue> similarRelevantVenues = new ArrayList<Venue>();
-		
-		// venueRatings maps each rated venue Id with the rating user has
-		// given to this venue (the ratings have been rescaled from -1 to 4
-		// into -0.25 to 1.0).
-		Map<String, Double> venueRatings = user.getVenueRatings();
-		for (String ratedVenueId : venueRatings.keySet()) {
-			Venue ratedVenue = ratedVenues.get(ratedVenueId);
-			if (tsim(venue, ratedVenue) == 1.0 && 
-					(venueRatings.get(ratedVenueId) == 0.75 || venueRatings.get(ratedVenueId) == 1.0)) {
-				// ratedVenue is both topically similar to venue (tsim = 1) and
-				// got a good rating (0.75/1.0 or 1.0/1.0). It is thus added to
-				// similarRelevantVenues.
-				similarRelevantVenues.add(ratedVenue);
+		// The similar relevant venues only depend on the categories of venue:
+		// they are computed once for each set of categories.
+		String categorySignature = new TreeSet<String>(venue.getCategories().keySet()).toString();
+		List<Venue> similarRelevantVenues = similarRelevantVenueCache.get(categorySignature);
+		
+		if (similarRelevantVenues == null) {
+			buildRelevantVenueIndex();
+			
+			// The lists of the relevant venues of the categories of venue are
+			// merged, each venue being kept once.
+			List<List<Integer>> relevantVenueLists = new ArrayList<List<Integer>>();
+			for (String categoryId : venue.getCategories().keySet()) {
+				List<Integer> relevantVenueList = relevantVenueIndex.get(categoryId);
+				if (relevantVenueList != null) {
+					relevantVenueLists.add(relevantVenueList);
+				}
+			}
+			int[] positions = new int[relevantVenueLists.size()];
+			
+			similarRelevantVenues = new ArrayList<Venue>();
+			for (;;) {
+				// nextIndex is the first relevant venue in the order of the
+				// lists among the heads of the lists.
+				int nextIndex = -1;
+				for (int j = 0; j < positions.length; j++) {
+					if (positions[j] < relevantVenueLists.get(j).size()) {
+						int index = relevantVenueLists.get(j).get(positions[j]);
+						if (nextIndex == -1 || compareRelevantVenues(index, nextIndex) < 0) {
+							nextIndex = index;
+						}
+					}
+				}
+				if (nextIndex == -1) {
+					break;
+				}
+				
+				for (int j = 0; j < positions.length; j++) {
+					if (positions[j] < relevantVenueLists.get(j).size() && relevantVenueLists.get(j).get(positions[j]) == nextIndex) {
+						positions[j]++;
+					}
+				}
+				similarRelevantVenues.add(userRatedVenues[nextIndex]);
 			}
+			similarRelevantVenueCache.put(categorySignature, similarRelevantVenues);
 		}
 		
-		// similarRelevantVenues is ordered by decreasing estimated
-		// appreciation (eapp). Estimated appreciation is chosen over the
-		// rating of the venue in order to smooth the rating and take into
-		// account the complete profile of the user.
-		Collections.sort(similarRelevantVenues, new Comparator<Venue>() {
-		    public int compare(Venue venue1, Venue venue2) {
-		    	return -Double.compare(eapp(venue1), eapp(venue2));
-		    }
-		});
+		return new ArrayList<Venue>(similarRelevantVenues);
+	}
+	
+	/**
+	 * This method builds relevantVenueIndex, which maps each category with
+	 * the venues rated by user that have this category and got a good rating
+	 * (i.e. 3 or 4 out of 4). A rated venue is topically similar to a venue
+	 * (tsim = 1) if and only if they share a category, so that the similar
+	 * relevant venues of a venue are those found in the lists of its
+	 * categories. The venues are represented by their index in the compact
+	 * form of the ratings of user, and each list is ordered by decreasing
+	 * estimated appreciation (eapp) and then by increasing index, which is
+	 * the order in which findSimilarRelevantVenues gives the venues. The index
+	 * is built once for each user and set of rated venues.
+	 */
+	private void buildRelevantVenueIndex() {
+		resolveUserRatings();
+		if (relevantVenueIndex != null) {
+			return;
+		}
+		
+		relevantVenueEapps = new double[userRatings.length];
+		relevantVenueIndex = new HashMap<String, List<Integer>>();
+		// The ratings user has given to the rated venues have been rescaled
+		// from -1 to 4 into -0.25 to 1.0.
+		for (int i = 0; i < userRatings.length; i++) {
+			Venue ratedVenue = userRatedVenues[i];
+			if (ratedVenue != null && (userRatings[i] == 0.75 || userRatings[i] == 1.0)) {
+				// ratedVenue got a good rating (0.75/1.0 or 1.0/1.0). Estimated
+				// appreciation is chosen over the rating of the venue in order
+				// to smooth the rating and take into account the complete
+				// profile of the user.
+				relevantVenueEapps[i] = eapp(ratedVenue);
+				for (String categoryId : ratedVenue.getCategories().keySet()) {
+					List<Integer> relevantVenueList = relevantVenueIndex.get(categoryId);
+					if (relevantVenueList == null) {
+						relevantVenueList = new ArrayList<Integer>();
+						relevantVenueIndex.put(categoryId, relevantVenueList);
+					}
+					relevantVenueList.add(i);
+				}
+			}
+		}
 		
-		return similarRelevantVenues;
+		for (List<Integer> relevantVenueList : relevantVenueIndex.values()) {
+			Collections.sort(relevantVenueList, new Comparator<Integer>() {
+			    public int compare(Integer index1, Integer index2) {
+			    	return compareRelevantVenues(index1, index2);
+			    }
+			});
+		}
+	}
+	
+	/**
+	 * This method compares two relevant venues given by their index in the
+	 * compact form of the ratings of user: the venue with the greatest eapp
+	 * comes first, and the venue with the lowest index comes first when both
+	 * eapps are equal.
+	 */
+	private int compareRelevantVenues(int index1, int index2) {
+		int comparison = -Double.compare(relevantVenueEapps[index1], relevantVenueEapps[index2]);
+		return comparison != 0 ? comparison : index1 - index2;
 	}
 
 }
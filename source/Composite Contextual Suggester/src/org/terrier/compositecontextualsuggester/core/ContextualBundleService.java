@@ -0,0 +1,964 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.terrier.compositecontextualsuggester.util.CategoryDistanceCache;
+import org.terrier.compositecontextualsuggester.util.CategoryHandler;
+import org.terrier.compositecontextualsuggester.util.Fingerprint;
+import org.terrier.compositecontextualsuggester.util.KeyGrouper;
+import org.terrier.compositecontextualsuggester.util.Location;
+import org.terrier.compositecontextualsuggester.util.LruCache;
+import org.terrier.compositecontextualsuggester.util.RatingSnapshot;
+import org.terrier.compositecontextualsuggester.util.User;
+import org.terrier.compositecontextualsuggester.util.Venue;
+import org.terrier.compositecontextualsuggester.util.VenueArchive;
+import org.terrier.compositecontextualsuggester.util.VenueHandler;
+import org.terrier.compositecontextualsuggester.util.VenueLocationIndex;
+import org.terrier.compositecontextualsuggester.util.VenueStore;
+
+/**
+ * This class is an implementation of a service suggesting bundles of venues
+ * to users in contexts, meant to answer many requests in a long-running
+ * process. The venues of the contexts and the venues rated by the users are
+ * fetched when they are first needed and kept in memory, and the distances
+ * between categories are shared by all the requests.
+ * The results are kept in a cache bounded in size (see LruCache), keyed by
+ * the id of the user, a fingerprint of the ratings of the user, the id of the
+ * context, a fingerprint of the venues of the context and the parameters
+ * (including the weights of the bundle score). A request which key is in the
+ * cache is answered without creating the bundles again. The entries of a user
+ * are invalidated when a request shows that the ratings of the user have
+ * changed, and the entries of a context are invalidated when the venues of
+ * the context are reloaded and have changed. The results of the requests
+ * which budget ran out are not cached.
+ * The estimated appreciations (eapp) of the venues for each user are kept
+ * in a table (see EappTable) shared by the requests of the user. A rating
+ * of a user can be added, changed or removed with the method updateRating,
+ * which updates the table of the user incrementally instead of discarding
+ * it, and only invalidates the results of this user.
+ * The categories and the venues form a version of the corpus, which is
+ * replaced as a whole when it is reloaded (see reload and reloadCategories)
+ * or when the venues of a context are replaced (see setContextVenues),
+ * either explicitly or by a watcher polling the category file and the venue
+ * files (see watch). The new version is built aside, reusing the venues that
+ * have not changed, and then swapped in atomically: the requests in progress
+ * finish on the version they started with, and the requests do not take any
+ * lock to read a version.
+ * The service can be used concurrently by several threads. Concurrent
+ * identical requests (i.e. with the same key) are coalesced: the first one
+ * creates the bundles, and the others wait for its result instead of
+ * creating the same bundles again. Each request can be given its own
+ * timeout; a request that times out or is interrupted stops waiting without
+ * cancelling the computation, which goes on for the other requests and
+ * fills the cache.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class ContextualBundleService {
+
+	// DEFAULT_CACHE_CAPACITY is the default maximum number of results kept in
+	// the cache.
+	public static final int DEFAULT_CACHE_CAPACITY = 10000;
+
+	private String venueDirectoryPath;
+	private String venuePerCityDirectoryPath;
+	private VenueLocationIndex venueLocationIndex;
+	// contextRadius is the radius (in meters) around a context within which
+	// its venues are found with venueLocationIndex.
+	private double contextRadius;
+	// locations maps the ids of the contexts with the contexts.
+	private Map<String, Location> locations;
+
+	private long timeBudget;
+	private long workBudget;
+	private double maxBundleRadius;
+
+	// categoryFilePath is the path to the Foursquare category file the
+	// categories are reloaded from, or null if they are not reloaded.
+	private String categoryFilePath;
+	// corpus is the current version of the corpus.
+	private AtomicReference<Corpus> corpus = new AtomicReference<Corpus>();
+	// reloadLock serializes the reloads of the corpus.
+	private Object reloadLock = new Object();
+	// userFingerprints maps the id of each user with the fingerprint of the
+	// ratings of the user in the last request.
+	private Map<String, Long> userFingerprints = new ConcurrentHashMap<String, Long>();
+	private LruCache<ResultKey, String> cache = new LruCache<ResultKey, String>(DEFAULT_CACHE_CAPACITY, RESULT_KEY_GROUPER);
+	// inFlightResults maps the key of each request which bundles are being
+	// created with the computation of its result.
+	private ConcurrentHashMap<ResultKey, FutureTask<String>> inFlightResults = new ConcurrentHashMap<ResultKey, FutureTask<String>>();
+	// coalescedRequestNb is the number of requests that waited for the
+	// result of an identical request instead of creating the bundles.
+	private AtomicLong coalescedRequestNb = new AtomicLong();
+	// executor runs the computations of the requests that are given a
+	// timeout; it is created when first needed.
+	private ExecutorService executor;
+	// watcher polls the category file and the venue files; it is created by
+	// watch.
+	private ScheduledExecutorService watcher;
+
+	// A Corpus is a version of the data the requests are answered from. The
+	// venues are fetched into a version when they are first needed, but the
+	// venues of a version never change: a version is replaced by a new one
+	// when the corpus is reloaded or when the venues of a context are
+	// replaced.
+	private static class Corpus {
+		// version is incremented by each reload. generation is only
+		// incremented when the categories or the rated venues change, which
+		// changes the results of all the requests.
+		private long version;
+		private long generation;
+		private CategoryHandler categoryHandler;
+		private long categoryFingerprint;
+		private CategoryDistanceCache categoryDistances = new CategoryDistanceCache();
+		// contexts maps the id of each context which venues have been
+		// fetched with its venues and their fingerprint.
+		private Map<String, ContextVenues> contexts = new ConcurrentHashMap<String, ContextVenues>();
+		// ratedVenues contains the venues rated by the users of the requests,
+		// and fetchedRatedVenueIds the ids of the rated venues that have been
+		// fetched (including those that do not exist).
+		private ConcurrentHashMap<String, Venue> ratedVenues = new ConcurrentHashMap<String, Venue>();
+		private Set<String> fetchedRatedVenueIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		// eappTables maps the id of each user with the table of the eapps of
+		// the venues for this user. It is shared by the versions of a same
+		// generation.
+		private ConcurrentHashMap<String, EappTable> eappTables = new ConcurrentHashMap<String, EappTable>();
+
+		private Corpus(long version, CategoryHandler categoryHandler) {
+			this.version = version;
+			this.categoryHandler = categoryHandler;
+			this.categoryFingerprint = Fingerprint.ofCategories(categoryHandler.getCategories());
+		}
+
+		// This constructor creates the next version of a corpus, which shares
+		// the data of the corpus but can be given other contexts.
+		private Corpus(Corpus corpus) {
+			this.version = corpus.version + 1;
+			this.generation = corpus.generation;
+			this.categoryHandler = corpus.categoryHandler;
+			this.categoryFingerprint = corpus.categoryFingerprint;
+			this.categoryDistances = corpus.categoryDistances;
+			this.contexts.putAll(corpus.contexts);
+			this.ratedVenues = corpus.ratedVenues;
+			this.fetchedRatedVenueIds = corpus.fetchedRatedVenueIds;
+			this.eappTables = corpus.eappTables;
+		}
+	}
+
+	// A ContextVenues contains the venues of a context and their fingerprint.
+	private static class ContextVenues {
+		private Map<String, Venue> venues;
+		private long fingerprint;
+		// venueIds contains the ids of the venues located in the context,
+		// including the venues that have been filtered out.
+		private Collection<String> venueIds;
+
+		private ContextVenues(Map<String, Venue> venues, Collection<String> venueIds) {
+			this.venues = venues;
+			this.fingerprint = Fingerprint.ofVenues(venues.values());
+			this.venueIds = venueIds;
+		}
+	}
+
+	// A ResultKey identifies the result of a request in the cache.
+	private static class ResultKey {
+		private long generation;
+		private String userId;
+		private long userFingerprint;
+		private String locationId;
+		private long contextFingerprint;
+		private String parameters;
+
+		private ResultKey(long generation, String userId, long userFingerprint, String locationId, long contextFingerprint,
+				String parameters) {
+			this.generation = generation;
+			this.userId = userId;
+			this.userFingerprint = userFingerprint;
+			this.locationId = locationId;
+			this.contextFingerprint = contextFingerprint;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ResultKey)) {
+				return false;
+			}
+			ResultKey key = (ResultKey) obj;
+			return generation == key.generation && userId.equals(key.userId) && userFingerprint == key.userFingerprint && locationId.equals(key.locationId) &&
+					contextFingerprint == key.contextFingerprint && parameters.equals(key.parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			int hashCode = (int) (generation ^ (generation >>> 32));
+			hashCode = 31*hashCode + userId.hashCode();
+			hashCode = 31*hashCode + (int) (userFingerprint ^ (userFingerprint >>> 32));
+			hashCode = 31*hashCode + locationId.hashCode();
+			hashCode = 31*hashCode + (int) (contextFingerprint ^ (contextFingerprint >>> 32));
+			return 31*hashCode + parameters.hashCode();
+		}
+	}
+
+	// RESULT_KEY_GROUPER groups the results in the cache by user and by
+	// context, so that the results of a user or of a context are invalidated
+	// without going through the whole cache (see invalidate).
+	private static final KeyGrouper<ResultKey> RESULT_KEY_GROUPER = new KeyGrouper<ResultKey>() {
+		public Collection<?> getGroups(ResultKey key) {
+			return Arrays.asList(getUserGroup(key.userId), getContextGroup(key.locationId));
+		}
+	};
+
+	private static List<String> getUserGroup(String userId) {
+		return Arrays.asList("user", userId);
+	}
+
+	private static List<String> getContextGroup(String locationId) {
+		return Arrays.asList("context", locationId);
+	}
+
+	/**
+	 * This constructor creates a service suggesting bundles in the given
+	 * contexts.
+	 *
+	 * @param categoryHandler the handler of the Foursquare categories, which
+	 * black list is used to filter the venues
+	 * @param venueDirectoryPath the path to the Foursquare venue directory
+	 * @param venuePerCityDirectoryPath the path to the venue per city id
+	 * directory, or null
+	 * @param venueLocationIndex the index of the venue locations, used for
+	 * the contexts which venue ids are not listed in a file; it can be null
+	 * if all of them are
+	 * @param contextRadius the radius (in meters) around a context within
+	 * which its venues are found with venueLocationIndex
+	 * @param locations the contexts, mapped with their ids
+	 */
+	public ContextualBundleService(CategoryHandler categoryHandler, String venueDirectoryPath, String venuePerCityDirectoryPath,
+			VenueLocationIndex venueLocationIndex, double contextRadius, Map<String, Location> locations) {
+		this.venueDirectoryPath = venueDirectoryPath;
+		this.venuePerCityDirectoryPath = venuePerCityDirectoryPath;
+		this.venueLocationIndex = venueLocationIndex;
+		this.contextRadius = contextRadius;
+		this.locations = locations;
+		corpus.set(new Corpus(0, categoryHandler));
+	}
+
+	/**
+	 * This method sets the path to the Foursquare category file the
+	 * categories are parsed from when the corpus is reloaded. The black list
+	 * of the current categories is kept.
+	 *
+	 * @param categoryFilePath the path to the category file, or null to keep
+	 * the current categories
+	 */
+	public void setCategoryFilePath(String categoryFilePath) {
+		this.categoryFilePath = categoryFilePath;
+	}
+
+	public long getCorpusVersion() {
+		return corpus.get().version;
+	}
+
+	/**
+	 * This method sets the maximum number of results kept in the cache. The
+	 * results cached so far are discarded.
+	 *
+	 * @param cacheCapacity the capacity of the cache
+	 */
+	public void setCacheCapacity(int cacheCapacity) {
+		cache = new LruCache<ResultKey, String>(cacheCapacity, RESULT_KEY_GROUPER);
+	}
+
+	public LruCache<?, String> getCache() {
+		return cache;
+	}
+
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+	public void setWorkBudget(long workBudget) {
+		this.workBudget = workBudget;
+	}
+
+	public void setMaxBundleRadius(double maxBundleRadius) {
+		this.maxBundleRadius = maxBundleRadius;
+	}
+
+	public long getCoalescedRequestNb() {
+		return coalescedRequestNb.get();
+	}
+
+	/**
+	 * This method suggests bundles of venues to a user in a context. If an
+	 * identical request is being processed, the method waits for its result.
+	 *
+	 * @param user the user
+	 * @param locationId the id of the context
+	 * @param parameters the parameters of the suggestion
+	 *
+	 * @return the lines describing the suggested bundles, in the format of
+	 * the log file of ContextualBundleSuggester
+	 */
+	public String suggest(User user, String locationId, SuggestionParameters parameters) {
+		try {
+			return suggest(user, locationId, parameters, 0, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException exception) {
+			// There is no timeout.
+			throw new IllegalStateException(exception);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(exception);
+		}
+	}
+
+	/**
+	 * This method suggests bundles of venues to a user in a context, waiting
+	 * at most the given time. If an identical request is being processed,
+	 * the method waits for its result. Otherwise the bundles are created in
+	 * the current thread when there is no timeout, and in a thread of the
+	 * service otherwise. When the time runs out or the current thread is
+	 * interrupted, the method stops waiting but the bundles are still
+	 * created and cached.
+	 *
+	 * @param user the user
+	 * @param locationId the id of the context
+	 * @param parameters the parameters of the suggestion
+	 * @param timeout the maximum time to wait; 0 means no limit
+	 * @param unit the unit of timeout
+	 *
+	 * @return the lines describing the suggested bundles, in the format of
+	 * the log file of ContextualBundleSuggester
+	 */
+	public String suggest(final User user, final String locationId, final SuggestionParameters parameters, long timeout, TimeUnit unit) 
+			throws TimeoutException, InterruptedException {
+		// The key, the table of the eapps and the bundles are all based on
+		// the same snapshot of the ratings of the user, even if the ratings
+		// change in the meantime.
+		final RatingSnapshot ratingSnapshot = user.getRatingSnapshot();
+		long userFingerprint = ratingSnapshot.getFingerprint();
+		Long previousUserFingerprint = userFingerprints.put(user.getId(), userFingerprint);
+		if (previousUserFingerprint != null && previousUserFingerprint != userFingerprint) {
+			// The ratings of the user have changed since the last request.
+			invalidate(user.getId(), null);
+		}
+
+		// The request is answered from the current version of the corpus, even
+		// if it is replaced in the meantime.
+		final Corpus requestCorpus = corpus.get();
+		final ContextVenues contextVenues = getContextVenues(requestCorpus, locationId);
+		// The budgets and the maximum radius change the result as well.
+		final ResultKey key = new ResultKey(requestCorpus.generation, user.getId(), userFingerprint, locationId, contextVenues.fingerprint,
+				parameters + "_timebudget" + timeBudget + "_workbudget" + workBudget + "_maxradius" + maxBundleRadius);
+		String output = cache.get(key);
+		if (output != null) {
+			return output;
+		}
+
+		FutureTask<String> result = new FutureTask<String>(new Callable<String>() {
+			public String call() {
+				return createBundles(requestCorpus, user, ratingSnapshot, locationId, contextVenues, parameters, key);
+			}
+		}) {
+			@Override
+			protected void done() {
+				// The following identical requests find the result in the
+				// cache (unless the budget ran out). Only this computation is
+				// removed, not a computation started for the same key since.
+				inFlightResults.remove(key, this);
+			}
+		};
+		FutureTask<String> inFlightResult = inFlightResults.putIfAbsent(key, result);
+		if (inFlightResult != null) {
+			// An identical request is being processed.
+			coalescedRequestNb.incrementAndGet();
+			result = inFlightResult;
+		} else {
+			if (timeout > 0) {
+				getExecutor().execute(result);
+			} else {
+				result.run();
+			}
+		}
+
+		try {
+			return timeout > 0 ? result.get(timeout, unit) : result.get();
+		} catch (ExecutionException exception) {
+			throw new RuntimeException(exception.getCause());
+		}
+	}
+
+	/**
+	 * This method creates the bundles suggested to a user in a context and
+	 * caches the result, unless the budget ran out or the corpus has been
+	 * reloaded.
+	 *
+	 * @param corpus the version of the corpus
+	 * @param user the user
+	 * @param ratingSnapshot the snapshot of the ratings of the user
+	 * @param locationId the id of the context
+	 * @param contextVenues the venues of the context
+	 * @param parameters the parameters of the suggestion
+	 * @param key the key of the result in the cache
+	 *
+	 * @return the lines describing the suggested bundles
+	 */
+	private String createBundles(Corpus corpus, User user, RatingSnapshot ratingSnapshot, String locationId, ContextVenues contextVenues,
+			SuggestionParameters parameters, ResultKey key) {
+		fetchRatedVenues(corpus, ratingSnapshot.getRatedVenueIds());
+		ContextualBundleBuilder contextualBundleBuilder = new ContextualBundleBuilder();
+		contextualBundleBuilder.setRatedVenues(corpus.ratedVenues);
+		contextualBundleBuilder.setLocalVenues(contextVenues.venues);
+		contextualBundleBuilder.setCategories(corpus.categoryHandler.getCategories());
+		contextualBundleBuilder.setCategoryDistanceCache(corpus.categoryDistances);
+		contextualBundleBuilder.setUser(user);
+		contextualBundleBuilder.setRatingSnapshot(ratingSnapshot);
+		contextualBundleBuilder.setEappTable(getEappTable(corpus, user.getId(), key.userFingerprint));
+		contextualBundleBuilder.setTimeBudget(timeBudget);
+		contextualBundleBuilder.setWorkBudget(workBudget);
+		contextualBundleBuilder.setMaxBundleRadius(maxBundleRadius);
+		contextualBundleBuilder.setScoreWeights(parameters.getCOpop(), parameters.getCTcoh(), parameters.getCEapp());
+		contextualBundleBuilder.computeVenueStats();
+		// The pruning does not change the chosen bundles.
+		contextualBundleBuilder.bobo(parameters.getVenuesPerBundleNb(), parameters.getBundleToCreateNb(), parameters.getBundleToReturnNb());
+		contextualBundleBuilder.chooseBundles(parameters.getBundleToReturnNb());
+
+		StringWriter stringWriter = new StringWriter();
+		PrintWriter printWriter = new PrintWriter(stringWriter);
+		ContextualBundleSuggester.writeBundles(printWriter, user.getId(), locationId, contextualBundleBuilder,
+				contextualBundleBuilder.getChosenBundles());
+		printWriter.close();
+		String output = stringWriter.toString();
+
+		// The result is not cached either if the version of the corpus has
+		// been replaced by a version in which it cannot be requested anymore.
+		Corpus currentCorpus = this.corpus.get();
+		if (!contextualBundleBuilder.isTruncated() && currentCorpus.generation == corpus.generation &&
+				currentCorpus.contexts.get(locationId) == contextVenues) {
+			cache.put(key, output);
+		}
+		return output;
+	}
+
+	/**
+	 * This method gives the table of the eapps of the venues for a user,
+	 * creating it if the user has no table or if its table has been computed
+	 * for other ratings.
+	 *
+	 * @param corpus the version of the corpus
+	 * @param userId the id of the user
+	 * @param userFingerprint the fingerprint of the ratings of the user
+	 *
+	 * @return the table of the eapps for the user
+	 */
+	private EappTable getEappTable(Corpus corpus, String userId, long userFingerprint) {
+		ConcurrentHashMap<String, EappTable> eappTables = corpus.eappTables;
+		EappTable eappTable = eappTables.get(userId);
+		if (eappTable != null && eappTable.getRatingFingerprint() == userFingerprint) {
+			return eappTable;
+		}
+
+		EappTable newEappTable = new EappTable(userFingerprint);
+		if (eappTable == null) {
+			eappTable = eappTables.putIfAbsent(userId, newEappTable);
+			if (eappTable == null || eappTable.getRatingFingerprint() == userFingerprint) {
+				return eappTable == null ? newEappTable : eappTable;
+			}
+		}
+		// The table of the user has been computed for other ratings. It is
+		// only replaced if the request has the latest ratings of the user;
+		// otherwise the request uses a table of its own.
+		Long latestUserFingerprint = userFingerprints.get(userId);
+		if (latestUserFingerprint != null && latestUserFingerprint == userFingerprint) {
+			eappTables.replace(userId, eappTable, newEappTable);
+		}
+		return newEappTable;
+	}
+
+	/**
+	 * This method adds, changes or removes a rating of a user. The table of
+	 * the eapps of the user is updated incrementally (see
+	 * ContextualBundleBuilder.updateRating), so that the next requests of
+	 * the user do not compute the eapps again, and the results of the user
+	 * are invalidated. The results of the other users are kept.
+	 * As the topical similarity between two venues is never 0 when their
+	 * categories belong to the category tree, a rating changes the eapp of
+	 * every venue: all the results of the user are affected.
+	 *
+	 * @param user the user
+	 * @param venueId the Foursquare id of the rated venue
+	 * @param rating the new rating of the venue, or null to remove the
+	 * rating
+	 */
+	public void updateRating(User user, String venueId, Double rating) {
+		Corpus corpus = this.corpus.get();
+		ConcurrentHashMap<String, EappTable> eappTables = corpus.eappTables;
+		// The updates of the ratings are serialized, but the requests read
+		// the tables without taking this lock.
+		synchronized (eappTables) {
+			long previousUserFingerprint;
+			Double previousRating;
+			long userFingerprint;
+			synchronized (user) {
+				previousUserFingerprint = user.getRatingFingerprint();
+				previousRating = user.setVenueRating(venueId, rating);
+				userFingerprint = user.getRatingFingerprint();
+			}
+			if (userFingerprint == previousUserFingerprint) {
+				return;
+			}
+			fetchRatedVenues(corpus, Collections.singleton(venueId));
+
+			EappTable eappTable = eappTables.get(user.getId());
+			if (eappTable != null && eappTable.getRatingFingerprint() == previousUserFingerprint) {
+				// The table is updated in a copy, so that the requests in
+				// progress keep using the table of the previous ratings.
+				EappTable updatedEappTable = eappTable.copy(userFingerprint);
+				ContextualBundleBuilder contextualBundleBuilder = new ContextualBundleBuilder();
+				contextualBundleBuilder.setCategories(corpus.categoryHandler.getCategories());
+				contextualBundleBuilder.setCategoryDistanceCache(corpus.categoryDistances);
+				contextualBundleBuilder.updateRating(updatedEappTable, corpus.ratedVenues.get(venueId), previousRating, rating);
+				eappTables.replace(user.getId(), eappTable, updatedEappTable);
+			} else if (eappTable != null) {
+				eappTables.remove(user.getId(), eappTable);
+			}
+
+			userFingerprints.put(user.getId(), userFingerprint);
+		}
+		invalidate(user.getId(), null);
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			// The threads of the service do not prevent the JVM from exiting.
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "contextual-bundle-service");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * This method stops the threads of the service (including the watcher)
+	 * once the computations in progress are done.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (watcher != null) {
+			watcher.shutdown();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * This method gives the venues of a context, fetching them if they have
+	 * not been fetched yet into the version of the corpus.
+	 *
+	 * @param corpus the version of the corpus
+	 * @param locationId the id of the context
+	 *
+	 * @return the venues of the context and their fingerprint
+	 */
+	private ContextVenues getContextVenues(Corpus corpus, String locationId) {
+		ContextVenues contextVenues = corpus.contexts.get(locationId);
+		if (contextVenues == null) {
+			synchronized (corpus.contexts) {
+				contextVenues = corpus.contexts.get(locationId);
+				if (contextVenues == null) {
+					contextVenues = fetchContextVenues(corpus.categoryHandler, locationId);
+					corpus.contexts.put(locationId, contextVenues);
+				}
+			}
+		}
+		return contextVenues;
+	}
+
+	private ContextVenues fetchContextVenues(CategoryHandler categoryHandler, String locationId) {
+		Location location = locations.get(locationId);
+		if (location == null) {
+			throw new IllegalArgumentException("Unknown context: " + locationId);
+		}
+		Collection<String> venueIds = ContextualBundleSuggester.getLocatedIdHandler(location, venuePerCityDirectoryPath, venueLocationIndex,
+				contextRadius).getLocatedIds();
+		VenueHandler venueHandler = new VenueHandler();
+		venueHandler.setCategoryHandler(categoryHandler);
+		venueHandler.parseVenues(venueDirectoryPath, true, venueIds); // Filtering of venues with blacklisted categories.
+		return new ContextVenues(venueHandler.getVenues(), venueIds);
+	}
+
+	/**
+	 * This method fetches the rated venues that have not been fetched yet
+	 * into the version of the corpus.
+	 *
+	 * @param corpus the version of the corpus
+	 * @param ratedVenueIds the ids of rated venues, e.g. of the venues rated
+	 * by a user
+	 */
+	private void fetchRatedVenues(Corpus corpus, Collection<String> ratedVenueIds) {
+		Set<String> venueIds = new HashSet<String>();
+		for (String venueId : ratedVenueIds) {
+			if (!corpus.fetchedRatedVenueIds.contains(venueId)) {
+				venueIds.add(venueId);
+			}
+		}
+		if (!venueIds.isEmpty()) {
+			// Concurrent requests may fetch the same venues: the venue fetched
+			// first is kept, and its id is only marked as fetched once the
+			// venue can be read.
+			for (Map.Entry<String, Venue> venue : fetchRatedVenues(corpus.categoryHandler, venueIds).entrySet()) {
+				corpus.ratedVenues.putIfAbsent(venue.getKey(), venue.getValue());
+			}
+			corpus.fetchedRatedVenueIds.addAll(venueIds);
+		}
+	}
+
+	private Map<String, Venue> fetchRatedVenues(CategoryHandler categoryHandler, Set<String> venueIds) {
+		VenueHandler venueHandler = new VenueHandler();
+		venueHandler.setCategoryHandler(categoryHandler);
+		venueHandler.parseVenues(venueDirectoryPath, false, venueIds); // No filtering of venues.
+		return venueHandler.getVenues();
+	}
+
+	/**
+	 * This method fetches again the venues of a context, e.g. after the venue
+	 * directory has been updated. If the venues have changed, the results of
+	 * the context are invalidated.
+	 *
+	 * @param locationId the id of the context
+	 *
+	 * @return true if the venues of the context have changed, false otherwise
+	 */
+	public boolean reloadContext(String locationId) {
+		synchronized (reloadLock) {
+			return setContextVenues(locationId, fetchContextVenues(corpus.get().categoryHandler, locationId));
+		}
+	}
+
+	/**
+	 * This method sets the venues of a context. The venues are set in a new
+	 * version of the corpus, which then replaces the current one. If the
+	 * venues have changed, the results of the context are invalidated.
+	 *
+	 * @param locationId the id of the context
+	 * @param venues the venues located in the context
+	 *
+	 * @return true if the venues of the context have changed, false otherwise
+	 */
+	public boolean setContextVenues(String locationId, Map<String, Venue> venues) {
+		return setContextVenues(locationId, new ContextVenues(venues, venues.keySet()));
+	}
+
+	private boolean setContextVenues(String locationId, ContextVenues contextVenues) {
+		ContextVenues previousContextVenues;
+		synchronized (reloadLock) {
+			Corpus newCorpus = new Corpus(corpus.get());
+			previousContextVenues = newCorpus.contexts.put(locationId, contextVenues);
+			corpus.set(newCorpus);
+		}
+		if (previousContextVenues != null && previousContextVenues.fingerprint != contextVenues.fingerprint) {
+			invalidate(null, locationId);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * This method fetches again all the venues rated by the users and
+	 * invalidates all the results and the eapps, e.g. after the venue
+	 * directory has been updated. The rated venues are fetched into a new
+	 * version of the corpus when they are next needed.
+	 */
+	public void reloadRatedVenues() {
+		synchronized (reloadLock) {
+			Corpus newCorpus = new Corpus(corpus.get());
+			// The eapps depend on the rated venues.
+			newCorpus.generation++;
+			newCorpus.ratedVenues = new ConcurrentHashMap<String, Venue>();
+			newCorpus.fetchedRatedVenueIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			newCorpus.eappTables = new ConcurrentHashMap<String, EappTable>();
+			corpus.set(newCorpus);
+		}
+		cache.invalidateAll();
+	}
+
+	/**
+	 * This method reloads the corpus, e.g. after the venue directory or the
+	 * category file have been updated. The categories are parsed again (if
+	 * the path to the category file has been set), and the venues of the
+	 * contexts and the rated venues fetched so far are fetched again into a
+	 * new version of the corpus, which then replaces the current one. The
+	 * venues, the distances between the categories and the eapps that have
+	 * not changed are kept. If the categories or the rated venues have
+	 * changed, all the results are invalidated; otherwise only the results
+	 * of the contexts which venues have changed are.
+	 *
+	 * @return the ids of the contexts which venues have changed
+	 */
+	public Set<String> reload() {
+		return reload(true);
+	}
+
+	/**
+	 * This method reloads the categories, e.g. after the category file has
+	 * been updated, without fetching the venues again. If the categories have
+	 * changed, they replace the current ones in a new version of the corpus,
+	 * and all the results are invalidated. The venues of the contexts are
+	 * only fetched again if the blacklisted categories, which filter them,
+	 * have changed.
+	 *
+	 * @return the ids of the contexts which venues have changed
+	 */
+	public Set<String> reloadCategories() {
+		return reload(false);
+	}
+
+	private Set<String> reload(boolean reloadVenues) {
+		Set<String> changedLocationIds = new HashSet<String>();
+		Corpus previousCorpus;
+		Corpus newCorpus;
+		synchronized (reloadLock) {
+			previousCorpus = corpus.get();
+			newCorpus = new Corpus(previousCorpus);
+			boolean changedCategories = false;
+			if (categoryFilePath != null) {
+				CategoryHandler categoryHandler = new CategoryHandler();
+				categoryHandler.parseCategories(categoryFilePath);
+				if (categoryHandler.getCategories().isEmpty()) {
+					// The current version is kept.
+					throw new IllegalStateException("No category in " + categoryFilePath);
+				}
+				categoryHandler.setBlackList(previousCorpus.categoryHandler.getBlackList());
+				long categoryFingerprint = Fingerprint.ofCategories(categoryHandler.getCategories());
+				if (categoryFingerprint != previousCorpus.categoryFingerprint) {
+					changedCategories = true;
+					newCorpus.categoryHandler = categoryHandler;
+					newCorpus.categoryFingerprint = categoryFingerprint;
+					newCorpus.categoryDistances = new CategoryDistanceCache();
+				}
+			}
+			if (!reloadVenues && !changedCategories) {
+				return changedLocationIds;
+			}
+
+			boolean changedRatedVenues = false;
+			if (reloadVenues) {
+				// The rated venues that have not changed are kept, so that
+				// the eapps computed for them remain valid.
+				Set<String> ratedVenueIds = new HashSet<String>(previousCorpus.fetchedRatedVenueIds);
+				Map<String, Venue> ratedVenues = fetchRatedVenues(newCorpus.categoryHandler, ratedVenueIds);
+				newCorpus.ratedVenues = new ConcurrentHashMap<String, Venue>();
+				newCorpus.fetchedRatedVenueIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				for (String venueId : ratedVenueIds) {
+					Venue venue = ratedVenues.get(venueId);
+					Venue previousVenue = previousCorpus.ratedVenues.get(venueId);
+					if (venue != null && previousVenue != null && Fingerprint.ofVenue(venue) == Fingerprint.ofVenue(previousVenue)) {
+						venue = previousVenue;
+					} else if (venue != null || previousVenue != null) {
+						changedRatedVenues = true;
+					}
+					if (venue != null) {
+						newCorpus.ratedVenues.put(venueId, venue);
+					}
+				}
+				newCorpus.fetchedRatedVenueIds.addAll(ratedVenueIds);
+			}
+
+			if (changedCategories || changedRatedVenues) {
+				newCorpus.generation = previousCorpus.generation + 1;
+				newCorpus.eappTables = new ConcurrentHashMap<String, EappTable>();
+			}
+
+			// The venues of the contexts do not depend on the categories, but
+			// on the blacklisted categories which filter them.
+			if (reloadVenues || !newCorpus.categoryHandler.getBlackListedCategoryIds().equals(
+					previousCorpus.categoryHandler.getBlackListedCategoryIds())) {
+				for (Map.Entry<String, ContextVenues> context : previousCorpus.contexts.entrySet()) {
+					ContextVenues contextVenues = fetchContextVenues(newCorpus.categoryHandler, context.getKey());
+					if (contextVenues.fingerprint == context.getValue().fingerprint) {
+						contextVenues = context.getValue();
+					} else {
+						changedLocationIds.add(context.getKey());
+					}
+					newCorpus.contexts.put(context.getKey(), contextVenues);
+				}
+			}
+
+			corpus.set(newCorpus);
+		}
+
+		// The results of the previous generation cannot be requested anymore.
+		if (newCorpus.generation != previousCorpus.generation) {
+			cache.invalidateAll();
+		} else {
+			for (String locationId : changedLocationIds) {
+				invalidate(null, locationId);
+			}
+		}
+		return changedLocationIds;
+	}
+
+	/**
+	 * This method starts watching the category file (if its path has been
+	 * set) and the venue files: they are polled periodically, and the corpus
+	 * is reloaded in the thread of the watcher when the length or the time of
+	 * the last modification of one of them changes. The watched venue files
+	 * are the venue directory (which changes when files are added, removed or
+	 * renamed in it), the store or the files of the archive when the venues
+	 * are stored in one, and otherwise the files of the venues loaded so far.
+	 * Only the categories are reloaded when only the category file has
+	 * changed (see reloadCategories). A reload that fails is reported and the
+	 * current version of the corpus is kept.
+	 * The files are polled as the service is meant to run on Java 6, which
+	 * has no file system notifications (WatchService).
+	 *
+	 * @param period the period of the polling
+	 * @param unit the unit of period
+	 */
+	public synchronized void watch(long period, TimeUnit unit) {
+		if (watcher != null) {
+			watcher.shutdown();
+		}
+		// The thread of the watcher does not prevent the JVM from exiting.
+		watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "contextual-bundle-service-watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		final Map<String, Long> venueFileStates = new HashMap<String, Long>();
+		updateVenueFileStates(venueFileStates);
+		final long[] categoryFileState = {getCategoryFileState()};
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				// The states are updated before the reload, so that a failed
+				// reload is not attempted again until the next modification.
+				boolean modifiedVenues = updateVenueFileStates(venueFileStates);
+				long state = getCategoryFileState();
+				boolean modifiedCategories = state != categoryFileState[0];
+				categoryFileState[0] = state;
+				try {
+					if (modifiedVenues) {
+						reload();
+					} else if (modifiedCategories) {
+						reloadCategories();
+					}
+				} catch (RuntimeException exception) {
+					exception.printStackTrace();
+				}
+			}
+		}, period, period, unit);
+	}
+
+	private long getCategoryFileState() {
+		return categoryFilePath == null ? 0 : getFileState(new File(categoryFilePath));
+	}
+
+	private static long getFileState(File file) {
+		return new Fingerprint().add(file.length()).add(file.lastModified()).getValue();
+	}
+
+	/**
+	 * This method updates the states (i.e. the length and the time of the
+	 * last modification) of the watched venue files.
+	 *
+	 * @param venueFileStates the map matching the path of each watched venue
+	 * file with its state, updated by the method
+	 *
+	 * @return true if a file that was already watched has changed, false
+	 * otherwise
+	 */
+	private boolean updateVenueFileStates(Map<String, Long> venueFileStates) {
+		Collection<File> files = new ArrayList<File>();
+		File venueDirectory = new File(venueDirectoryPath);
+		files.add(venueDirectory);
+		if (VenueStore.isVenueStore(venueDirectoryPath)) {
+			files.add(new File(venueDirectory, VenueStore.STORE_FILE_NAME));
+		} else if (VenueArchive.isArchive(venueDirectoryPath)) {
+			File[] archiveFiles = venueDirectory.listFiles();
+			if (archiveFiles != null) {
+				files.addAll(Arrays.asList(archiveFiles));
+			}
+		} else {
+			Corpus corpus = this.corpus.get();
+			for (ContextVenues contextVenues : corpus.contexts.values()) {
+				for (String venueId : contextVenues.venueIds) {
+					files.add(new File(venueDirectory, venueId));
+				}
+			}
+			for (String venueId : corpus.fetchedRatedVenueIds) {
+				files.add(new File(venueDirectory, venueId));
+			}
+		}
+
+		// The files loaded since the previous update are only watched from
+		// now on.
+		boolean modified = false;
+		Map<String, Long> states = new HashMap<String, Long>();
+		for (File file : files) {
+			long state = getFileState(file);
+			Long previousState = venueFileStates.put(file.getPath(), state);
+			if (previousState != null && previousState != state) {
+				modified = true;
+			}
+			states.put(file.getPath(), state);
+		}
+		venueFileStates.keySet().retainAll(states.keySet());
+		return modified;
+	}
+
+	/**
+	 * This method invalidates the results of a user, of a context, or of a
+	 * user in a context.
+	 *
+	 * @param userId the id of the user, or null for all the users
+	 * @param locationId the id of the context, or null for all the contexts
+	 */
+	public void invalidate(String userId, String locationId) {
+		if (userId == null && locationId == null) {
+			cache.invalidateAll();
+		} else if (locationId == null) {
+			cache.invalidateGroup(getUserGroup(userId));
+		} else if (userId == null) {
+			cache.invalidateGroup(getContextGroup(locationId));
+		} else {
+			for (ResultKey key : cache.getGroupKeys(getUserGroup(userId))) {
+				if (key.locationId.equals(locationId)) {
+					cache.invalidate(key);
+				}
+			}
+		}
+	}
+
+}
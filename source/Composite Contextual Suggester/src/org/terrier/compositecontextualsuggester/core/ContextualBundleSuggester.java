@@ -4,11 +4,21 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -18,8 +28,10 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FilenameUtils;
 import org.terrier.compositecontextualsuggester.util.Bundle;
 import org.terrier.compositecontextualsuggester.util.Category;
+import org.terrier.compositecontextualsuggester.util.CategoryDistanceCache;
 import org.terrier.compositecontextualsuggester.util.CategoryHandler;
 import org.terrier.compositecontextualsuggester.util.LocatedIdHandler;
 import org.terrier.compositecontextualsuggester.util.Location;
@@ -28,6 +40,7 @@ import org.terrier.compositecontextualsuggester.util.User;
 import org.terrier.compositecontextualsuggester.util.UserHandler;
 import org.terrier.compositecontextualsuggester.util.Venue;
 import org.terrier.compositecontextualsuggester.util.VenueHandler;
+import org.terrier.compositecontextualsuggester.util.VenueLocationIndex;
 
 /**
  * This class is used to wrap the processing related to the contextual
@@ -36,18 +49,50 @@ import org.terrier.compositecontextualsuggester.util.VenueHandler;
  * contexts that are specified in the arguments.
  * 
  * The program is designed to be executed with the following options:
+ * -adhoc <id,lat,lon> ... <id,lat,lon>           Ad-hoc context(s) to
+ *                                                process, each given by an
+ *                                                id and the coordinates of
+ *                                                a point; when no context
+ *                                                id is given, only these
+ *                                                contexts are processed
+ *                                                (optional).
  * -append                                        Append the result to the
  *                                                output file (optional).
+ * -blacklist <black-list-file-path>              Path to a file containing
+ *                                                the blacklisted category
+ *                                                ids, one per line; the
+ *                                                descendants of these
+ *                                                categories are blacklisted
+ *                                                as well; default: the
+ *                                                static black list of
+ *                                                CategoryHandler (optional).
  * -categories <foursquare-category-file-path>    Path to the Foursquare
  *                                                category file.
  * -contextids <context-id1> ... <context-idn>    Context ID(s) to process,
  *                                                separated by spaces;
  *                                                default: all contexts
  *                                                (optional).
+ * -contextradius <radius-in-kilometers>          Radius around a context
+ *                                                within which its venues
+ *                                                are found when they are
+ *                                                not listed in the venue
+ *                                                per city id directory;
+ *                                                default: 25 (optional).
  * -contexts <CS-contexts-file-path>              Path to the CS context
  *                                                file.
  * -extfs <example_venue2foursquare-file-path>    Path to the file
  *                                                example_venue2foursquare.
+ * -locindex <venue-location-index-file-path>     Path to the file in which
+ *                                                the index of the venue
+ *                                                locations is saved, and
+ *                                                from which it is loaded
+ *                                                when it exists (optional).
+ * -maxradius <radius-in-meters>                  Maximum distance between
+ *                                                the pivot of a bundle and
+ *                                                its other venues, so that
+ *                                                the bundles are walkable;
+ *                                                default: no limit
+ *                                                (optional).
  * -nbuncreate <number-of-bundles-to-create>      Number of bundles to
  *                                                create and choose from,
  *                                                superior or equal to
@@ -60,18 +105,64 @@ import org.terrier.compositecontextualsuggester.util.VenueHandler;
  *                                                bundle; default: 5
  *                                                (optional).
  * -output <output-file-path>                     Path to the output file.
+ * -prune                                         Stop creating bundles as
+ *                                                soon as no remaining
+ *                                                bundle can be returned;
+ *                                                the output is unchanged
+ *                                                (optional).
  * -profiles <CS-profile-file-path>               Path to the CS profile
  *                                                file.
  * -profileids <profile-id1> ... <profile-idm>    Profile ID(s) to process,
  *                                                separated by spaces;
  *                                                default: all profiles
  *                                                (optional).
+ * -schedule                                      Process the user-context
+ *                                                pairs in parallel, the most
+ *                                                expensive ones first
+ *                                                according to their
+ *                                                estimated cost, and print
+ *                                                the predicted and actual
+ *                                                makespan in verbose mode;
+ *                                                the output is unchanged
+ *                                                (optional).
+ * -shard <i/N>                                   Process only the i-th of N
+ *                                                shards of the user-context
+ *                                                pairs (from 1/N to N/N);
+ *                                                the outputs of the shards
+ *                                                are merged with
+ *                                                RunFileMerger; cannot be
+ *                                                used with -append or
+ *                                                -sweep (optional).
+ * -sweep <grid-spec>                             Run all the
+ *                                                configurations of a
+ *                                                parameter grid, e.g.
+ *                                                "nbunret=5,10;ceapp=1,10"
+ *                                                (optional).
+ * -threads <number-of-threads>                   Number of threads used in
+ *                                                sweep mode and in schedule
+ *                                                mode; default: number of
+ *                                                processors (optional).
+ * -timebudget <time-budget-in-milliseconds>      Maximum time spent
+ *                                                creating the bundles of
+ *                                                each user-context pair;
+ *                                                default: no limit
+ *                                                (optional).
  * -venpcity <venue-per-city-id-directory-path>   Path to the venue per city
- *                                                id directory.
+ *                                                id directory; the venues of
+ *                                                the contexts which city has
+ *                                                no id file are found with
+ *                                                an index of the venue
+ *                                                locations (optional).
  * -venues <foursquare-venue-directory-path>      Path to the Foursquare
  *                                                venue directory.
  * -verbose                                       Print information about
  *                                                the execution (optional).
+ * -workbudget <number-of-venue-evaluations>      Maximum number of venues
+ *                                                evaluated while creating
+ *                                                the bundles of each
+ *                                                user-context pair;
+ *                                                default: no limit
+ *                                                (optional).
  * 
  * Each line of the generated log file is built according to the following 
  * format: 
@@ -83,12 +174,80 @@ import org.terrier.compositecontextualsuggester.util.VenueHandler;
  * the score of the bundle (between 0 and 1), similarRelevantVenueId1, ..., 
  * similarRelevantVenueIdN are venues rated by the user that are topically
  * similar to the current venue and got a good rating by this user.
+ * When a time or work budget is set and runs out for a user-context pair, the
+ * bundles written for this pair are the best ones created before the budget
+ * ran out; such pairs are reported as truncated in verbose mode.
+ * 
+ * In sweep mode, the parameters nbunret, nvenpbun, nbuncreate, copop, ctcoh
+ * and ceapp (the weights of opop, tcoh and eapp in the bundle score) can be
+ * given several values in a grid, separated by commas, and every
+ * configuration of the grid is run in the same execution. The venues, the
+ * estimated appreciations and the distances between categories are shared
+ * by the configurations, the bundles are created once for each pair of
+ * values of nvenpbun and nbuncreate, and the user-context pairs are
+ * processed in parallel. The output of each configuration is written in its
+ * own file, named after the output file and the configuration. The time and
+ * work budgets apply to each creation of the bundles, and the maximum bundle
+ * radius to all of them. The option -prune cannot be used in sweep mode, as
+ * the pruning depends on the weights and on nbunret while the bundles are
+ * ranked again for each configuration.
+ * 
+ * In schedule mode, the cost of each user-context pair is estimated from the
+ * number of venues of the context, the number of venues rated by the user,
+ * nvenpbun and nbuncreate (see estimatePairCost), and the pairs are
+ * dispatched on the threads by decreasing estimated cost (see
+ * PairScheduler), so that the run does not end with a single thread
+ * processing the pairs of the largest context. The output is written in the
+ * same order as in a single-threaded run. The schedule mode can be combined
+ * with the option -shard, in which case the pairs of the shard are
+ * scheduled.
  * 
  * @author Thibaut Thonet
  *
  */
 public class ContextualBundleSuggester {
 	
+	// A ContextVenues gives the venues of a context to the pairs of the
+	// context processed in schedule mode. The venues are fetched when the
+	// first pair needs them, and released when all the pairs are done.
+	private static class ContextVenues {
+		private CategoryHandler categoryHandler;
+		private String venueDirectoryPath;
+		private Collection<String> locatedIds;
+		private Map<String, Venue> localVenues;
+		// remainingPairNb is the number of pairs of the context that are not
+		// done yet.
+		private int remainingPairNb;
+		
+		private ContextVenues(CategoryHandler categoryHandler, String venueDirectoryPath, Collection<String> locatedIds) {
+			this.categoryHandler = categoryHandler;
+			this.venueDirectoryPath = venueDirectoryPath;
+			this.locatedIds = locatedIds;
+		}
+		
+		private synchronized void addPair() {
+			remainingPairNb++;
+		}
+		
+		private synchronized Map<String, Venue> acquire() {
+			if (localVenues == null) {
+				VenueHandler venueHandler = new VenueHandler();
+				venueHandler.setCategoryHandler(categoryHandler);
+				venueHandler.parseVenues(venueDirectoryPath, true, locatedIds); // Filtering of venues with blacklisted categories.
+				localVenues = venueHandler.getVenues();
+			}
+			return localVenues;
+		}
+		
+		private synchronized void release() {
+			remainingPairNb--;
+			if (remainingPairNb == 0) {
+				// The venues of the context are not needed anymore.
+				localVenues = null;
+			}
+		}
+	}
+	
 	@SuppressWarnings("static-access")
 	public static void main(String[] args) throws IOException, InterruptedException {
 		
@@ -100,7 +259,7 @@ public class ContextualBundleSuggester {
 		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("CS-profile-file-path").withDescription("Path to the CS profile file.").create("profiles"));
 		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("example_venue2foursquare-file-path").withDescription("Path to the file example_venue2foursquare.").create("extfs"));
         options.addOption(OptionBuilder.hasArg().isRequired().withArgName("CS-contexts-file-path").withDescription("Path to the CS context file.").create("contexts"));
-        options.addOption(OptionBuilder.hasArg().isRequired().withArgName("venue-per-city-id-directory-path").withDescription("Path to the venue per city id directory.").create("venpcity"));
+        options.addOption(OptionBuilder.hasArg().withArgName("venue-per-city-id-directory-path").withDescription("Path to the venue per city id directory; the venues of the contexts which city has no id file are found with an index of the venue locations (optional).").create("venpcity"));
         options.addOption(OptionBuilder.hasArg().isRequired().withArgName("output-file-path").withDescription("Path to the output file.").create("output"));
         options.addOption("append", false, "Append the result to the output file (optional).");
         options.addOption(OptionBuilder.hasArg().withArgName("number-of-bundles-to-return").withDescription("Number of bundles to return; default: 10 (optional).").create("nbunret"));
@@ -108,6 +267,18 @@ public class ContextualBundleSuggester {
         options.addOption(OptionBuilder.hasArg().withArgName("number-of-bundles-to-create").withDescription("Number of bundles to create and choose from, superior or equal to nbunret; default: 10*nbunret (optional).").create("nbuncreate"));
         options.addOption(OptionBuilder.hasArgs(Option.UNLIMITED_VALUES).withArgName("profile-id1> ... <profile-idm").withDescription("Profile ID(s) to process, separated by spaces; default: all profiles (optional).").create("profileids"));
         options.addOption(OptionBuilder.hasArgs(Option.UNLIMITED_VALUES).withArgName("context-id1> ... <context-idn").withDescription("Context ID(s) to process, separated by spaces; default: all contexts (optional).").create("contextids"));
+        options.addOption(OptionBuilder.hasArgs(Option.UNLIMITED_VALUES).withArgName("id,lat,lon> ... <id,lat,lon").withDescription("Ad-hoc context(s) to process, each given by an id and the coordinates of a point; when no context id is given, only these contexts are processed (optional).").create("adhoc"));
+        options.addOption(OptionBuilder.hasArg().withArgName("radius-in-kilometers").withDescription("Radius around a context within which its venues are found when they are not listed in the venue per city id directory; default: 25 (optional).").create("contextradius"));
+        options.addOption(OptionBuilder.hasArg().withArgName("venue-location-index-file-path").withDescription("Path to the file in which the index of the venue locations is saved, and from which it is loaded when it exists (optional).").create("locindex"));
+        options.addOption(OptionBuilder.hasArg().withArgName("black-list-file-path").withDescription("Path to a file containing the blacklisted category ids, one per line; default: the static black list of CategoryHandler (optional).").create("blacklist"));
+        options.addOption("prune", false, "Stop creating bundles as soon as no remaining bundle can be returned; the output is unchanged (optional).");
+        options.addOption("schedule", false, "Process the user-context pairs in parallel, the most expensive ones first according to their estimated cost, and print the predicted and actual makespan in verbose mode; the output is unchanged (optional).");
+        options.addOption(OptionBuilder.hasArg().withArgName("i/N").withDescription("Process only the i-th of N shards of the user-context pairs (from 1/N to N/N); the outputs of the shards are merged with RunFileMerger; cannot be used with -append or -sweep (optional).").create("shard"));
+        options.addOption(OptionBuilder.hasArg().withArgName("grid-spec").withDescription("Run all the configurations of a parameter grid, e.g. \"nbunret=5,10;ceapp=1,10\" (optional).").create("sweep"));
+        options.addOption(OptionBuilder.hasArg().withArgName("number-of-threads").withDescription("Number of threads used in sweep mode and in schedule mode; default: number of processors (optional).").create("threads"));
+        options.addOption(OptionBuilder.hasArg().withArgName("time-budget-in-milliseconds").withDescription("Maximum time spent creating the bundles of each user-context pair; default: no limit (optional).").create("timebudget"));
+        options.addOption(OptionBuilder.hasArg().withArgName("number-of-venue-evaluations").withDescription("Maximum number of venues evaluated while creating the bundles of each user-context pair; default: no limit (optional).").create("workbudget"));
+        options.addOption(OptionBuilder.hasArg().withArgName("radius-in-meters").withDescription("Maximum distance between the pivot of a bundle and its other venues, so that the bundles are walkable; default: no limit (optional).").create("maxradius"));
         options.addOption("verbose", false, "Print information about the execution (optional).");
         
         try {
@@ -126,6 +297,49 @@ public class ContextualBundleSuggester {
 			int bundleToReturnNb = commandLine.hasOption("nbunret") ? Integer.parseInt(commandLine.getOptionValue("nbunret")) : 10;			
 			int venuesPerBundleNb = commandLine.hasOption("nvenpbun") ? Integer.parseInt(commandLine.getOptionValue("nvenpbun")) : 5;
 			int bundleToCreateNb = commandLine.hasOption("nbuncreate") ? Integer.parseInt(commandLine.getOptionValue("nbuncreate")) : 10*bundleToReturnNb;
+			long timeBudget = commandLine.hasOption("timebudget") ? Long.parseLong(commandLine.getOptionValue("timebudget")) : 0;
+			long workBudget = commandLine.hasOption("workbudget") ? Long.parseLong(commandLine.getOptionValue("workbudget")) : 0;
+			double maxBundleRadius = commandLine.hasOption("maxradius") ? Double.parseDouble(commandLine.getOptionValue("maxradius")) : 0;
+			double contextRadius = (commandLine.hasOption("contextradius") ? Double.parseDouble(commandLine.getOptionValue("contextradius")) : 25)*1000;
+			boolean prune = commandLine.hasOption("prune");
+			if (prune && commandLine.hasOption("sweep")) {
+				throw new ParseException("The option -prune cannot be used in sweep mode");
+			}
+			// adHocLocations contains the ad-hoc contexts, which are parsed
+			// before any file is read.
+			Map<String, Location> adHocLocations = new LinkedHashMap<String, Location>();
+			if (commandLine.hasOption("adhoc")) {
+				for (String adHocContext : commandLine.getOptionValues("adhoc")) {
+					// values[0] is the id of the context, values[1] its
+					// latitude and values[2] its longitude.
+					String[] values = adHocContext.split(",");
+					if (values.length != 3 || values[0].trim().equals("")) {
+						throw new ParseException("Invalid ad-hoc context: " + adHocContext);
+					}
+					try {
+						adHocLocations.put(values[0].trim(), new Location(Double.parseDouble(values[1].trim()), Double.parseDouble(values[2].trim())));
+					} catch (NumberFormatException exception) {
+						throw new ParseException("Invalid coordinates in the ad-hoc context: " + adHocContext);
+					}
+				}
+			}
+			ShardPlan shardPlan = null;
+			if (commandLine.hasOption("shard")) {
+				if (commandLine.hasOption("sweep")) {
+					throw new ParseException("The option -shard cannot be used in sweep mode");
+				}
+				// A shard always writes a new pair file, which header would be
+				// repeated in append mode.
+				if (appendToOutputFile) {
+					throw new ParseException("The option -append cannot be used with -shard");
+				}
+				try {
+					shardPlan = ShardPlan.parse(commandLine.getOptionValue("shard"));
+				} catch (IllegalArgumentException exception) {
+					throw new ParseException(exception.getMessage());
+				}
+			}
+			int threadNb = commandLine.hasOption("threads") ? Integer.parseInt(commandLine.getOptionValue("threads")) : Runtime.getRuntime().availableProcessors();
             boolean verbose = commandLine.hasOption("verbose");
             
             // Beginning of the execution.
@@ -134,6 +348,9 @@ public class ContextualBundleSuggester {
     		// Fetching the Foursquare categories.
 			CategoryHandler categoryHandler = new CategoryHandler();
 			categoryHandler.parseCategories(venueCategoryFilePath);
+			if (commandLine.hasOption("blacklist")) {
+				categoryHandler.parseBlackList(commandLine.getOptionValue("blacklist"));
+			}
 			Map<String, Category> categories = categoryHandler.getCategories();
 			
 			// Fetching the users (i.e. profiles).
@@ -171,94 +388,127 @@ public class ContextualBundleSuggester {
 				}	
 				locations = filteredLocations;
 			}
+			if (commandLine.hasOption("adhoc")) {
+				// The ad-hoc contexts are processed in addition to the
+				// contexts specified with -contextids, if any.
+				if (!commandLine.hasOption("contextids")) {
+					locations = new HashMap<String, Location>();
+				}
+				locations.putAll(adHocLocations);
+			}
 			
-			// iterationCount counts the number of user-location pairs that have
-			// been processed.
-			int iterationCount = 1;
+			// The index of the venue locations is only needed for the
+			// contexts which venue ids are not listed in a file.
+			VenueLocationIndex venueLocationIndex = null;
+			for (Location location : locations.values()) {
+				if (venueLocationIndex == null && getLocatedIdFile(location, venuePerCityDirectoryPath) == null) {
+					venueLocationIndex = loadVenueLocationIndex(venueDirectoryPath, commandLine.getOptionValue("locindex"), verbose);
+				}
+			}
 			
-			// Iteration on locations.
-			for (String locationId : locations.keySet()) {
-				Location location = locations.get(locationId);
+			if (shardPlan != null) {
+				// Only the user-location pairs of the shard are processed.
+				planShards(shardPlan, users, locations, venuePerCityDirectoryPath, venueLocationIndex, contextRadius,
+						venuesPerBundleNb, bundleToCreateNb);
 				
-				// Fetching the ID of the venues that are located in the
-				// current location.
-				LocatedIdHandler locatedIdHandler = new LocatedIdHandler();
-				locatedIdHandler.parseLocatedIds(venuePerCityDirectoryPath + File.separator + location.getName() + ".ids.filtered");
-
-				// Fetching the venues associated with these IDs.
-				VenueHandler venueHandler = new VenueHandler();
-				venueHandler.parseVenues(venueDirectoryPath, true, locatedIdHandler.getLocatedIds()); // Filtering of venues with blacklisted categories.
-				Map<String, Venue> localVenues = venueHandler.getVenues();
+				// The output file and the pair file of the shard are created
+				// even if no pair is assigned to the shard.
+				new FileWriter(outputFilePath).close();
+				PrintWriter pairWriter = new PrintWriter(new FileWriter(RunFileMerger.getPairFilePath(outputFilePath)));
+				pairWriter.println("shard\t" + shardPlan.getShardIndex() + "/" + shardPlan.getShardNb() + "\t" + shardPlan.getPairNb());
+				pairWriter.close();
 				
-				// Iteration on users.
-				for (String userId : users.keySet()) {
-					User user = users.get(userId);
-
-					// Fetching the venues rated by the current user.
-					venueHandler.parseVenues(venueDirectoryPath, false, user.getVenueRatings().keySet()); // No filtering of venues.
-					Map<String, Venue> ratedVenues = venueHandler.getVenues();					
-
-					if (verbose) {
-						// Displaying the progress of the execution.
-						System.out.println("[" + iterationCount + "/" + locations.size()*users.size() + "] userId: " + userId + ", contextId: " + locationId);
-					}
-
-					// Construction of the bundles.
-					ContextualBundleBuilder contextualBundleBuilder = new ContextualBundleBuilder();
-					contextualBundleBuilder.setRatedVenues(ratedVenues);
-					contextualBundleBuilder.setLocalVenues(localVenues);
-					contextualBundleBuilder.setCategories(categories);
-					contextualBundleBuilder.setUser(user);
-					contextualBundleBuilder.computeVenueStats();
-					contextualBundleBuilder.bobo(venuesPerBundleNb, bundleToCreateNb);
-					contextualBundleBuilder.chooseBundles(bundleToReturnNb);
-					Collection<Bundle<Venue>> bundles = contextualBundleBuilder.getChosenBundles();
+				if (verbose) {
+					System.out.println("Shard " + shardPlan.getShardIndex() + "/" + shardPlan.getShardNb() + ": " + 
+							shardPlan.getAssignedPairNb() + "/" + shardPlan.getPairNb() + " pair(s), estimated cost " + 
+							shardPlan.getShardCost(shardPlan.getShardIndex()));
+				}
+			}
+			
+			if (commandLine.hasOption("sweep")) {
+				// All the configurations of the grid are processed at once.
+				List<SuggestionParameters> configurations = parseSweepGrid(commandLine.getOptionValue("sweep"),
+						bundleToReturnNb, venuesPerBundleNb, commandLine.hasOption("nbuncreate") ? bundleToCreateNb : 0);
+				sweep(users, locations, categoryHandler, venueDirectoryPath, venuePerCityDirectoryPath, venueLocationIndex, contextRadius,
+						outputFilePath, appendToOutputFile, configurations, timeBudget, workBudget, maxBundleRadius, threadNb, verbose);
+			} else if (commandLine.hasOption("schedule")) {
+				// The pairs are processed in parallel, the most expensive ones
+				// first.
+				schedule(users, locations, categoryHandler, venueDirectoryPath, venuePerCityDirectoryPath, venueLocationIndex, contextRadius,
+						outputFilePath, appendToOutputFile, shardPlan, bundleToReturnNb, venuesPerBundleNb, bundleToCreateNb,
+						timeBudget, workBudget, maxBundleRadius, prune, threadNb, verbose);
+			} else {
+				int pairNb = shardPlan != null ? shardPlan.getAssignedPairNb() : locations.size()*users.size();
+				
+				// iterationCount counts the number of user-location pairs that have
+				// been processed.
+				int iterationCount = 1;
+				// sequenceNumber is the position of the current user-location
+				// pair among all the pairs.
+				int sequenceNumber = 0;
+			
+				// Iteration on locations.
+				for (String locationId : locations.keySet()) {
+					Location location = locations.get(locationId);
 					
-					// In the first iteration, the boolean appendToOutputFile
-					// determines whether the output file is overwritten (in
-					// the case it already exists). In the other iterations,
-					// the result is always appended to the output file.
-					FileWriter fileWriter = new FileWriter(outputFilePath, iterationCount == 1 ? appendToOutputFile : true);
-					PrintWriter printWriter = new PrintWriter(fileWriter, true);
-
-					int bundleRank = 1;
-					for (Bundle<Venue> bundle : bundles) {
-						List<Venue> bundleVenues = bundle.getItems();
-
-						int venueRank = 1;
-						for (Venue venue : bundleVenues) {
-							StringBuilder stringBuilder = new StringBuilder();
-							stringBuilder.append(userId + "_" + locationId + " " + bundleRank + "." + venueRank + " " + venue.getId() + " " + contextualBundleBuilder.score(bundle));
+					if (shardPlan != null) {
+						// The location is skipped if none of its pairs belongs
+						// to the shard.
+						boolean isLocationAssigned = false;
+						for (int userIndex = 0; userIndex < users.size(); userIndex++) {
+							isLocationAssigned |= shardPlan.isAssigned(sequenceNumber + userIndex);
+						}
+						if (!isLocationAssigned) {
+							sequenceNumber += users.size();
+							continue;
+						}
+					}
+				
+					// Fetching the ID of the venues that are located in the
+					// current location.
+					LocatedIdHandler locatedIdHandler = getLocatedIdHandler(location, venuePerCityDirectoryPath, venueLocationIndex, contextRadius);
 
-							// Computation of the venues rated by the user that
-							// are topically similar to the current venue and
-							// got a good rating by this user.
-							Collection<Venue> similarRelevantVenues = contextualBundleBuilder.findSimilarRelevantVenues(venue);
-							if (!similarRelevantVenues.isEmpty()) {
-								boolean firstIteration = true;
-								for (Venue similarRelevantVenue : similarRelevantVenues) {
-									if (firstIteration) {
-										// No "#" to append in the first
-										// iteration.
-										stringBuilder.append(" " + similarRelevantVenue.getId());
-										firstIteration = false;
-									} else {
-										stringBuilder.append("#" + similarRelevantVenue.getId());
-									}
-								}
-							}
+					// Fetching the venues associated with these IDs.
+					VenueHandler venueHandler = new VenueHandler();
+					venueHandler.setCategoryHandler(categoryHandler);
+					venueHandler.parseVenues(venueDirectoryPath, true, locatedIdHandler.getLocatedIds()); // Filtering of venues with blacklisted categories.
+					Map<String, Venue> localVenues = venueHandler.getVenues();
+				
+					// Iteration on users.
+					for (String userId : users.keySet()) {
+						User user = users.get(userId);
+						
+						if (shardPlan != null && !shardPlan.isAssigned(sequenceNumber)) {
+							// The pair belongs to another shard.
+							sequenceNumber++;
+							continue;
+						}
 
-							printWriter.println(stringBuilder.toString());
+						// Fetching the venues rated by the current user.
+						venueHandler.parseVenues(venueDirectoryPath, false, user.getVenueRatings().keySet()); // No filtering of venues.
+						Map<String, Venue> ratedVenues = venueHandler.getVenues();					
 
-							venueRank++;
+						if (verbose) {
+							// Displaying the progress of the execution.
+							System.out.println("[" + iterationCount + "/" + pairNb + "] userId: " + userId + ", contextId: " + locationId);
 						}
 
-						bundleRank++;
-					}
-
-					printWriter.close();
+						// Construction of the bundles.
+						String output = suggestBundles(userId, user, locationId, ratedVenues, localVenues, categories, 
+								bundleToReturnNb, venuesPerBundleNb, bundleToCreateNb, timeBudget, workBudget, maxBundleRadius, prune, verbose);
+						
+						// In the first iteration, the boolean appendToOutputFile
+						// determines whether the output file is overwritten (in
+						// the case it already exists). In the other iterations,
+						// and in shard mode where the output file has already
+						// been created, the result is always appended to the
+						// output file.
+						writePairOutput(outputFilePath, iterationCount == 1 && shardPlan == null ? appendToOutputFile : true, 
+								shardPlan, sequenceNumber, userId, locationId, output);
 					
-					iterationCount++;
+						iterationCount++;
+						sequenceNumber++;
+					}
 				}
 			}
 			
@@ -280,5 +530,639 @@ public class ContextualBundleSuggester {
             formatter.printHelp("java -Xmx512m -jar composite-contextual-suggester.jar", options);
         }
 	}
+	
+	/**
+	 * This method writes the lines describing the bundles suggested to a user
+	 * in a context. Each venue of each bundle is written on its own line,
+	 * followed by the venues rated by the user that are topically similar to
+	 * this venue and got a good rating by this user.
+	 * 
+	 * @param printWriter the writer of the output
+	 * @param userId the id of the user
+	 * @param locationId the id of the context
+	 * @param contextualBundleBuilder the builder used to create the bundles
+	 * @param bundles the bundles suggested to the user, from the best to the
+	 * worst one
+	 */
+	public static void writeBundles(PrintWriter printWriter, String userId, String locationId, 
+			ContextualBundleBuilder contextualBundleBuilder, Collection<Bundle<Venue>> bundles) {
+		int bundleRank = 1;
+		for (Bundle<Venue> bundle : bundles) {
+			List<Venue> bundleVenues = bundle.getItems();
+
+			int venueRank = 1;
+			for (Venue venue : bundleVenues) {
+				StringBuilder stringBuilder = new StringBuilder();
+				stringBuilder.append(userId + "_" + locationId + " " + bundleRank + "." + venueRank + " " + venue.getId() + " " + contextualBundleBuilder.score(bundle));
+
+				// Computation of the venues rated by the user that are
+				// topically similar to the current venue and got a good
+				// rating by this user.
+				Collection<Venue> similarRelevantVenues = contextualBundleBuilder.findSimilarRelevantVenues(venue);
+				if (!similarRelevantVenues.isEmpty()) {
+					boolean firstIteration = true;
+					for (Venue similarRelevantVenue : similarRelevantVenues) {
+						if (firstIteration) {
+							// No "#" to append in the first iteration.
+							stringBuilder.append(" " + similarRelevantVenue.getId());
+							firstIteration = false;
+						} else {
+							stringBuilder.append("#" + similarRelevantVenue.getId());
+						}
+					}
+				}
+
+				printWriter.println(stringBuilder.toString());
+
+				venueRank++;
+			}
+
+			bundleRank++;
+		}
+	}
+	
+	/**
+	 * This method creates the bundles suggested to a user in a context and
+	 * gives the lines describing them.
+	 * 
+	 * @param userId the id of the user
+	 * @param user the user
+	 * @param locationId the id of the context
+	 * @param ratedVenues the venues rated by the user (it can contain other
+	 * venues as well)
+	 * @param localVenues the venues located in the context
+	 * @param categories the Foursquare categories
+	 * @param bundleToReturnNb the number of bundles to return
+	 * @param venuesPerBundleNb the number of venues per bundle
+	 * @param bundleToCreateNb the number of bundles to create
+	 * @param timeBudget the time budget of the creation of the bundles (in
+	 * milliseconds), or 0
+	 * @param workBudget the work budget of the creation of the bundles, or 0
+	 * @param maxBundleRadius the maximum radius of a bundle (in meters), or 0
+	 * @param prune a boolean indicating whether the creation of the bundles
+	 * stops as soon as no remaining bundle can be returned
+	 * @param verbose a boolean indicating whether information about the
+	 * execution is printed
+	 * 
+	 * @return the lines describing the bundles (see writeBundles)
+	 */
+	public static String suggestBundles(String userId, User user, String locationId, Map<String, Venue> ratedVenues,
+			Map<String, Venue> localVenues, Map<String, Category> categories, int bundleToReturnNb, int venuesPerBundleNb, 
+			int bundleToCreateNb, long timeBudget, long workBudget, double maxBundleRadius, boolean prune, boolean verbose) {
+		ContextualBundleBuilder contextualBundleBuilder = new ContextualBundleBuilder();
+		contextualBundleBuilder.setRatedVenues(ratedVenues);
+		contextualBundleBuilder.setLocalVenues(localVenues);
+		contextualBundleBuilder.setCategories(categories);
+		contextualBundleBuilder.setUser(user);
+		contextualBundleBuilder.setTimeBudget(timeBudget);
+		contextualBundleBuilder.setWorkBudget(workBudget);
+		contextualBundleBuilder.setMaxBundleRadius(maxBundleRadius);
+		contextualBundleBuilder.computeVenueStats();
+		contextualBundleBuilder.bobo(venuesPerBundleNb, bundleToCreateNb, prune ? bundleToReturnNb : 0);
+		contextualBundleBuilder.chooseBundles(bundleToReturnNb);
+		Collection<Bundle<Venue>> bundles = contextualBundleBuilder.getChosenBundles();
+		
+		if (verbose && contextualBundleBuilder.isTruncated()) {
+			// The budget ran out before all the bundles were created.
+			System.out.println("Truncated: userId: " + userId + ", contextId: " + locationId);
+		}
+		
+		StringWriter stringWriter = new StringWriter();
+		PrintWriter printWriter = new PrintWriter(stringWriter);
+		writeBundles(printWriter, userId, locationId, contextualBundleBuilder, bundles);
+		printWriter.close();
+		return stringWriter.toString();
+	}
+	
+	/**
+	 * This method writes the output of a user-context pair in the output
+	 * file. In shard mode, the pair and its number of lines are also written
+	 * in the pair file, so that the outputs of the shards can be merged.
+	 * 
+	 * @param outputFilePath the path to the output file
+	 * @param appendToOutputFile a boolean indicating whether the output is
+	 * appended to the output file
+	 * @param shardPlan the shard plan, or null
+	 * @param sequenceNumber the position of the pair among all the pairs
+	 * @param userId the id of the user
+	 * @param locationId the id of the context
+	 * @param output the lines describing the bundles of the pair
+	 */
+	public static void writePairOutput(String outputFilePath, boolean appendToOutputFile, ShardPlan shardPlan,
+			int sequenceNumber, String userId, String locationId, String output) throws IOException {
+		FileWriter fileWriter = new FileWriter(outputFilePath, appendToOutputFile);
+		fileWriter.write(output);
+		fileWriter.close();
+		
+		if (shardPlan != null) {
+			int lineNb = 0;
+			for (int i = 0; i < output.length(); i++) {
+				if (output.charAt(i) == '\n') {
+					lineNb++;
+				}
+			}
+			PrintWriter pairWriter = new PrintWriter(new FileWriter(RunFileMerger.getPairFilePath(outputFilePath), true));
+			pairWriter.println(sequenceNumber + "\t" + userId + "\t" + locationId + "\t" + lineNb);
+			pairWriter.close();
+		}
+	}
+	
+	/**
+	 * This method parses the specification of a parameter grid and builds
+	 * the list of all the configurations of the grid. The specification is a
+	 * list of parameters separated by semicolons, each parameter being given
+	 * one or several values separated by commas (e.g. 
+	 * "nbunret=5,10;nvenpbun=3,5;ceapp=1,5,10"). The parameters are nbunret,
+	 * nvenpbun, nbuncreate, copop, ctcoh and ceapp; the parameters that are
+	 * not in the grid take their value from the program options.
+	 * 
+	 * @param gridSpec the specification of the grid
+	 * @param bundleToReturnNb the default number of bundles to return
+	 * @param venuesPerBundleNb the default number of venues per bundle
+	 * @param bundleToCreateNb the default number of bundles to create; 0
+	 * means 10 times the number of bundles to return
+	 * 
+	 * @return the configurations of the grid
+	 */
+	public static List<SuggestionParameters> parseSweepGrid(String gridSpec, int bundleToReturnNb, int venuesPerBundleNb, int bundleToCreateNb) {
+		// grid maps each parameter with its values.
+		Map<String, String[]> grid = new HashMap<String, String[]>();
+		grid.put("nbunret", new String[] {Integer.toString(bundleToReturnNb)});
+		grid.put("nvenpbun", new String[] {Integer.toString(venuesPerBundleNb)});
+		grid.put("nbuncreate", new String[] {Integer.toString(bundleToCreateNb)});
+		grid.put("copop", new String[] {"1.0"});
+		grid.put("ctcoh", new String[] {"1.0"});
+		grid.put("ceapp", new String[] {"10.0"});
+		
+		for (String parameterSpec : gridSpec.split(";")) {
+			if (!parameterSpec.trim().equals("")) {
+				// values[0] is the name of the parameter and values[1] its
+				// values.
+				String[] values = parameterSpec.split("=");
+				String parameter = values[0].trim();
+				if (values.length != 2 || !grid.containsKey(parameter)) {
+					throw new IllegalArgumentException("Invalid grid parameter: " + parameterSpec);
+				}
+				grid.put(parameter, values[1].trim().split("\\s*,\\s*"));
+			}
+		}
+		
+		// Construction of the cartesian product of the values.
+		List<SuggestionParameters> configurations = new ArrayList<SuggestionParameters>();
+		for (String nbunret : grid.get("nbunret")) {
+			for (String nvenpbun : grid.get("nvenpbun")) {
+				for (String nbuncreate : grid.get("nbuncreate")) {
+					for (String copop : grid.get("copop")) {
+						for (String ctcoh : grid.get("ctcoh")) {
+							for (String ceapp : grid.get("ceapp")) {
+								int configurationBundleToReturnNb = Integer.parseInt(nbunret);
+								int configurationBundleToCreateNb = Integer.parseInt(nbuncreate);
+								if (configurationBundleToCreateNb == 0) {
+									configurationBundleToCreateNb = 10*configurationBundleToReturnNb;
+								}
+								configurations.add(new SuggestionParameters(configurationBundleToReturnNb, Integer.parseInt(nvenpbun),
+										configurationBundleToCreateNb, Double.parseDouble(copop), Double.parseDouble(ctcoh), Double.parseDouble(ceapp)));
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		return configurations;
+	}
+	
+	/**
+	 * This method estimates the cost of a user-context pair, in number of
+	 * comparisons between venues. The eapp of each local venue is computed
+	 * by comparing the venue with every venue rated by the user, and each
+	 * bundle is built by scanning the remaining local venues once for each
+	 * venue to add to the pivot. The number of bundles is bounded by the
+	 * number of local venues divided by the number of venues per bundle, so
+	 * that the cost grows quadratically with the number of local venues up to
+	 * this bound.
+	 * 
+	 * @param localVenueNb the number of venues located in the context
+	 * @param ratedVenueNb the number of venues rated by the user
+	 * @param venuesPerBundleNb the number of venues per bundle
+	 * @param bundleToCreateNb the number of bundles to create
+	 * 
+	 * @return the estimated cost of the pair
+	 */
+	public static long estimatePairCost(int localVenueNb, int ratedVenueNb, int venuesPerBundleNb, int bundleToCreateNb) {
+		long bundleNb = Math.min(bundleToCreateNb, (localVenueNb + venuesPerBundleNb - 1)/Math.max(venuesPerBundleNb, 1));
+		return (long) localVenueNb*ratedVenueNb + bundleNb*venuesPerBundleNb*localVenueNb;
+	}
+	
+	/**
+	 * This method assigns the user-context pairs to the shards. The pairs are
+	 * numbered in the order in which they are processed by a single process,
+	 * and the cost of each pair is estimated with estimatePairCost.
+	 * 
+	 * @param shardPlan the shard plan
+	 * @param users the users to process
+	 * @param locations the contexts to process
+	 * @param venuePerCityDirectoryPath the path to the venue per city id
+	 * directory, or null
+	 * @param venueLocationIndex the index of the venue locations
+	 * @param contextRadius the radius (in meters) around a context within
+	 * which its venues are found with venueLocationIndex
+	 * @param venuesPerBundleNb the number of venues per bundle
+	 * @param bundleToCreateNb the number of bundles to create
+	 */
+	public static void planShards(ShardPlan shardPlan, Map<String, User> users, Map<String, Location> locations, 
+			String venuePerCityDirectoryPath, VenueLocationIndex venueLocationIndex, double contextRadius,
+			int venuesPerBundleNb, int bundleToCreateNb) {
+		List<String> pairKeys = new ArrayList<String>();
+		List<Long> pairCosts = new ArrayList<Long>();
+		for (String locationId : locations.keySet()) {
+			int localVenueNb = getLocatedIdHandler(locations.get(locationId), venuePerCityDirectoryPath, 
+					venueLocationIndex, contextRadius).getLocatedIds().size();
+			for (String userId : users.keySet()) {
+				User user = users.get(userId);
+				pairKeys.add(userId + "_" + locationId);
+				pairCosts.add(estimatePairCost(localVenueNb, user == null ? 0 : user.getVenueRatings().size(), 
+						venuesPerBundleNb, bundleToCreateNb));
+			}
+		}
+		shardPlan.assign(pairKeys, pairCosts);
+	}
+	
+	/**
+	 * This method gives the file listing the ids of the venues located in a
+	 * context, i.e. the file of the city of the context in the venue per city
+	 * id directory.
+	 * 
+	 * @param location a location (i.e. context)
+	 * @param venuePerCityDirectoryPath the path to the venue per city id
+	 * directory, or null
+	 * 
+	 * @return the file listing the venue ids of the context, or null if there
+	 * is no such file (e.g. for an ad-hoc context)
+	 */
+	public static File getLocatedIdFile(Location location, String venuePerCityDirectoryPath) {
+		if (venuePerCityDirectoryPath == null || location.getName() == null) {
+			return null;
+		}
+		File locatedIdFile = new File(venuePerCityDirectoryPath + File.separator + location.getName() + ".ids.filtered");
+		return locatedIdFile.isFile() ? locatedIdFile : null;
+	}
+	
+	/**
+	 * This method fetches the ids of the venues located in a context. They
+	 * are read from the file of the city of the context when there is one,
+	 * which is the fast path, and are otherwise the ids of the venues located
+	 * within a radius of the context.
+	 * 
+	 * @param location a location (i.e. context)
+	 * @param venuePerCityDirectoryPath the path to the venue per city id
+	 * directory, or null
+	 * @param venueLocationIndex the index of the venue locations
+	 * @param contextRadius the radius in meters
+	 * 
+	 * @return the handler containing the ids of the venues of the context
+	 */
+	public static LocatedIdHandler getLocatedIdHandler(Location location, String venuePerCityDirectoryPath,
+			VenueLocationIndex venueLocationIndex, double contextRadius) {
+		LocatedIdHandler locatedIdHandler = new LocatedIdHandler();
+		File locatedIdFile = getLocatedIdFile(location, venuePerCityDirectoryPath);
+		if (locatedIdFile != null) {
+			locatedIdHandler.parseLocatedIds(locatedIdFile.getPath());
+		} else {
+			locatedIdHandler.findLocatedIds(location, venueLocationIndex, contextRadius);
+		}
+		return locatedIdHandler;
+	}
+	
+	/**
+	 * This method loads the index of the venue locations from its file when
+	 * it exists, and otherwise builds it from the venues and saves it in the
+	 * file if a path is given.
+	 * 
+	 * @param venueDirectoryPath the path to the Foursquare venue directory
+	 * @param indexFilePath the path to the index file, or null
+	 * @param verbose a boolean indicating whether information about the
+	 * execution is printed
+	 * 
+	 * @return the index of the venue locations
+	 */
+	public static VenueLocationIndex loadVenueLocationIndex(String venueDirectoryPath, String indexFilePath, boolean verbose) throws IOException {
+		long beginTime = System.currentTimeMillis();
+		
+		VenueLocationIndex venueLocationIndex = new VenueLocationIndex();
+		if (indexFilePath != null && new File(indexFilePath).isFile()) {
+			venueLocationIndex.load(indexFilePath);
+		} else {
+			venueLocationIndex.parseVenueLocations(venueDirectoryPath);
+			if (indexFilePath != null) {
+				venueLocationIndex.save(indexFilePath);
+			}
+		}
+		
+		if (verbose) {
+			System.out.println("Venue location index: " + venueLocationIndex.size() + " venue(s) indexed in " + 
+					(System.currentTimeMillis() - beginTime) + " ms");
+		}
+		
+		return venueLocationIndex;
+	}
+	
+	/**
+	 * This method gives the path of the output file of a configuration in
+	 * sweep mode. The description of the configuration is inserted before
+	 * the extension of the output file path.
+	 * 
+	 * @param outputFilePath the path to the output file
+	 * @param configuration a configuration of the parameters
+	 * 
+	 * @return the path to the output file of the configuration
+	 */
+	public static String getSweepOutputFilePath(String outputFilePath, SuggestionParameters configuration) {
+		String extension = FilenameUtils.getExtension(outputFilePath);
+		return FilenameUtils.removeExtension(outputFilePath) + "_" + configuration + 
+				(extension.equals("") ? "" : "." + extension);
+	}
+	
+	/**
+	 * This method runs all the configurations of a parameter grid for each
+	 * user-context pair. The venues are fetched once, and the distances
+	 * between categories are shared by all the user-context pairs. For each
+	 * pair, a single builder is used so that the estimated appreciations are
+	 * shared by all the configurations; the bundles are created once for each
+	 * pair of values of nvenpbun and nbuncreate and then ranked again for
+	 * each value of nbunret and of the weights. The users of a context are
+	 * processed in parallel, and the output of each configuration is written
+	 * in its own file in the same order as in a single run.
+	 * 
+	 * @param users the users to process
+	 * @param locations the contexts to process
+	 * @param categoryHandler the handler of the Foursquare categories, which
+	 * black list is used to filter the venues
+	 * @param venueDirectoryPath the path to the Foursquare venue directory
+	 * @param venuePerCityDirectoryPath the path to the venue per city id
+	 * directory, or null
+	 * @param venueLocationIndex the index of the venue locations, used for
+	 * the contexts which venue ids are not listed in a file; it can be null
+	 * if all of them are
+	 * @param contextRadius the radius (in meters) around a context within
+	 * which its venues are found with venueLocationIndex
+	 * @param outputFilePath the path to the output file
+	 * @param appendToOutputFile a boolean indicating whether the output is
+	 * appended to the output files
+	 * @param configurations the configurations to run
+	 * @param timeBudget the time budget of each creation of the bundles (in
+	 * milliseconds), or 0
+	 * @param workBudget the work budget of each creation of the bundles, or 0
+	 * @param maxBundleRadius the maximum radius of a bundle (in meters), or 0
+	 * @param threadNb the number of threads
+	 * @param verbose a boolean indicating whether information about the
+	 * execution is printed
+	 */
+	public static void sweep(Map<String, User> users, Map<String, Location> locations, CategoryHandler categoryHandler,
+			String venueDirectoryPath, String venuePerCityDirectoryPath, VenueLocationIndex venueLocationIndex, double contextRadius,
+			String outputFilePath, boolean appendToOutputFile,
+			List<SuggestionParameters> configurations, final long timeBudget, final long workBudget, final double maxBundleRadius,
+			int threadNb, boolean verbose) throws IOException, InterruptedException {
+		// The venues rated by all the users are fetched once.
+		Set<String> ratedVenueIds = new HashSet<String>();
+		for (User user : users.values()) {
+			ratedVenueIds.addAll(user.getVenueRatings().keySet());
+		}
+		final Map<String, Category> categories = categoryHandler.getCategories();
+		VenueHandler venueHandler = new VenueHandler();
+		venueHandler.setCategoryHandler(categoryHandler);
+		venueHandler.parseVenues(venueDirectoryPath, false, ratedVenueIds); // No filtering of venues.
+		final Map<String, Venue> ratedVenues = venueHandler.getVenues();
+		
+		// configurationGroups gathers the configurations that share the same
+		// values of nvenpbun and nbuncreate, and thus the same candidate
+		// bundles.
+		final Map<String, List<SuggestionParameters>> configurationGroups = new LinkedHashMap<String, List<SuggestionParameters>>();
+		for (SuggestionParameters configuration : configurations) {
+			String groupKey = configuration.getVenuesPerBundleNb() + "_" + configuration.getBundleToCreateNb();
+			if (configurationGroups.get(groupKey) == null) {
+				configurationGroups.put(groupKey, new ArrayList<SuggestionParameters>());
+			}
+			configurationGroups.get(groupKey).add(configuration);
+		}
+		
+		// The output files are overwritten unless the output is appended.
+		for (SuggestionParameters configuration : configurations) {
+			new FileWriter(getSweepOutputFilePath(outputFilePath, configuration), appendToOutputFile).close();
+		}
+		
+		// categoryDistances is shared by all the user-context pairs.
+		final CategoryDistanceCache categoryDistances = new CategoryDistanceCache();
+		ExecutorService executor = Executors.newFixedThreadPool(threadNb);
+		
+		try {
+			for (final String locationId : locations.keySet()) {
+				Location location = locations.get(locationId);
+				
+				// Fetching the venues located in the current location.
+				LocatedIdHandler locatedIdHandler = getLocatedIdHandler(location, venuePerCityDirectoryPath, venueLocationIndex, contextRadius);
+				venueHandler.parseVenues(venueDirectoryPath, true, locatedIdHandler.getLocatedIds()); // Filtering of venues with blacklisted categories.
+				final Map<String, Venue> localVenues = venueHandler.getVenues();
+				
+				// The users are processed in parallel. Each task gives the
+				// output of each configuration for its user.
+				List<Future<Map<SuggestionParameters, String>>> outputs = new ArrayList<Future<Map<SuggestionParameters, String>>>();
+				for (final String userId : users.keySet()) {
+					final User user = users.get(userId);
+					outputs.add(executor.submit(new Callable<Map<SuggestionParameters, String>>() {
+						public Map<SuggestionParameters, String> call() {
+							Map<SuggestionParameters, String> output = new HashMap<SuggestionParameters, String>();
+							
+							ContextualBundleBuilder contextualBundleBuilder = new ContextualBundleBuilder();
+							contextualBundleBuilder.setRatedVenues(ratedVenues);
+							contextualBundleBuilder.setCategories(categories);
+							contextualBundleBuilder.setCategoryDistanceCache(categoryDistances);
+							contextualBundleBuilder.setUser(user);
+							contextualBundleBuilder.setTimeBudget(timeBudget);
+							contextualBundleBuilder.setWorkBudget(workBudget);
+							contextualBundleBuilder.setMaxBundleRadius(maxBundleRadius);
+							
+							for (List<SuggestionParameters> configurationGroup : configurationGroups.values()) {
+								// The candidate bundles are created once for
+								// the configurations of the group.
+								SuggestionParameters groupConfiguration = configurationGroup.get(0);
+								contextualBundleBuilder.setLocalVenues(localVenues);
+								contextualBundleBuilder.computeVenueStats();
+								contextualBundleBuilder.bobo(groupConfiguration.getVenuesPerBundleNb(), groupConfiguration.getBundleToCreateNb());
+								
+								for (SuggestionParameters configuration : configurationGroup) {
+									List<Bundle<Venue>> bundles = contextualBundleBuilder.rerankBundles(configuration.getCOpop(), 
+											configuration.getCTcoh(), configuration.getCEapp(), configuration.getBundleToReturnNb());
+									
+									StringWriter stringWriter = new StringWriter();
+									PrintWriter printWriter = new PrintWriter(stringWriter);
+									writeBundles(printWriter, userId, locationId, contextualBundleBuilder, bundles);
+									printWriter.close();
+									output.put(configuration, stringWriter.toString());
+								}
+							}
+							
+							return output;
+						}
+					}));
+				}
+				
+				// The outputs are written in the order of the users.
+				int userCount = 0;
+				for (Future<Map<SuggestionParameters, String>> output : outputs) {
+					Map<SuggestionParameters, String> configurationOutputs = output.get();
+					for (SuggestionParameters configuration : configurations) {
+						FileWriter fileWriter = new FileWriter(getSweepOutputFilePath(outputFilePath, configuration), true);
+						fileWriter.write(configurationOutputs.get(configuration));
+						fileWriter.close();
+					}
+					
+					userCount++;
+					if (verbose) {
+						// Displaying the progress of the execution.
+						System.out.println("[" + userCount + "/" + users.size() + "] contextId: " + locationId + 
+								", " + configurations.size() + " configuration(s)");
+					}
+				}
+			}
+		} catch (ExecutionException exception) {
+			throw new RuntimeException(exception.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * This method processes the user-context pairs in parallel, the most
+	 * expensive ones first (see PairScheduler). The cost of each pair is
+	 * estimated with estimatePairCost. The venues rated by all the users are
+	 * fetched once, and the venues of a context are fetched when its first
+	 * pair starts and released when its last pair ends. The output is written
+	 * in the same order as in a single-threaded run. In verbose mode, the
+	 * predicted makespan is printed along with the actual one; it is
+	 * converted from estimated cost into time with the average time per unit
+	 * of cost measured during the run.
+	 * 
+	 * @param users the users to process
+	 * @param locations the contexts to process
+	 * @param categoryHandler the handler of the Foursquare categories, which
+	 * black list is used to filter the venues
+	 * @param venueDirectoryPath the path to the Foursquare venue directory
+	 * @param venuePerCityDirectoryPath the path to the venue per city id
+	 * directory, or null
+	 * @param venueLocationIndex the index of the venue locations, used for
+	 * the contexts which venue ids are not listed in a file; it can be null
+	 * if all of them are
+	 * @param contextRadius the radius (in meters) around a context within
+	 * which its venues are found with venueLocationIndex
+	 * @param outputFilePath the path to the output file
+	 * @param appendToOutputFile a boolean indicating whether the output is
+	 * appended to the output file
+	 * @param shardPlan the shard plan, or null to process all the pairs
+	 * @param bundleToReturnNb the number of bundles to return
+	 * @param venuesPerBundleNb the number of venues per bundle
+	 * @param bundleToCreateNb the number of bundles to create
+	 * @param timeBudget the time budget of each pair (in milliseconds), or 0
+	 * @param workBudget the work budget of each pair, or 0
+	 * @param maxBundleRadius the maximum radius of a bundle (in meters), or 0
+	 * @param prune a boolean indicating whether the creation of the bundles
+	 * stops as soon as no remaining bundle can be returned
+	 * @param threadNb the number of threads
+	 * @param verbose a boolean indicating whether information about the
+	 * execution is printed
+	 */
+	public static void schedule(Map<String, User> users, Map<String, Location> locations, CategoryHandler categoryHandler,
+			String venueDirectoryPath, String venuePerCityDirectoryPath, VenueLocationIndex venueLocationIndex, double contextRadius,
+			String outputFilePath, boolean appendToOutputFile, ShardPlan shardPlan, final int bundleToReturnNb, final int venuesPerBundleNb,
+			final int bundleToCreateNb, final long timeBudget, final long workBudget, final double maxBundleRadius, final boolean prune,
+			int threadNb, final boolean verbose) throws IOException, InterruptedException {
+		// The venues rated by all the users are fetched once.
+		Set<String> ratedVenueIds = new HashSet<String>();
+		for (User user : users.values()) {
+			ratedVenueIds.addAll(user.getVenueRatings().keySet());
+		}
+		final Map<String, Category> categories = categoryHandler.getCategories();
+		VenueHandler venueHandler = new VenueHandler();
+		venueHandler.setCategoryHandler(categoryHandler);
+		venueHandler.parseVenues(venueDirectoryPath, false, ratedVenueIds); // No filtering of venues.
+		final Map<String, Venue> ratedVenues = venueHandler.getVenues();
+		
+		// pairSequenceNumbers, pairUserIds and pairLocationIds describe the
+		// pairs to process, in the order of their tasks.
+		PairScheduler<String> scheduler = new PairScheduler<String>(threadNb);
+		List<Integer> pairSequenceNumbers = new ArrayList<Integer>();
+		List<String> pairUserIds = new ArrayList<String>();
+		List<String> pairLocationIds = new ArrayList<String>();
+		
+		int sequenceNumber = 0;
+		for (final String locationId : locations.keySet()) {
+			Collection<String> locatedIds = getLocatedIdHandler(locations.get(locationId), venuePerCityDirectoryPath, 
+					venueLocationIndex, contextRadius).getLocatedIds();
+			final ContextVenues contextVenues = new ContextVenues(categoryHandler, venueDirectoryPath, locatedIds);
+			
+			for (final String userId : users.keySet()) {
+				final User user = users.get(userId);
+				if (shardPlan == null || shardPlan.isAssigned(sequenceNumber)) {
+					contextVenues.addPair();
+					scheduler.addTask(new Callable<String>() {
+						public String call() {
+							Map<String, Venue> localVenues = contextVenues.acquire();
+							try {
+								return suggestBundles(userId, user, locationId, ratedVenues, localVenues, categories, bundleToReturnNb, 
+										venuesPerBundleNb, bundleToCreateNb, timeBudget, workBudget, maxBundleRadius, prune, verbose);
+							} finally {
+								contextVenues.release();
+							}
+						}
+					}, estimatePairCost(locatedIds.size(), user.getVenueRatings().size(), venuesPerBundleNb, bundleToCreateNb));
+					pairSequenceNumbers.add(sequenceNumber);
+					pairUserIds.add(userId);
+					pairLocationIds.add(locationId);
+				}
+				sequenceNumber++;
+			}
+		}
+		
+		if (verbose) {
+			System.out.println("Schedule: " + scheduler.getTaskNb() + " pair(s) on " + threadNb + " thread(s), estimated cost " + 
+					scheduler.getTotalCost());
+		}
+		
+		List<Future<String>> outputs = scheduler.run();
+		try {
+			// The outputs are written in the order of the pairs.
+			for (int i = 0; i < outputs.size(); i++) {
+				String output = outputs.get(i).get();
+				// The output file is overwritten by the first pair unless the
+				// output is appended or has been created for the shard.
+				writePairOutput(outputFilePath, i == 0 && shardPlan == null ? appendToOutputFile : true, 
+						shardPlan, pairSequenceNumbers.get(i), pairUserIds.get(i), pairLocationIds.get(i), output);
+				
+				if (verbose) {
+					// Displaying the progress of the execution.
+					System.out.println("[" + (i + 1) + "/" + outputs.size() + "] userId: " + pairUserIds.get(i) + 
+							", contextId: " + pairLocationIds.get(i));
+				}
+			}
+		} catch (ExecutionException exception) {
+			throw new RuntimeException(exception.getCause());
+		}
+		
+		if (verbose && scheduler.getTaskNb() > 0) {
+			// timePerCost is the average time (in nanoseconds) spent per unit
+			// of estimated cost.
+			long totalTime = 0;
+			for (long taskTime : scheduler.getTaskTimes()) {
+				totalTime += taskTime;
+			}
+			double timePerCost = scheduler.getTotalCost() == 0 ? 0 : (double) totalTime/scheduler.getTotalCost();
+			DecimalFormat decimalFormat = new DecimalFormat("0.000");
+			System.out.println("Predicted makespan: " + decimalFormat.format(scheduler.predictMakespan(true)*timePerCost/1e9) + 
+					" second(s) (in the order of the pairs: " + decimalFormat.format(scheduler.predictMakespan(false)*timePerCost/1e9) + 
+					" second(s))");
+			System.out.println("Actual makespan: " + decimalFormat.format(scheduler.getMakespan()/1e9) + " second(s), busy time " + 
+					decimalFormat.format(totalTime/1e9) + " second(s)");
+		}
+	}
 
 }
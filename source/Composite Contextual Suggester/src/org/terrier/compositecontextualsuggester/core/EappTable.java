@@ -0,0 +1,152 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.terrier.compositecontextualsuggester.util.Venue;
+
+/**
+ * This class is an implementation of a table of the estimated appreciations
+ * (eapp) of venues for a user. The eapp of a venue is the weighted average
+ * of the ratings of the user, the weights being the topical similarities
+ * (tsim) between the venue and the rated venues: the table keeps, for each
+ * venue, the numerator (the sum of the weighted ratings) and the denominator
+ * (the sum of the weights) of this average. When the user adds, changes or
+ * removes a rating, the numerator and the denominator of each venue change by
+ * one term, so that the table can be updated without computing the eapps
+ * again (see ContextualBundleBuilder.updateRating).
+ * The table is tied to the ratings it has been computed from through their
+ * fingerprint (see User.getRatingFingerprint). An entry is only valid for
+ * the instance of the venue it has been computed for, so that the entries of
+ * venues which data have been fetched again are computed again. The table can
+ * be read and filled concurrently by several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class EappTable {
+
+	// MIN_DENOMINATOR is the value under which a denominator is considered as
+	// 0: the similarities being at least the inverse of the height of the
+	// category tree, a denominator below this value only results from the
+	// rounding errors left by the removal of all the terms.
+	private static final double MIN_DENOMINATOR = 1e-9;
+
+	// ratingFingerprint is the fingerprint of the ratings the table has been
+	// computed from.
+	private long ratingFingerprint;
+	// entries maps the id of each venue which eapp has been computed with its
+	// entry.
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// An entry contains the numerator and the denominator of the eapp of a
+	// venue. An entry is never modified: it is replaced when it changes.
+	private static class Entry {
+		private Venue venue;
+		private double numerator;
+		private double denominator;
+		private double eapp;
+
+		private Entry(Venue venue, double numerator, double denominator) {
+			if (Math.abs(denominator) < MIN_DENOMINATOR) {
+				numerator = 0;
+				denominator = 0;
+			}
+			this.venue = venue;
+			this.numerator = numerator;
+			this.denominator = denominator;
+			// The eapp of a venue which is not similar to any venue the user
+			// was able to rate is not defined.
+			this.eapp = denominator == 0 ? Double.NaN : numerator/denominator;
+		}
+	}
+
+	public EappTable() {
+	}
+
+	public EappTable(long ratingFingerprint) {
+		this.ratingFingerprint = ratingFingerprint;
+	}
+
+	public long getRatingFingerprint() {
+		return ratingFingerprint;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * This method gives the eapp of a venue.
+	 *
+	 * @param venue a venue
+	 *
+	 * @return the eapp of the venue, or null if it is not in the table
+	 */
+	public Double getEapp(Venue venue) {
+		Entry entry = entries.get(venue.getId());
+		return entry == null || entry.venue != venue ? null : entry.eapp;
+	}
+
+	/**
+	 * This method puts the eapp of a venue in the table.
+	 *
+	 * @param venue a venue
+	 * @param numerator the sum of the ratings weighted by the similarity
+	 * between the venue and the rated venues
+	 * @param denominator the sum of the similarities between the venue and
+	 * the rated venues
+	 *
+	 * @return the eapp of the venue
+	 */
+	public double put(Venue venue, double numerator, double denominator) {
+		Entry entry = new Entry(venue, numerator, denominator);
+		entries.put(venue.getId(), entry);
+		return entry.eapp;
+	}
+
+	/**
+	 * This method adds a term to the numerator and to the denominator of the
+	 * eapp of a venue of the table.
+	 *
+	 * @param venue a venue of the table
+	 * @param numeratorTerm the term added to the numerator
+	 * @param denominatorTerm the term added to the denominator
+	 */
+	public void addTerm(Venue venue, double numeratorTerm, double denominatorTerm) {
+		Entry entry = entries.get(venue.getId());
+		if (entry != null && entry.venue == venue) {
+			entries.put(venue.getId(), new Entry(venue, entry.numerator + numeratorTerm, entry.denominator + denominatorTerm));
+		}
+	}
+
+	/**
+	 * This method gives the venues of the table.
+	 *
+	 * @return a copy of the venues which eapp is in the table
+	 */
+	public Collection<Venue> getVenues() {
+		Collection<Venue> venues = new ArrayList<Venue>();
+		for (Entry entry : entries.values()) {
+			venues.add(entry.venue);
+		}
+		return venues;
+	}
+
+	/**
+	 * This method copies the table, e.g. so that the copy can be updated for
+	 * new ratings while the table is still used for the former ones.
+	 *
+	 * @param ratingFingerprint the fingerprint of the ratings of the copy
+	 *
+	 * @return a copy of the table
+	 */
+	public EappTable copy(long ratingFingerprint) {
+		EappTable eappTable = new EappTable(ratingFingerprint);
+		eappTable.entries.putAll(entries);
+		return eappTable;
+	}
+
+}
@@ -0,0 +1,211 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class is an implementation of a scheduler of independent tasks (e.g.
+ * the processing of the user-context pairs of a run) on a pool of threads,
+ * driven by an estimate of the cost of each task. The tasks are dispatched
+ * with the longest processing time first rule: they are queued by decreasing
+ * estimated cost, and each thread of the pool takes the next task of the
+ * queue as soon as it is idle. The most expensive tasks are thus started
+ * first, and the cheap ones fill the gaps at the end of the run instead of
+ * leaving a single thread processing an expensive task alone.
+ * The scheduler predicts the makespan (i.e. the time from the beginning of
+ * the first task to the end of the last one) by simulating the dispatch with
+ * the estimated costs, and measures the actual makespan and the actual time
+ * of each task.
+ *
+ * @author Thibaut Thonet
+ *
+ * @param <T> the type of the results of the tasks.
+ *
+ */
+public class PairScheduler<T> {
+
+	private int threadNb;
+
+	// tasks contains the tasks in the order in which they have been added,
+	// and taskCosts their estimated costs.
+	private List<Callable<T>> tasks = new ArrayList<Callable<T>>();
+	private List<Long> taskCosts = new ArrayList<Long>();
+
+	// taskTimes contains the actual time (in nanoseconds) spent on each task
+	// during the last run, and makespan the actual makespan of this run (in
+	// nanoseconds).
+	private long[] taskTimes = new long[0];
+	private long makespan;
+
+	public PairScheduler(int threadNb) {
+		if (threadNb < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threadNb);
+		}
+		this.threadNb = threadNb;
+	}
+
+	public int getThreadNb() {
+		return threadNb;
+	}
+
+	public int getTaskNb() {
+		return tasks.size();
+	}
+
+	/**
+	 * This method adds a task to the scheduler.
+	 *
+	 * @param task the task
+	 * @param estimatedCost the estimated cost of the task, in an arbitrary
+	 * unit that must be the same for all the tasks
+	 *
+	 * @return the index of the task, i.e. the position of its result in the
+	 * list returned by run
+	 */
+	public int addTask(Callable<T> task, long estimatedCost) {
+		tasks.add(task);
+		taskCosts.add(estimatedCost);
+		return tasks.size() - 1;
+	}
+
+	/**
+	 * This method gives the indices of the tasks by decreasing estimated
+	 * cost, the tasks of equal cost being kept in the order in which they
+	 * have been added.
+	 *
+	 * @return the indices of the tasks in the order of their dispatch
+	 */
+	public List<Integer> getDispatchOrder() {
+		List<Integer> taskIndices = new ArrayList<Integer>();
+		for (int taskIndex = 0; taskIndex < tasks.size(); taskIndex++) {
+			taskIndices.add(taskIndex);
+		}
+		// Collections.sort is stable.
+		Collections.sort(taskIndices, new Comparator<Integer>() {
+			public int compare(Integer taskIndex1, Integer taskIndex2) {
+				long cost1 = taskCosts.get(taskIndex1);
+				long cost2 = taskCosts.get(taskIndex2);
+				return cost1 == cost2 ? 0 : (cost1 > cost2 ? -1 : 1);
+			}
+		});
+		return taskIndices;
+	}
+
+	/**
+	 * This method starts the tasks on a pool of threads, in the order given
+	 * by getDispatchOrder. The pool is shut down once all the tasks are
+	 * done.
+	 *
+	 * @return the futures of the results of the tasks, in the order in which
+	 * the tasks have been added
+	 */
+	public List<Future<T>> run() {
+		synchronized (this) {
+			taskTimes = new long[tasks.size()];
+			makespan = 0;
+		}
+		final long beginTime = System.nanoTime();
+
+		List<Future<T>> futures = new ArrayList<Future<T>>(Collections.<Future<T>>nCopies(tasks.size(), null));
+		ExecutorService executor = Executors.newFixedThreadPool(threadNb);
+		try {
+			// The queue of the pool is a FIFO queue: the idle threads take the
+			// tasks in the order of their submission.
+			for (final int taskIndex : getDispatchOrder()) {
+				final Callable<T> task = tasks.get(taskIndex);
+				futures.set(taskIndex, executor.submit(new Callable<T>() {
+					public T call() throws Exception {
+						long taskBeginTime = System.nanoTime();
+						try {
+							return task.call();
+						} finally {
+							long taskEndTime = System.nanoTime();
+							synchronized (PairScheduler.this) {
+								taskTimes[taskIndex] = taskEndTime - taskBeginTime;
+								makespan = Math.max(makespan, taskEndTime - beginTime);
+							}
+						}
+					}
+				}));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		return futures;
+	}
+
+	/**
+	 * This method gives the actual makespan of the last run. It must be
+	 * called once all the tasks are done.
+	 *
+	 * @return the actual makespan in nanoseconds
+	 */
+	public synchronized long getMakespan() {
+		return makespan;
+	}
+
+	/**
+	 * This method gives the actual time spent on each task during the last
+	 * run. It must be called once all the tasks are done.
+	 *
+	 * @return the time (in nanoseconds) of each task, in the order in which
+	 * the tasks have been added
+	 */
+	public synchronized long[] getTaskTimes() {
+		return taskTimes.clone();
+	}
+
+	/**
+	 * This method gives the sum of the estimated costs of the tasks.
+	 *
+	 * @return the total estimated cost
+	 */
+	public long getTotalCost() {
+		long totalCost = 0;
+		for (long taskCost : taskCosts) {
+			totalCost += taskCost;
+		}
+		return totalCost;
+	}
+
+	/**
+	 * This method predicts the makespan of the tasks by simulating their
+	 * dispatch on the threads of the pool: each task, taken in the given
+	 * order, is started by the thread that becomes idle first.
+	 *
+	 * @param longestFirst a boolean indicating whether the tasks are taken
+	 * by decreasing estimated cost (as in run) or in the order in which they
+	 * have been added
+	 *
+	 * @return the predicted makespan, in the unit of the estimated costs
+	 */
+	public long predictMakespan(boolean longestFirst) {
+		List<Integer> taskIndices = longestFirst ? getDispatchOrder() : null;
+		long[] threadLoads = new long[threadNb];
+		for (int i = 0; i < tasks.size(); i++) {
+			int taskIndex = longestFirst ? taskIndices.get(i) : i;
+
+			int idleThread = 0;
+			for (int thread = 1; thread < threadNb; thread++) {
+				if (threadLoads[thread] < threadLoads[idleThread]) {
+					idleThread = thread;
+				}
+			}
+			threadLoads[idleThread] += taskCosts.get(taskIndex);
+		}
+
+		long predictedMakespan = 0;
+		for (long threadLoad : threadLoads) {
+			predictedMakespan = Math.max(predictedMakespan, threadLoad);
+		}
+		return predictedMakespan;
+	}
+
+}
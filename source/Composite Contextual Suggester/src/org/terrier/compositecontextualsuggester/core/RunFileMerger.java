@@ -0,0 +1,208 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class is used to merge the outputs of the shards of a run (see
+ * ShardPlan) into a single run file, identical to the output of a single
+ * process. It contains a method main that performs the merge.
+ *
+ * The program is designed to be executed with the following options:
+ * -inputs <shard-output1> ... <shard-outputn>    Paths to the output files
+ *                                                of the shards.
+ * -output <output-file-path>                     Path to the merged run
+ *                                                file.
+ * -verbose                                       Print information about
+ *                                                the execution (optional).
+ *
+ * Each shard writes, next to its output file, a pair file (named after the
+ * output file followed by ".pairs"). Its first line is built according to
+ * the format "shard\tshardIndex/shardNb\tpairNb", where pairNb is the number
+ * of pairs of the whole run, and each following line describes a pair
+ * processed by the shard, in the order of the output file, according to the
+ * format "sequenceNumber\tuserId\tcontextId\tlineNb", where sequenceNumber
+ * is the position of the pair in the output of a single process and lineNb
+ * is the number of lines written for the pair. The merge checks that the
+ * outputs of all the shards are given and that each pair has been written
+ * once, and then writes the lines of the pairs in the order of their
+ * sequence numbers.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class RunFileMerger {
+
+	// PAIR_FILE_EXTENSION is appended to the path of the output file of a
+	// shard to give the path of its pair file.
+	public static final String PAIR_FILE_EXTENSION = ".pairs";
+
+	/**
+	 * This method gives the path of the pair file of a shard.
+	 *
+	 * @param outputFilePath the path to the output file of the shard
+	 *
+	 * @return the path to the pair file of the shard
+	 */
+	public static String getPairFilePath(String outputFilePath) {
+		return outputFilePath + PAIR_FILE_EXTENSION;
+	}
+
+	/**
+	 * This method merges the outputs of the shards of a run into a single run
+	 * file.
+	 *
+	 * @param shardOutputFilePaths the paths to the output files of the
+	 * shards
+	 * @param outputFilePath the path to the merged run file
+	 *
+	 * @return the number of pairs of the run
+	 */
+	public static int merge(List<String> shardOutputFilePaths, String outputFilePath) throws IOException {
+		// shardOutputs contains the content of the output file of each
+		// shard, and pairOutputs gives, for each pair, the shard and the
+		// offsets of the beginning and of the end of its lines.
+		byte[][] shardOutputs = new byte[shardOutputFilePaths.size()][];
+		int[][] pairOutputs = null;
+		boolean[] mergedShards = null;
+
+		for (int i = 0; i < shardOutputFilePaths.size(); i++) {
+			String shardOutputFilePath = shardOutputFilePaths.get(i);
+			shardOutputs[i] = FileUtils.readFileToByteArray(new File(shardOutputFilePath));
+			List<String> lines = FileUtils.readLines(new File(getPairFilePath(shardOutputFilePath)), "UTF-8");
+
+			// values[1] is the shard ("shardIndex/shardNb") and values[2] the
+			// number of pairs of the run.
+			String[] values = lines.isEmpty() ? new String[0] : lines.get(0).split("\t");
+			if (values.length != 3 || !values[0].equals("shard")) {
+				throw new IOException("Invalid pair file of " + shardOutputFilePath);
+			}
+			ShardPlan shardPlan = ShardPlan.parse(values[1]);
+			int pairNb = Integer.parseInt(values[2]);
+			if (pairOutputs == null) {
+				pairOutputs = new int[pairNb][];
+				mergedShards = new boolean[shardPlan.getShardNb()];
+			} else if (pairNb != pairOutputs.length || shardPlan.getShardNb() != mergedShards.length) {
+				throw new IOException("The shard " + shardOutputFilePath + " does not belong to the same run as the previous ones");
+			}
+			if (mergedShards[shardPlan.getShardIndex() - 1]) {
+				throw new IOException("The shard " + values[1] + " is given twice");
+			}
+			mergedShards[shardPlan.getShardIndex() - 1] = true;
+
+			// The lines of the output are assigned to the pairs in the order
+			// of the pair file.
+			int offset = 0;
+			for (String line : lines.subList(1, lines.size())) {
+				// values[0] is the sequence number of the pair and values[3]
+				// its number of lines.
+				values = line.split("\t");
+				int sequenceNumber = Integer.parseInt(values[0]);
+				int lineNb = Integer.parseInt(values[3]);
+				if (sequenceNumber < 0 || sequenceNumber >= pairNb || pairOutputs[sequenceNumber] != null) {
+					throw new IOException("Invalid or duplicated pair " + sequenceNumber + " in " + shardOutputFilePath);
+				}
+
+				int endOffset = offset;
+				for (int lineCount = 0; lineCount < lineNb; lineCount++) {
+					while (endOffset < shardOutputs[i].length && shardOutputs[i][endOffset] != '\n') {
+						endOffset++;
+					}
+					if (endOffset == shardOutputs[i].length) {
+						throw new IOException("The output of " + shardOutputFilePath + " is truncated");
+					}
+					endOffset++;
+				}
+				pairOutputs[sequenceNumber] = new int[] {i, offset, endOffset};
+				offset = endOffset;
+			}
+			if (offset != shardOutputs[i].length) {
+				throw new IOException("The output of " + shardOutputFilePath + " contains lines of no pair");
+			}
+		}
+
+		if (pairOutputs == null) {
+			throw new IOException("No shard to merge");
+		}
+		for (int shard = 0; shard < mergedShards.length; shard++) {
+			if (!mergedShards[shard]) {
+				throw new IOException("The output of the shard " + (shard + 1) + "/" + mergedShards.length + " is missing");
+			}
+		}
+
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFilePath));
+		try {
+			for (int sequenceNumber = 0; sequenceNumber < pairOutputs.length; sequenceNumber++) {
+				int[] pairOutput = pairOutputs[sequenceNumber];
+				if (pairOutput == null) {
+					throw new IOException("The pair " + sequenceNumber + " has not been written by any shard");
+				}
+				output.write(shardOutputs[pairOutput[0]], pairOutput[1], pairOutput[2] - pairOutput[1]);
+			}
+		} finally {
+			output.close();
+		}
+
+		return pairOutputs.length;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption(OptionBuilder.hasArgs(Option.UNLIMITED_VALUES).isRequired().withArgName("shard-output1> ... <shard-outputn").withDescription("Paths to the output files of the shards.").create("inputs"));
+		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("output-file-path").withDescription("Path to the merged run file.").create("output"));
+		options.addOption("verbose", false, "Print information about the execution (optional).");
+
+		try {
+			CommandLineParser parser = new GnuParser();
+			// Parsing of the program arguments.
+			CommandLine commandLine = parser.parse(options, args);
+
+			List<String> shardOutputFilePaths = Arrays.asList(commandLine.getOptionValues("inputs"));
+			String outputFilePath = commandLine.getOptionValue("output");
+			boolean verbose = commandLine.hasOption("verbose");
+
+			// Beginning of the execution.
+			long beginTime = System.currentTimeMillis();
+
+			int pairNb = merge(shardOutputFilePaths, outputFilePath);
+
+			// End of the execution.
+			long endTime = System.currentTimeMillis();
+
+			// Total execution time.
+			float totalTime = endTime - beginTime;
+			DecimalFormat decimalFormat = new DecimalFormat("0.000");
+			if (verbose) {
+				System.out.println(shardOutputFilePaths.size() + " shard(s), " + pairNb + " pair(s) merged in " + outputFilePath);
+				System.out.println("Execution time: " + decimalFormat.format(totalTime/1000) + " second(s)");
+			}
+		} catch(ParseException exception) {
+			System.out.print("Parsing error: ");
+			System.out.println(exception.getMessage());
+
+			// Displaying the usage.
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("java -cp composite-contextual-suggester.jar org.terrier.compositecontextualsuggester.core.RunFileMerger", options);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
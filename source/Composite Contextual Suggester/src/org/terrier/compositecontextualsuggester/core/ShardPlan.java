@@ -0,0 +1,169 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class is an implementation of the partition of a run into shards, so
+ * that the user-context pairs of a run can be processed by several processes
+ * (possibly on several machines) and the outputs merged afterwards (see
+ * RunFileMerger). The pairs are numbered in the order in which a single
+ * process writes them, and each pair is given an estimated cost. The pairs
+ * are assigned to the shards with the longest processing time first rule:
+ * the pairs are taken by decreasing cost, ties being broken by a stable hash
+ * of the pair, and each pair is assigned to the shard which total cost is
+ * the lowest so far. The assignment only depends on the pairs and their
+ * costs, so that every process computes the same partition without
+ * communicating with the others.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class ShardPlan {
+
+	// shardIndex is the index (from 1 to shardNb) of the shard processed by
+	// this process.
+	private int shardIndex;
+	private int shardNb;
+
+	// pairShards gives the shard (from 1 to shardNb) of each pair, indexed by
+	// the sequence number of the pair.
+	private int[] pairShards = new int[0];
+	// shardCosts gives the total cost of the pairs of each shard.
+	private long[] shardCosts;
+
+	public ShardPlan(int shardIndex, int shardNb) {
+		if (shardNb < 1 || shardIndex < 1 || shardIndex > shardNb) {
+			throw new IllegalArgumentException("Invalid shard: " + shardIndex + "/" + shardNb);
+		}
+		this.shardIndex = shardIndex;
+		this.shardNb = shardNb;
+		shardCosts = new long[shardNb];
+	}
+
+	/**
+	 * This static method creates a shard plan from its description, e.g.
+	 * "2/4" for the second shard of four.
+	 *
+	 * @param shardSpec the description of the shard
+	 *
+	 * @return the shard plan
+	 */
+	public static ShardPlan parse(String shardSpec) {
+		String[] values = shardSpec.split("/");
+		if (values.length != 2) {
+			throw new IllegalArgumentException("Invalid shard: " + shardSpec);
+		}
+		try {
+			return new ShardPlan(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()));
+		} catch (NumberFormatException exception) {
+			throw new IllegalArgumentException("Invalid shard: " + shardSpec);
+		}
+	}
+
+	public int getShardIndex() {
+		return shardIndex;
+	}
+
+	public int getShardNb() {
+		return shardNb;
+	}
+
+	/**
+	 * This method assigns the pairs to the shards.
+	 *
+	 * @param pairKeys the keys of the pairs (e.g. "userId_contextId"), in the
+	 * order of their sequence numbers
+	 * @param pairCosts the estimated costs of the pairs, in the same order
+	 */
+	public void assign(final List<String> pairKeys, final List<Long> pairCosts) {
+		pairShards = new int[pairKeys.size()];
+		shardCosts = new long[shardNb];
+
+		// sequenceNumbers contains the sequence numbers of the pairs, ordered
+		// by decreasing cost, then by hash and by key.
+		List<Integer> sequenceNumbers = new ArrayList<Integer>();
+		for (int sequenceNumber = 0; sequenceNumber < pairKeys.size(); sequenceNumber++) {
+			sequenceNumbers.add(sequenceNumber);
+		}
+		Collections.sort(sequenceNumbers, new Comparator<Integer>() {
+			public int compare(Integer sequenceNumber1, Integer sequenceNumber2) {
+				long cost1 = pairCosts.get(sequenceNumber1);
+				long cost2 = pairCosts.get(sequenceNumber2);
+				if (cost1 != cost2) {
+					return cost1 > cost2 ? -1 : 1;
+				}
+				// String.hashCode is specified by the language, and thus the
+				// same in every process.
+				String pairKey1 = pairKeys.get(sequenceNumber1);
+				String pairKey2 = pairKeys.get(sequenceNumber2);
+				int hash1 = pairKey1.hashCode();
+				int hash2 = pairKey2.hashCode();
+				if (hash1 != hash2) {
+					return hash1 < hash2 ? -1 : 1;
+				}
+				return pairKey1.compareTo(pairKey2);
+			}
+		});
+
+		for (int sequenceNumber : sequenceNumbers) {
+			// The pair is assigned to the least loaded shard (the first one in
+			// case of a tie).
+			int leastLoadedShard = 0;
+			for (int shard = 1; shard < shardNb; shard++) {
+				if (shardCosts[shard] < shardCosts[leastLoadedShard]) {
+					leastLoadedShard = shard;
+				}
+			}
+			pairShards[sequenceNumber] = leastLoadedShard + 1;
+			shardCosts[leastLoadedShard] += pairCosts.get(sequenceNumber);
+		}
+	}
+
+	/**
+	 * This method indicates whether a pair is assigned to the shard processed
+	 * by this process.
+	 *
+	 * @param sequenceNumber the sequence number of the pair
+	 *
+	 * @return true if the pair belongs to the shard of this process, false
+	 * otherwise
+	 */
+	public boolean isAssigned(int sequenceNumber) {
+		return pairShards[sequenceNumber] == shardIndex;
+	}
+
+	/**
+	 * This method gives the total estimated cost of the pairs of a shard.
+	 *
+	 * @param shard the index of the shard (from 1 to shardNb)
+	 *
+	 * @return the total cost of the pairs of the shard
+	 */
+	public long getShardCost(int shard) {
+		return shardCosts[shard - 1];
+	}
+
+	/**
+	 * This method gives the number of pairs assigned to the shard processed
+	 * by this process.
+	 *
+	 * @return the number of pairs of the shard
+	 */
+	public int getAssignedPairNb() {
+		int assignedPairNb = 0;
+		for (int pairShard : pairShards) {
+			if (pairShard == shardIndex) {
+				assignedPairNb++;
+			}
+		}
+		return assignedPairNb;
+	}
+
+	public int getPairNb() {
+		return pairShards.length;
+	}
+
+}
@@ -0,0 +1,72 @@
+package org.terrier.compositecontextualsuggester.core;
+
+/**
+ * This class is an implementation of a configuration of the parameters used
+ * to suggest bundles of venues: the number of bundles to return (nbunret),
+ * the number of venues per bundle (nvenpbun), the number of bundles to create
+ * (nbuncreate), and the weights of the overall popularity (opop), the topical
+ * coherence (tcoh) and the estimated appreciation (eapp) in the bundle score.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class SuggestionParameters {
+
+	private int bundleToReturnNb;
+	private int venuesPerBundleNb;
+	private int bundleToCreateNb;
+	private double cOpop;
+	private double cTcoh;
+	private double cEapp;
+
+	public SuggestionParameters(int bundleToReturnNb, int venuesPerBundleNb, int bundleToCreateNb,
+			double cOpop, double cTcoh, double cEapp) {
+		this.bundleToReturnNb = bundleToReturnNb;
+		this.venuesPerBundleNb = venuesPerBundleNb;
+		this.bundleToCreateNb = bundleToCreateNb;
+		this.cOpop = cOpop;
+		this.cTcoh = cTcoh;
+		this.cEapp = cEapp;
+	}
+
+	public int getBundleToReturnNb() {
+		return bundleToReturnNb;
+	}
+
+	public int getVenuesPerBundleNb() {
+		return venuesPerBundleNb;
+	}
+
+	public int getBundleToCreateNb() {
+		return bundleToCreateNb;
+	}
+
+	public double getCOpop() {
+		return cOpop;
+	}
+
+	public double getCTcoh() {
+		return cTcoh;
+	}
+
+	public double getCEapp() {
+		return cEapp;
+	}
+
+	/**
+	 * This method overrides the method toString. It creates a string
+	 * describing the configuration, that can be used in a file name.
+	 *
+	 * @return the description of the configuration
+	 */
+	@Override
+	public String toString() {
+		return "nbunret" + bundleToReturnNb +
+				"_nvenpbun" + venuesPerBundleNb +
+				"_nbuncreate" + bundleToCreateNb +
+				"_copop" + cOpop +
+				"_ctcoh" + cTcoh +
+				"_ceapp" + cEapp;
+	}
+
+}
@@ -24,6 +24,10 @@ public class Category {
 	
 	// categories are the children categories of this category in the tree of all Foursquare categories.
 	private Collection<Category> categories;
+	
+	// ordinal is the position of this category in the depth-first order of
+	// the tree of all Foursquare categories (see CategoryHandler).
+	private int ordinal;
 
 	public String getId() {
 		return id;
@@ -81,6 +85,14 @@ public class Category {
 		this.parent = parent;
 	}
 	
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	public void setOrdinal(int ordinal) {
+		this.ordinal = ordinal;
+	}
+	
 	/**
 	 * This method overrides the method toString. It creates the Json code of 
 	 * the category and returns it.
@@ -0,0 +1,53 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is used to cache the distances between the categories in the
+ * Foursquare category tree. The distance between two categories only depends
+ * on the category tree, which enables to share a cache between all the users
+ * and contexts. The cache can be used concurrently by several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class CategoryDistanceCache {
+
+	// distances maps the ids of a pair of categories (the lowest id first)
+	// with the distance between these categories.
+	private Map<String, Integer> distances = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * This method gives the distance in the category tree between the two
+	 * categories given as parameters. The distance is computed by calling
+	 * Category.distance the first time it is requested for a pair of
+	 * categories and then kept in the cache.
+	 *
+	 * @param category1 a category
+	 * @param category2 another category
+	 *
+	 * @return the distance in the tree between the two categories
+	 */
+	public int distance(Category category1, Category category2) {
+		// The distance is symmetric: the key is built from the lowest id
+		// followed by the greatest id.
+		String id1 = category1.getId();
+		String id2 = category2.getId();
+		String key = id1.compareTo(id2) <= 0 ? id1 + "#" + id2 : id2 + "#" + id1;
+
+		Integer distance = distances.get(key);
+		if (distance == null) {
+			// First time the distance between these categories is requested.
+			distance = Category.distance(category1, category2);
+			distances.put(key, distance);
+		}
+
+		return distance;
+	}
+
+	public int size() {
+		return distances.size();
+	}
+
+}
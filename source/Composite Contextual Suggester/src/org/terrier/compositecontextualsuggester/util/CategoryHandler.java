@@ -3,6 +3,7 @@ package org.terrier.compositecontextualsuggester.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -21,7 +22,11 @@ import com.google.gson.JsonParser;
  * matching each category id with a category, that preserve the tree structure
  * information because of their respective parent and children categories.
  * It contains as well a static black list of the categories that have no 
- * touristic purpose.
+ * touristic purpose, which can be replaced by a black list read from a file.
+ * When the categories are parsed, the blacklisted categories and all their
+ * descendants are marked in a bitset over the ordinals of the categories, so
+ * that checking whether a venue is blacklisted only takes a bit test per
+ * category of the venue.
  * 
  * @author Thibaut Thonet
  *
@@ -30,6 +35,13 @@ public class CategoryHandler {
 	
 	private Map<String, Category> categories = new HashMap<String, Category>();
 	
+	// blackList is the set of blacklisted category ids used by this handler;
+	// it is the static BLACK_LIST unless a black list file is parsed.
+	private Set<String> blackList = BLACK_LIST;
+	// blackListedOrdinals marks the ordinals of the blacklisted categories
+	// and of all their descendants.
+	private BitSet blackListedOrdinals = new BitSet();
+	
 	// BLACK_LIST is a static set of venue ids that have no touristic purpose.
 	private static Set<String> BLACK_LIST = new HashSet<String>();
 	
@@ -115,6 +127,111 @@ public class CategoryHandler {
 		
 		return isBlackListed;
 	}
+	
+	/**
+	 * This method indicates if a venue is black-listed according to the black
+	 * list of this handler. A venue is black-listed if and only if all its
+	 * categories are blacklisted, i.e. are in the black-list or descend from
+	 * a category of the black-list. A category that is not in the category
+	 * tree is blacklisted if and only if its id is in the black-list.
+	 * 
+	 * @param venue a venue
+	 * 
+	 * @return true if all the venue's categories are blacklisted, false
+	 * otherwise.
+	 */
+	public boolean isBlackListedVenue(Venue venue) {
+		for (String id : venue.getCategories().keySet()) {
+			Category category = categories.get(id);
+			boolean isBlackListed = category != null ? blackListedOrdinals.get(category.getOrdinal()) : blackList.contains(id);
+			if (!isBlackListed) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * This method parses a black list file and replaces the black list of
+	 * this handler. The file contains one category id per line; the empty
+	 * lines, the lines starting with "#" or "//" and the text following the
+	 * id on a line (e.g. the name of the category) are ignored.
+	 * 
+	 * @param blackListFilePath the path to the black list file
+	 */
+	public void parseBlackList(String blackListFilePath) {
+		try {
+			Set<String> fileBlackList = new HashSet<String>();
+			for (String line : FileUtils.readLines(new File(blackListFilePath))) {
+				line = line.trim();
+				if (line.equals("") || line.startsWith("#") || line.startsWith("//")) {
+					// Empty or comment line.
+					continue;
+				}
+				fileBlackList.add(line.split("\\s+")[0]);
+			}
+			
+			blackList = fileBlackList;
+			markBlackListedCategories();
+		} catch (IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+	
+	public Set<String> getBlackList() {
+		return blackList;
+	}
+	
+	/**
+	 * This method replaces the black list of this handler, e.g. to give a
+	 * handler of new categories the black list of the former handler.
+	 * 
+	 * @param blackList the set of blacklisted category ids
+	 */
+	public void setBlackList(Set<String> blackList) {
+		this.blackList = blackList;
+		markBlackListedCategories();
+	}
+	
+	/**
+	 * This method gives the ids of the blacklisted categories, i.e. the ids
+	 * in the black list and the ids of the categories of the tree that
+	 * descend from a category of the black list. Two handlers with the same
+	 * blacklisted categories filter the same venues.
+	 * 
+	 * @return the set of the ids of the blacklisted categories
+	 */
+	public Set<String> getBlackListedCategoryIds() {
+		Set<String> blackListedCategoryIds = new HashSet<String>(blackList);
+		for (Category category : categories.values()) {
+			if (blackListedOrdinals.get(category.getOrdinal())) {
+				blackListedCategoryIds.add(category.getId());
+			}
+		}
+		return blackListedCategoryIds;
+	}
+	
+	/**
+	 * This method marks in blackListedOrdinals the blacklisted categories and
+	 * all their descendants.
+	 */
+	private void markBlackListedCategories() {
+		blackListedOrdinals = new BitSet(categories.size());
+		for (String id : blackList) {
+			Category category = categories.get(id);
+			if (category != null) {
+				markDescendants(category);
+			}
+		}
+	}
+	
+	private void markDescendants(Category category) {
+		blackListedOrdinals.set(category.getOrdinal());
+		for (Category child : category.getCategories()) {
+			markDescendants(child);
+		}
+	}
 
 	/**
 	 * This method parses the Foursquare category file and creates the map
@@ -144,10 +261,12 @@ public class CategoryHandler {
 			root.setIcon(rootIcon);
 			root.setCategories(buildCategories(array, root));
 			root.setParent(null);
+			root.setOrdinal(-1);
 			
 			// categories is initialized.
 			categories = new HashMap<String, Category>();
 			addCategories(root);
+			markBlackListedCategories();
 		} catch (IOException exception) {
 			exception.printStackTrace();
 		}
@@ -220,12 +339,14 @@ public class CategoryHandler {
 	
 	/**
 	 * This method recursively adds all the descendant categories of the root
-	 * category to categories.
+	 * category to categories. Each category is given as ordinal its position
+	 * in the depth-first order of the tree.
 	 * 
 	 * @param root the root category
 	 */
 	public void addCategories(Category root) {
 		for (Category category : root.getCategories()) {
+			category.setOrdinal(categories.size());
 			categories.put(category.getId(), category);
 			addCategories(category);
 		}
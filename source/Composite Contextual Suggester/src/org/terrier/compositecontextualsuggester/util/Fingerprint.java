@@ -0,0 +1,118 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * This class is an implementation of a 64-bit fingerprint of some data, based
+ * on the FNV-1a hash function. The values are added one by one to the
+ * fingerprint, so that two sequences of values that differ give different
+ * fingerprints with a high probability. The fingerprint of an unordered
+ * collection is obtained by summing the fingerprints of its elements, which
+ * does not depend on their order.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class Fingerprint {
+
+	// FNV_OFFSET_BASIS and FNV_PRIME are the parameters of the 64-bit FNV-1a
+	// hash function.
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private long value = FNV_OFFSET_BASIS;
+
+	public long getValue() {
+		return value;
+	}
+
+	private void addByte(int b) {
+		value ^= b & 0xff;
+		value *= FNV_PRIME;
+	}
+
+	public Fingerprint add(long l) {
+		for (int i = 0; i < 8; i++) {
+			addByte((int) (l >>> (8*i)));
+		}
+		return this;
+	}
+
+	public Fingerprint add(double d) {
+		return add(Double.doubleToLongBits(d));
+	}
+
+	public Fingerprint add(String s) {
+		if (s == null) {
+			return add(-1L);
+		}
+		add((long) s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			addByte(c);
+			addByte(c >>> 8);
+		}
+		return this;
+	}
+
+	/**
+	 * This static method computes the fingerprint of a venue from the data
+	 * used to suggest bundles: its id, its number of likes, its coordinates
+	 * and its categories.
+	 *
+	 * @param venue a venue
+	 *
+	 * @return the fingerprint of the venue
+	 */
+	public static long ofVenue(Venue venue) {
+		Fingerprint fingerprint = new Fingerprint();
+		fingerprint.add(venue.getId()).add(venue.getLikes());
+		if (venue.hasCoordinates()) {
+			fingerprint.add(venue.getLat()).add(venue.getLon());
+		}
+		// The categories are not ordered.
+		long categorySum = 0;
+		if (venue.getCategories() != null) {
+			for (String categoryId : venue.getCategories().keySet()) {
+				categorySum += new Fingerprint().add(categoryId).getValue();
+			}
+		}
+		return fingerprint.add(categorySum).getValue();
+	}
+
+	/**
+	 * This static method computes the fingerprint of a collection of venues,
+	 * which does not depend on the order of the venues.
+	 *
+	 * @param venues some venues
+	 *
+	 * @return the fingerprint of the venues
+	 */
+	public static long ofVenues(Collection<Venue> venues) {
+		long venueSum = 0;
+		for (Venue venue : venues) {
+			venueSum += ofVenue(venue);
+		}
+		return new Fingerprint().add((long) venues.size()).add(venueSum).getValue();
+	}
+
+	/**
+	 * This static method computes the fingerprint of the category tree from
+	 * the id and the parent of each category, which does not depend on the
+	 * order of the categories.
+	 *
+	 * @param categories the categories, mapped with their ids
+	 *
+	 * @return the fingerprint of the categories
+	 */
+	public static long ofCategories(Map<String, Category> categories) {
+		long categorySum = 0;
+		for (Category category : categories.values()) {
+			Category parent = category.getParent();
+			categorySum += new Fingerprint().add(category.getId()).add(parent == null ? null : parent.getId()).getValue();
+		}
+		return new Fingerprint().add((long) categories.size()).add(categorySum).getValue();
+	}
+
+}
@@ -0,0 +1,28 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.util.Collection;
+
+/**
+ * This interface is implemented by the classes that sort the keys of a cache
+ * into groups (see LruCache), e.g. the results of a same user, so that all
+ * the entries of a group can be invalidated without going through the whole
+ * cache.
+ *
+ * @author Thibaut Thonet
+ *
+ * @param <K> the type of the keys of the cache.
+ *
+ */
+public interface KeyGrouper<K> {
+
+	/**
+	 * This method gives the groups a key belongs to. The groups are compared
+	 * with their methods equals and hashCode.
+	 *
+	 * @param key a key
+	 *
+	 * @return the groups of the key
+	 */
+	Collection<?> getGroups(K key);
+
+}
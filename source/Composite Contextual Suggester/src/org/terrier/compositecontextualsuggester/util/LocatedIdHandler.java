@@ -11,7 +11,10 @@ import org.apache.commons.io.FileUtils;
  * This class is used to parse a file that contains a list of venue ids into a
  * collection of strings. This processing enables the filtering of the venues
  * for a given context, each context being associated with a file containing
- * the list of the Foursquare venue ids located in it.
+ * the list of the Foursquare venue ids located in it. When no such file is
+ * available for a context, the venue ids can instead be found with a venue
+ * location index, as the ids of the venues located within a radius of the
+ * context.
  * 
  * @author Thibaut Thonet
  *
@@ -40,6 +43,18 @@ public class LocatedIdHandler {
 		}
 	}
 	
+	/**
+	 * This method builds the collection of ids locatedIds from the venues
+	 * located within a radius of a location.
+	 * 
+	 * @param location a location
+	 * @param venueLocationIndex the index of the locations of the venues
+	 * @param radius the radius in meters
+	 */
+	public void findLocatedIds(Location location, VenueLocationIndex venueLocationIndex, double radius) {
+		locatedIds = venueLocationIndex.getVenueIdsWithin(location, radius);
+	}
+	
 	public Collection<String> getLocatedIds() {
 		return locatedIds;
 	}
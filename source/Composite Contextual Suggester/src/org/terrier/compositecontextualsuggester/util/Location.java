@@ -9,6 +9,9 @@ package org.terrier.compositecontextualsuggester.util;
  */
 public class Location {
 	
+	// EARTH_RADIUS is the mean radius of the Earth in meters.
+	public static final double EARTH_RADIUS = 6371008.8;
+	
 	private double latitude;
 	private double longitude;
 	private String name;
@@ -50,6 +53,8 @@ public class Location {
 	
 	/**
 	 * This method computes the Euclidean distance between two locations.
+	 * The distance is expressed in degrees and is only meaningful to compare
+	 * close locations; see haversineDistance for the distance in meters.
 	 * 
 	 * @param location1 a location
 	 * @param location2 another location
@@ -61,4 +66,37 @@ public class Location {
 				(location2.longitude - location1.longitude)*(location2.longitude - location1.longitude));
 	}
 	
+	/**
+	 * This method computes the great-circle distance between two locations
+	 * with the haversine formula.
+	 * 
+	 * @param location1 a location
+	 * @param location2 another location
+	 * 
+	 * @return the distance between these locations in meters
+	 */
+	public static double haversineDistance(Location location1, Location location2) {
+		return haversineDistance(location1.latitude, location1.longitude, location2.latitude, location2.longitude);
+	}
+	
+	/**
+	 * This method computes the great-circle distance between two points given
+	 * by their latitudes and longitudes (in degrees) with the haversine
+	 * formula.
+	 * 
+	 * @param latitude1 the latitude of a point
+	 * @param longitude1 the longitude of this point
+	 * @param latitude2 the latitude of another point
+	 * @param longitude2 the longitude of this other point
+	 * 
+	 * @return the distance between these points in meters
+	 */
+	public static double haversineDistance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double sinHalfLatitudeDelta = Math.sin(Math.toRadians(latitude2 - latitude1)/2);
+		double sinHalfLongitudeDelta = Math.sin(Math.toRadians(longitude2 - longitude1)/2);
+		double a = sinHalfLatitudeDelta*sinHalfLatitudeDelta + 
+				Math.cos(Math.toRadians(latitude1))*Math.cos(Math.toRadians(latitude2))*sinHalfLongitudeDelta*sinHalfLongitudeDelta;
+		return 2*EARTH_RADIUS*Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+	
 }
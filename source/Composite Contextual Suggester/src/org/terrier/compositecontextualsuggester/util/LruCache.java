@@ -0,0 +1,230 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is an implementation of a cache bounded in size, which evicts
+ * the least recently used entry when it is full. It counts the hits, the
+ * misses, the evictions and the invalidations, so that its efficiency can be
+ * monitored. The keys can be sorted into groups (see KeyGrouper), which
+ * entries can then be invalidated at once without going through the whole
+ * cache. All the methods are synchronized, so that the cache can be shared by
+ * several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ * @param <K> the type of the keys of the cache.
+ * @param <V> the type of the values of the cache.
+ *
+ */
+public class LruCache<K, V> {
+
+	private int capacity;
+	// entries is a map in access order: its first entry is the least recently
+	// used one.
+	private LinkedHashMap<K, V> entries;
+	// keyGrouper gives the groups of the keys, or is null if the keys are not
+	// grouped. groups maps each group with the keys of the cache that belong
+	// to it.
+	private KeyGrouper<K> keyGrouper;
+	private Map<Object, Set<K>> groups = new HashMap<Object, Set<K>>();
+
+	private long hitNb;
+	private long missNb;
+	private long evictionNb;
+	private long invalidationNb;
+
+	public LruCache(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * This constructor creates a cache which keys are sorted into groups.
+	 *
+	 * @param capacity the maximum number of entries of the cache
+	 * @param keyGrouper the grouper giving the groups of the keys, or null
+	 */
+	public LruCache(int capacity, KeyGrouper<K> keyGrouper) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid cache capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		this.keyGrouper = keyGrouper;
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > LruCache.this.capacity) {
+					evictionNb++;
+					removeFromGroups(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * This method gives the value of a key, and marks the entry as the most
+	 * recently used one.
+	 *
+	 * @param key a key
+	 *
+	 * @return the value of the key, or null if the key is not in the cache
+	 */
+	public synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value != null) {
+			hitNb++;
+		} else {
+			missNb++;
+		}
+		return value;
+	}
+
+	/**
+	 * This method puts an entry in the cache, evicting the least recently
+	 * used entry if the cache is full.
+	 *
+	 * @param key a key
+	 * @param value the value of the key
+	 */
+	public synchronized void put(K key, V value) {
+		if (entries.put(key, value) == null && keyGrouper != null) {
+			for (Object group : keyGrouper.getGroups(key)) {
+				Set<K> groupKeys = groups.get(group);
+				if (groupKeys == null) {
+					groupKeys = new HashSet<K>();
+					groups.put(group, groupKeys);
+				}
+				groupKeys.add(key);
+			}
+		}
+	}
+
+	private void removeFromGroups(K key) {
+		if (keyGrouper != null) {
+			for (Object group : keyGrouper.getGroups(key)) {
+				Set<K> groupKeys = groups.get(group);
+				if (groupKeys != null) {
+					groupKeys.remove(key);
+					if (groupKeys.isEmpty()) {
+						groups.remove(group);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * This method removes an entry from the cache because its value is not
+	 * valid anymore.
+	 *
+	 * @param key a key
+	 *
+	 * @return true if the key was in the cache, false otherwise
+	 */
+	public synchronized boolean invalidate(K key) {
+		if (entries.remove(key) != null) {
+			invalidationNb++;
+			removeFromGroups(key);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * This method removes the entries of a group from the cache because their
+	 * values are not valid anymore.
+	 *
+	 * @param group a group of keys (see KeyGrouper)
+	 *
+	 * @return the number of entries removed
+	 */
+	public synchronized int invalidateGroup(Object group) {
+		int invalidatedNb = 0;
+		for (K key : getGroupKeys(group)) {
+			if (invalidate(key)) {
+				invalidatedNb++;
+			}
+		}
+		return invalidatedNb;
+	}
+
+	/**
+	 * This method removes all the entries from the cache.
+	 */
+	public synchronized void invalidateAll() {
+		invalidationNb += entries.size();
+		entries.clear();
+		groups.clear();
+	}
+
+	/**
+	 * This method gives the keys of the cache, from the least recently used
+	 * to the most recently used one.
+	 *
+	 * @return a copy of the keys of the cache
+	 */
+	public synchronized List<K> getKeys() {
+		return new ArrayList<K>(entries.keySet());
+	}
+
+	/**
+	 * This method gives the keys of a group of the cache.
+	 *
+	 * @param group a group of keys (see KeyGrouper)
+	 *
+	 * @return a copy of the keys of the group
+	 */
+	public synchronized List<K> getGroupKeys(Object group) {
+		Set<K> groupKeys = groups.get(group);
+		return groupKeys == null ? new ArrayList<K>() : new ArrayList<K>(groupKeys);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getHitNb() {
+		return hitNb;
+	}
+
+	public synchronized long getMissNb() {
+		return missNb;
+	}
+
+	public synchronized long getEvictionNb() {
+		return evictionNb;
+	}
+
+	public synchronized long getInvalidationNb() {
+		return invalidationNb;
+	}
+
+	/**
+	 * This method overrides the method toString. It creates a string
+	 * describing the state and the metrics of the cache.
+	 *
+	 * @return the description of the cache
+	 */
+	@Override
+	public synchronized String toString() {
+		long requestNb = hitNb + missNb;
+		return entries.size() + "/" + capacity + " entries, " + hitNb + " hit(s), " + missNb + " miss(es), " +
+				"hit rate " + (requestNb == 0 ? 0 : Math.round(1000.0*hitNb/requestNb)/10.0) + "%, " +
+				evictionNb + " eviction(s), " + invalidationNb + " invalidation(s)";
+	}
+
+}
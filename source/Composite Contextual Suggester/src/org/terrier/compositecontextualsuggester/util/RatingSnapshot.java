@@ -0,0 +1,66 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * This class is an implementation of a snapshot of the ratings of a user (see
+ * User.getRatingSnapshot): the compact form of the ratings and their
+ * fingerprint, taken together so that they describe the same ratings even if
+ * the ratings of the user change in the meantime. A snapshot is never
+ * modified.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class RatingSnapshot {
+
+	private long fingerprint;
+	// venueIds maps each venue ordinal with the Foursquare id of the venue.
+	private String[] venueIds;
+	// ratedVenueOrdinals contains the ordinals of the rated venues, and
+	// ratings the corresponding ratings.
+	private int[] ratedVenueOrdinals;
+	private double[] ratings;
+
+	public RatingSnapshot(long fingerprint, String[] venueIds, int[] ratedVenueOrdinals, double[] ratings) {
+		this.fingerprint = fingerprint;
+		this.venueIds = venueIds;
+		this.ratedVenueOrdinals = ratedVenueOrdinals;
+		this.ratings = ratings;
+	}
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	public String[] getVenueIds() {
+		return venueIds;
+	}
+
+	public int[] getRatedVenueOrdinals() {
+		return ratedVenueOrdinals;
+	}
+
+	public double[] getRatings() {
+		return ratings;
+	}
+
+	public int size() {
+		return ratings.length;
+	}
+
+	/**
+	 * This method gives the Foursquare ids of the rated venues.
+	 *
+	 * @return the ids of the rated venues, in the order of the ratings
+	 */
+	public Collection<String> getRatedVenueIds() {
+		Collection<String> ratedVenueIds = new ArrayList<String>(ratedVenueOrdinals.length);
+		for (int ratedVenueOrdinal : ratedVenueOrdinals) {
+			ratedVenueIds.add(venueIds[ratedVenueOrdinal]);
+		}
+		return ratedVenueIds;
+	}
+
+}
@@ -0,0 +1,168 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a generic implementation of a spatial index based on a
+ * uniform grid. Each item is indexed with the coordinates of a point. The
+ * coordinates are projected on a plane with an equirectangular projection
+ * centered on a reference latitude, and the plane is divided into square
+ * cells of a given size (in meters). Finding the items located within a
+ * radius of a point then only requires to look at the cells around this
+ * point, the distances being checked with the haversine formula (see
+ * Location).
+ * Once built, the grid can be used concurrently by several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ * @param <I> the type of the items contained in the grid.
+ *
+ */
+public class SpatialGrid<I> {
+
+	// cellSize is the size of the side of a cell in meters.
+	private double cellSize;
+	// referenceLatitudeCosine is the cosine of the latitude on which the
+	// projection is centered.
+	private double referenceLatitudeCosine;
+	// cells maps the key of each non-empty cell with the points it contains.
+	private Map<Long, List<Point<I>>> cells = new HashMap<Long, List<Point<I>>>();
+	private int itemNb;
+
+	// A point is an item indexed with its coordinates.
+	private static class Point<I> {
+		private I item;
+		private double latitude;
+		private double longitude;
+
+		private Point(I item, double latitude, double longitude) {
+			this.item = item;
+			this.latitude = latitude;
+			this.longitude = longitude;
+		}
+	}
+
+	/**
+	 * This constructor creates an empty grid.
+	 *
+	 * @param cellSize the size of the side of a cell in meters
+	 * @param referenceLatitude the latitude on which the projection is
+	 * centered, e.g. the mean latitude of the points to index
+	 */
+	public SpatialGrid(double cellSize, double referenceLatitude) {
+		this.cellSize = cellSize;
+		this.referenceLatitudeCosine = Math.cos(Math.toRadians(referenceLatitude));
+	}
+
+	/**
+	 * This static method builds a grid indexing venues with their
+	 * coordinates. The projection is centered on the mean latitude of the
+	 * venues, and the venues which coordinates are unknown are not indexed.
+	 *
+	 * @param venues the venues to index
+	 * @param cellSize the size of the side of a cell in meters
+	 *
+	 * @return the grid indexing the venues
+	 */
+	public static SpatialGrid<Venue> indexVenues(Collection<Venue> venues, double cellSize) {
+		double latitudeSum = 0;
+		int locatedVenueNb = 0;
+		for (Venue venue : venues) {
+			if (venue.hasCoordinates()) {
+				latitudeSum += venue.getLat();
+				locatedVenueNb++;
+			}
+		}
+
+		SpatialGrid<Venue> grid = new SpatialGrid<Venue>(cellSize, locatedVenueNb == 0 ? 0 : latitudeSum/locatedVenueNb);
+		for (Venue venue : venues) {
+			if (venue.hasCoordinates()) {
+				grid.add(venue, venue.getLat(), venue.getLon());
+			}
+		}
+
+		return grid;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public int getItemNb() {
+		return itemNb;
+	}
+
+	private int getCellX(double longitude) {
+		return (int) Math.floor(Location.EARTH_RADIUS*Math.toRadians(longitude)*referenceLatitudeCosine/cellSize);
+	}
+
+	private int getCellY(double latitude) {
+		return (int) Math.floor(Location.EARTH_RADIUS*Math.toRadians(latitude)/cellSize);
+	}
+
+	private static long getCellKey(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xffffffffL);
+	}
+
+	/**
+	 * This method adds an item to the grid.
+	 *
+	 * @param item the item
+	 * @param latitude the latitude of the item
+	 * @param longitude the longitude of the item
+	 */
+	public void add(I item, double latitude, double longitude) {
+		long key = getCellKey(getCellX(longitude), getCellY(latitude));
+		List<Point<I>> cellPoints = cells.get(key);
+		if (cellPoints == null) {
+			cellPoints = new ArrayList<Point<I>>();
+			cells.put(key, cellPoints);
+		}
+		cellPoints.add(new Point<I>(item, latitude, longitude));
+		itemNb++;
+	}
+
+	/**
+	 * This method finds the items located within a radius of a point.
+	 *
+	 * @param latitude the latitude of the point
+	 * @param longitude the longitude of the point
+	 * @param radius the radius in meters
+	 *
+	 * @return the items located within the radius of the point
+	 */
+	public List<I> getItemsWithin(double latitude, double longitude, double radius) {
+		List<I> items = new ArrayList<I>();
+
+		// The cells to look at are those within the radius in the projected
+		// plane. A distance along a parallel is stretched by the projection
+		// away from the reference latitude: the number of cells along the x
+		// axis is computed for the latitude of the circle that is the
+		// farthest from the equator.
+		double farthestLatitude = Math.min(89, Math.abs(latitude) + Math.toDegrees(radius/Location.EARTH_RADIUS));
+		int cellRangeX = (int) Math.ceil(radius*referenceLatitudeCosine/Math.cos(Math.toRadians(farthestLatitude))/cellSize);
+		int cellRangeY = (int) Math.ceil(radius/cellSize);
+
+		int centerCellX = getCellX(longitude);
+		int centerCellY = getCellY(latitude);
+		for (int cellX = centerCellX - cellRangeX; cellX <= centerCellX + cellRangeX; cellX++) {
+			for (int cellY = centerCellY - cellRangeY; cellY <= centerCellY + cellRangeY; cellY++) {
+				List<Point<I>> cellPoints = cells.get(getCellKey(cellX, cellY));
+				if (cellPoints != null) {
+					for (Point<I> point : cellPoints) {
+						if (Location.haversineDistance(latitude, longitude, point.latitude, point.longitude) <= radius) {
+							items.add(point.item);
+						}
+					}
+				}
+			}
+		}
+
+		return items;
+	}
+
+}
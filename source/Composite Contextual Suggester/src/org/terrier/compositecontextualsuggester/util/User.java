@@ -7,6 +7,10 @@ import java.util.Map;
  * This class is an implementation of a user for TREC CS. The user is
  * represented by a map matching each Foursquare venue id with a rating given
  * by the user to this venue.
+ * The ratings are also kept in a compact form used by the scoring loops: an
+ * array of the ordinals of the rated venues aligned with an array of the
+ * ratings, in the iteration order of the map. The ordinals refer to a table
+ * of venue ids that can be shared by several users (see UserHandler).
  * 
  * @author Thibaut Thonet
  *
@@ -19,6 +23,17 @@ public class User {
 	// value is the user's rating for this venue.
 	private Map<String, Double> venueRatings; 
 
+	// venueIds maps each venue ordinal with the Foursquare id of the venue.
+	private String[] venueIds;
+	// ratedVenueOrdinals contains the ordinals of the venues rated by the
+	// user, and ratings the corresponding ratings.
+	private int[] ratedVenueOrdinals;
+	private double[] ratings;
+	// ratingFingerprint is the fingerprint of venueRatings (see
+	// getRatingFingerprint), or null if it has not been computed since the
+	// ratings last changed.
+	private Long ratingFingerprint;
+
 	public User(String id) {
 		this.id = id;
 		this.venueRatings = new HashMap<String, Double>();
@@ -28,8 +43,31 @@ public class User {
 		return venueRatings;
 	}
 
-	public void setVenueRatings(Map<String, Double> venueRatings) {
+	public synchronized void setVenueRatings(Map<String, Double> venueRatings) {
 		this.venueRatings = venueRatings;
+		// The compact form and the fingerprint are computed again from the new
+		// ratings.
+		ratings = null;
+		ratingFingerprint = null;
+	}
+
+	/**
+	 * This method adds, changes or removes the rating of a venue.
+	 *
+	 * @param venueId the Foursquare id of the venue
+	 * @param rating the new rating of the venue, or null to remove the
+	 * rating
+	 *
+	 * @return the previous rating of the venue, or null if the venue was not
+	 * rated
+	 */
+	public synchronized Double setVenueRating(String venueId, Double rating) {
+		Double previousRating = rating == null ? venueRatings.remove(venueId) : venueRatings.put(venueId, rating);
+		// The compact form and the fingerprint are computed again from the new
+		// ratings.
+		ratings = null;
+		ratingFingerprint = null;
+		return previousRating;
 	}
 
 	public String getId() {
@@ -40,4 +78,95 @@ public class User {
 		this.id = id;
 	}
 
+	/**
+	 * This method builds the compact form of the ratings of the user from
+	 * venueRatings.
+	 *
+	 * @param venueOrdinals a map matching each venue id with its ordinal; it
+	 * must contain the ids of all the venues rated by the user
+	 * @param venueIds the table matching each venue ordinal with its id
+	 */
+	public synchronized void compact(Map<String, Integer> venueOrdinals, String[] venueIds) {
+		int[] compactOrdinals = new int[venueRatings.size()];
+		double[] compactRatings = new double[venueRatings.size()];
+
+		int i = 0;
+		for (Map.Entry<String, Double> venueRating : venueRatings.entrySet()) {
+			compactOrdinals[i] = venueOrdinals.get(venueRating.getKey());
+			compactRatings[i] = venueRating.getValue();
+			i++;
+		}
+
+		this.venueIds = venueIds;
+		this.ratedVenueOrdinals = compactOrdinals;
+		this.ratings = compactRatings;
+		// The ratings may have been changed through getVenueRatings (see
+		// UserHandler).
+		this.ratingFingerprint = null;
+	}
+
+	/**
+	 * This method builds the compact form of the ratings of the user if it
+	 * has not been built by UserHandler, with a table of venue ids of its
+	 * own.
+	 */
+	private void compactIfNeeded() {
+		if (ratings == null) {
+			Map<String, Integer> venueOrdinals = new HashMap<String, Integer>();
+			String[] ownVenueIds = new String[venueRatings.size()];
+			for (String venueId : venueRatings.keySet()) {
+				ownVenueIds[venueOrdinals.size()] = venueId;
+				venueOrdinals.put(venueId, venueOrdinals.size());
+			}
+			compact(venueOrdinals, ownVenueIds);
+		}
+	}
+
+	public synchronized String[] getVenueIds() {
+		compactIfNeeded();
+		return venueIds;
+	}
+
+	public synchronized int[] getRatedVenueOrdinals() {
+		compactIfNeeded();
+		return ratedVenueOrdinals;
+	}
+
+	public synchronized double[] getRatings() {
+		compactIfNeeded();
+		return ratings;
+	}
+
+	/**
+	 * This method computes a fingerprint of the ratings of the user, which
+	 * changes whenever a venue is rated, unrated or rated differently. It is
+	 * computed from venueRatings, and does not depend on the order of the
+	 * ratings. It is only computed again when the ratings have changed.
+	 *
+	 * @return the fingerprint of the ratings of the user
+	 */
+	public synchronized long getRatingFingerprint() {
+		if (ratingFingerprint == null) {
+			long ratingSum = 0;
+			for (Map.Entry<String, Double> venueRating : venueRatings.entrySet()) {
+				ratingSum += new Fingerprint().add(venueRating.getKey()).add(venueRating.getValue()).getValue();
+			}
+			ratingFingerprint = new Fingerprint().add((long) venueRatings.size()).add(ratingSum).getValue();
+		}
+		return ratingFingerprint;
+	}
+
+	/**
+	 * This method takes a snapshot of the ratings of the user: their compact
+	 * form and their fingerprint are read at once, so that they describe the
+	 * same ratings even if a rating is changed concurrently (see
+	 * setVenueRating).
+	 *
+	 * @return the snapshot of the ratings of the user
+	 */
+	public synchronized RatingSnapshot getRatingSnapshot() {
+		compactIfNeeded();
+		return new RatingSnapshot(getRatingFingerprint(), venueIds, ratedVenueOrdinals, ratings);
+	}
+
 }
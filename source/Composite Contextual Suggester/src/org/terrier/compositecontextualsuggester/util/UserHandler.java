@@ -2,6 +2,7 @@ package org.terrier.compositecontextualsuggester.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +16,8 @@ import org.apache.commons.io.FileUtils;
  * matching each venue id from the example file of TREC CS with its 
  * corresponding Foursquare id. The ratings are rescaled from -1 to 4 into
  * -0.25 to 1.0).
+ * The rated venues are numbered with ordinals shared by all the users, and
+ * the compact form of the ratings of each user is built from these ordinals.
  * 
  * @author Thibaut Thonet
  *
@@ -22,6 +25,9 @@ import org.apache.commons.io.FileUtils;
 public class UserHandler {
 
 	Map<String, User> users;
+	
+	// venueIds maps each venue ordinal with the Foursquare id of the venue.
+	String[] venueIds;
 
 	/**
 	 * This method parses the profile file of TREC CS containing the ratings of
@@ -55,6 +61,11 @@ public class UserHandler {
 				exampleToFoursquareIds.put(values[0], values[1]);
 			}
 			
+			// venueOrdinals maps each rated Foursquare venue id with its
+			// ordinal.
+			Map<String, Integer> venueOrdinals = new HashMap<String, Integer>();
+			List<String> ratedVenueIds = new ArrayList<String>();
+			
 			// Construction of users.
 			File profileFile = new File(profileFilePath);
 			lines = FileUtils.readLines(profileFile);
@@ -78,6 +89,11 @@ public class UserHandler {
 				if (venueFoursquareId != null) {
 					// The Foursquare venue corresponding to the example venue
 					// has been found.
+					if (venueOrdinals.get(venueFoursquareId) == null) {
+						venueOrdinals.put(venueFoursquareId, ratedVenueIds.size());
+						ratedVenueIds.add(venueFoursquareId);
+					}
+					
 					if (users.get(userId) == null) {
 						// First time encountering this user.
 						Map<String, Double> venueRatings = new HashMap<String, Double>();
@@ -95,6 +111,12 @@ public class UserHandler {
 					}
 				}
 			}
+			
+			// Construction of the compact form of the ratings of each user.
+			venueIds = ratedVenueIds.toArray(new String[ratedVenueIds.size()]);
+			for (User user : users.values()) {
+				user.compact(venueOrdinals, venueIds);
+			}
 		} catch (IOException exception) {
 			exception.printStackTrace();
 		}
@@ -103,4 +125,8 @@ public class UserHandler {
 	public Map<String, User> getUsers() {
 		return users;
 	}
+	
+	public String[] getVenueIds() {
+		return venueIds;
+	}
 }
@@ -170,6 +170,10 @@ public class Venue {
 		return this.categories;
 	}
 
+	public void setCategories(Map<String,String> categories) {
+		this.categories = categories;
+	}
+
 	public String getFoursquareJson() {
 		return foursquareJson;
 	}
@@ -266,6 +270,16 @@ public class Venue {
 		this.lon = lon;
 	}
 	
+	/**
+	 * This method indicates whether the coordinates (latitude and longitude)
+	 * of the venue are known.
+	 * 
+	 * @return true if the coordinates of the venue are known, false otherwise
+	 */
+	public boolean hasCoordinates() {
+		return lat != null && lon != null;
+	}
+	
 	public int getVenuePageId() {
 		return venuePageId;
 	}
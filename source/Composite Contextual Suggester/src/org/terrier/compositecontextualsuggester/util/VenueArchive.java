@@ -0,0 +1,278 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class is used to read the Foursquare venues from a packed archive, as
+ * written by the Foursquare venue fetcher instead of one file per venue. An
+ * archive is a directory containing segment files and an index file:
+ * - a segment file (archive.<segment-number>.seg) is a sequence of records,
+ *   each made of the venue id (in modified UTF-8), a byte indicating whether
+ *   the payload is compressed (1) or not (0), the length of the payload (int)
+ *   and the payload, i.e. the JSON string of the venue in UTF-8, compressed
+ *   with Deflater or not;
+ * - the index file (archive.index) is a sequence of entries, each made of the
+ *   venue id, the segment number (int) and the offset of the record in the
+ *   segment (long).
+ * When a venue appears several times in the index, its last entry is used.
+ * The opened archives can be shared (see open): the index of a shared
+ * archive is read once, and the archive is opened again when its index has
+ * changed (e.g. when venues have been appended to it). The records are read
+ * with positional reads, so that an archive can be read concurrently by
+ * several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueArchive {
+
+	// INDEX_FILE_NAME is the name of the index file of an archive.
+	public static final String INDEX_FILE_NAME = "archive.index";
+
+	// openedArchives maps the path of each shared archive with the archive.
+	private static Map<String, VenueArchive> openedArchives = new HashMap<String, VenueArchive>();
+
+	private File archiveDirectory;
+	// indexLength and indexLastModified are the length and the time of the
+	// last modification of the index file when it was read.
+	private long indexLength;
+	private long indexLastModified;
+	// offsets maps each venue id with the segment number and the offset of
+	// its record, in the order of the index.
+	private Map<String, long[]> offsets = new LinkedHashMap<String, long[]>();
+	// segmentFiles maps each segment number with the opened segment file.
+	private Map<Integer, RandomAccessFile> segmentFiles = new HashMap<Integer, RandomAccessFile>();
+
+	// shared indicates whether the archive has been opened with open, in
+	// which case userNb is the number of users that have not closed it yet,
+	// and replaced indicates whether a newer archive has been opened since.
+	// A shared archive is only closed once it has been replaced and all its
+	// users have closed it.
+	private boolean shared;
+	private int userNb;
+	private boolean replaced;
+
+	/**
+	 * This constructor opens the archive located in the given directory and
+	 * reads its index.
+	 *
+	 * @param archiveDirectoryPath the path to the archive directory
+	 */
+	public VenueArchive(String archiveDirectoryPath) throws IOException {
+		archiveDirectory = new File(archiveDirectoryPath);
+		File indexFile = new File(archiveDirectory, INDEX_FILE_NAME);
+		indexLength = indexFile.length();
+		indexLastModified = indexFile.lastModified();
+
+		DataInputStream indexInput = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			for (;;) {
+				String venueId = indexInput.readUTF();
+				int segmentNumber = indexInput.readInt();
+				long offset = indexInput.readLong();
+				// The previous entry of the venue, if any, is replaced.
+				offsets.remove(venueId);
+				offsets.put(venueId, new long[] {segmentNumber, offset});
+			}
+		} catch (EOFException exception) {
+			// End of the index (an incomplete last entry is ignored).
+		} finally {
+			indexInput.close();
+		}
+	}
+
+	/**
+	 * This method indicates whether the directory which path is given
+	 * contains an archive.
+	 *
+	 * @param directoryPath the path to a directory
+	 * @return true if the directory contains an archive, false otherwise
+	 */
+	public static boolean isArchive(String directoryPath) {
+		return new File(directoryPath, INDEX_FILE_NAME).isFile();
+	}
+
+	/**
+	 * This method gives the shared archive located in the given directory.
+	 * The index of the archive is only read the first time it is requested,
+	 * or again if it has changed since. The archive has to be closed by
+	 * calling close once it is not used anymore.
+	 *
+	 * @param archiveDirectoryPath the path to the archive directory
+	 * @return the archive
+	 */
+	public static synchronized VenueArchive open(String archiveDirectoryPath) throws IOException {
+		VenueArchive venueArchive = openedArchives.get(archiveDirectoryPath);
+		if (venueArchive == null || venueArchive.isModified()) {
+			VenueArchive newVenueArchive = new VenueArchive(archiveDirectoryPath);
+			newVenueArchive.shared = true;
+			if (venueArchive != null) {
+				venueArchive.replace();
+			}
+			openedArchives.put(archiveDirectoryPath, newVenueArchive);
+			venueArchive = newVenueArchive;
+		}
+		venueArchive.acquire();
+		return venueArchive;
+	}
+
+	/**
+	 * This method indicates whether the index of the archive has changed
+	 * since it was read.
+	 *
+	 * @return true if the index has changed, false otherwise
+	 */
+	public boolean isModified() {
+		File indexFile = new File(archiveDirectory, INDEX_FILE_NAME);
+		return indexFile.length() != indexLength || indexFile.lastModified() != indexLastModified;
+	}
+
+	private synchronized void acquire() {
+		userNb++;
+	}
+
+	private synchronized void replace() throws IOException {
+		replaced = true;
+		if (userNb == 0) {
+			closeSegmentFiles();
+		}
+	}
+
+	public Collection<String> getVenueIds() {
+		return offsets.keySet();
+	}
+
+	public boolean contains(String venueId) {
+		return offsets.containsKey(venueId);
+	}
+
+	/**
+	 * This method reads the JSON string of a venue from the archive.
+	 *
+	 * @param venueId the Foursquare ID of the venue
+	 * @return the JSON string of the venue, or null if the archive does not
+	 * contain the venue
+	 */
+	public String getJsonString(String venueId) throws IOException {
+		long[] offset = offsets.get(venueId);
+		if (offset == null) {
+			return null;
+		}
+
+		FileChannel segmentChannel = getSegmentFile((int) offset[0]).getChannel();
+
+		// The header of the record (id, compression flag and payload length)
+		// is read at once rather than field by field from the file.
+		byte[] header = new byte[2 + venueId.getBytes("UTF-8").length + 1 + 4];
+		readFully(segmentChannel, header, offset[1]);
+		DataInputStream headerInput = new DataInputStream(new ByteArrayInputStream(header));
+		String recordVenueId = headerInput.readUTF();
+		if (!recordVenueId.equals(venueId)) {
+			throw new IOException("Corrupted archive: record of " + recordVenueId + " found instead of " + venueId);
+		}
+		boolean compressed = headerInput.readByte() == 1;
+		byte[] payload = new byte[headerInput.readInt()];
+		readFully(segmentChannel, payload, offset[1] + header.length);
+
+		if (compressed) {
+			payload = inflate(payload);
+		}
+
+		return new String(payload, "UTF-8");
+	}
+
+	/**
+	 * This method reads bytes from a file at a given position, without
+	 * changing the position of the file (so that the file can be read by
+	 * several threads).
+	 *
+	 * @param channel the channel of the file
+	 * @param bytes the array filled with the bytes read
+	 * @param position the position of the first byte to read
+	 */
+	private static void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Corrupted archive: truncated record");
+			}
+		}
+	}
+
+	private synchronized RandomAccessFile getSegmentFile(int segmentNumber) throws IOException {
+		RandomAccessFile segmentFile = segmentFiles.get(segmentNumber);
+		if (segmentFile == null) {
+			segmentFile = new RandomAccessFile(new File(archiveDirectory,
+					String.format("archive.%05d.seg", segmentNumber)), "r");
+			segmentFiles.put(segmentNumber, segmentFile);
+		}
+
+		return segmentFile;
+	}
+
+	private static byte[] inflate(byte[] bytes) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(bytes);
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length*4);
+		byte[] buffer = new byte[4096];
+		try {
+			while (!inflater.finished()) {
+				int inflatedSize = inflater.inflate(buffer);
+				if (inflatedSize == 0 && inflater.needsInput()) {
+					throw new IOException("Corrupted archive: truncated compressed record");
+				}
+				output.write(buffer, 0, inflatedSize);
+			}
+		} catch (DataFormatException exception) {
+			throw new IOException("Corrupted archive: " + exception.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * This method closes the segment files of the archive. A shared archive
+	 * (see open) is only closed once it has been replaced by a newer archive
+	 * and closed by all its users.
+	 */
+	public synchronized void close() throws IOException {
+		if (shared) {
+			userNb--;
+			if (!replaced || userNb > 0) {
+				return;
+			}
+		}
+		closeSegmentFiles();
+	}
+
+	private synchronized void closeSegmentFiles() throws IOException {
+		try {
+			for (RandomAccessFile segmentFile : segmentFiles.values()) {
+				segmentFile.close();
+			}
+		} finally {
+			segmentFiles.clear();
+		}
+	}
+
+}
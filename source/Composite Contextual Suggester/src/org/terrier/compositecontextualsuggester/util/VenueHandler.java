@@ -14,7 +14,17 @@ import org.apache.commons.io.FilenameUtils;
  * This class is used to parse the Foursquare venues. It creates a map matching
  * each Foursquare venue id with a venue created from the class Venue. It uses
  * a list of Foursquare venue files in Json format that have been crawled
- * because their locations are in the list of TREC CS contexts.
+ * because their locations are in the list of TREC CS contexts. The venue
+ * files are either stored in a directory, one file per venue named by the
+ * venue id, or packed in an archive (see VenueArchive); the archive is used
+ * whenever the venue directory contains one. The venues can also be read from
+ * a binary venue store (see VenueStore) written by the fetcher in pipeline
+ * mode; the store is used first whenever the venue directory contains one.
+ * The store and the archive are opened once and shared by the handlers (see
+ * VenueStore.open and VenueArchive.open), and only the requested venues are
+ * read from them.
+ * The venues are filtered with the black list of a category handler when one
+ * is given, and with the static black list of CategoryHandler otherwise.
  * 
  * @author Thibaut Thonet
  *
@@ -23,6 +33,18 @@ public class VenueHandler {
 	
 	private Map<String, Venue> venues; 
 	
+	// categoryHandler is the category handler which black list is used to
+	// filter the venues, if any.
+	private CategoryHandler categoryHandler;
+	
+	public void setCategoryHandler(CategoryHandler categoryHandler) {
+		this.categoryHandler = categoryHandler;
+	}
+	
+	private boolean isBlackListedVenue(Venue venue) {
+		return categoryHandler != null ? categoryHandler.isBlackListedVenue(venue) : CategoryHandler.isBlackListedVenueStrict(venue);
+	}
+	
 	/**
 	 * This method parses the venues located in the Foursquare venue directory.
 	 * It uses a list of Foursquare venue files in Json format. It builds the
@@ -38,6 +60,17 @@ public class VenueHandler {
 	 * only if this parameter is true
 	 */
 	public void parseVenues(String venueInfoDirectoryPath, boolean useCategoryFilter) {
+		if (VenueStore.isVenueStore(venueInfoDirectoryPath)) {
+			// The venues are read from a venue store.
+			parseStoredVenues(venueInfoDirectoryPath, useCategoryFilter, null);
+			return;
+		}
+		if (VenueArchive.isArchive(venueInfoDirectoryPath)) {
+			// The venues are packed in an archive.
+			parseArchivedVenues(venueInfoDirectoryPath, useCategoryFilter, null);
+			return;
+		}
+		
 		// venues is reinitialized.
 		venues = new HashMap<String, Venue>();
 		
@@ -57,7 +90,7 @@ public class VenueHandler {
 					
 					// Checking whether the venue is blacklisted (i.e. the
 					// venue category is not relevant).
-					if (!useCategoryFilter || !CategoryHandler.isBlackListedVenueStrict(venue)) {
+					if (!useCategoryFilter || !isBlackListedVenue(venue)) {
 						// The current venue has at least one relevant category
 						// and is added to venues.
 						venues.put(venueId, venue);
@@ -86,6 +119,17 @@ public class VenueHandler {
 	 * @param venueIds the list of venue ids to parse
 	 */
 	public void parseVenues(String venueDirectoryPath, boolean useCategoryFilter, Collection<String> venueIds) {
+		if (VenueStore.isVenueStore(venueDirectoryPath)) {
+			// The venues are read from a venue store.
+			parseStoredVenues(venueDirectoryPath, useCategoryFilter, venueIds);
+			return;
+		}
+		if (VenueArchive.isArchive(venueDirectoryPath)) {
+			// The venues are packed in an archive.
+			parseArchivedVenues(venueDirectoryPath, useCategoryFilter, venueIds);
+			return;
+		}
+		
 		// venues is reinitialized.
 		venues = new HashMap<String, Venue>();
 		
@@ -108,7 +152,7 @@ public class VenueHandler {
 					
 					// Checking whether the venue is blacklisted (i.e. the
 					// venue category is not relevant).
-					if (!useCategoryFilter || !CategoryHandler.isBlackListedVenueStrict(venue)) {
+					if (!useCategoryFilter || !isBlackListedVenue(venue)) {
 						// The current venue has at least one relevant category
 						// and is added to venues.
 						venues.put(venueId, venue);
@@ -120,6 +164,89 @@ public class VenueHandler {
 		}
 	}
 
+	/**
+	 * This method parses the venues packed in the archive located in the
+	 * Foursquare venue directory. It builds the map matching each Foursquare
+	 * venue id with a venue created from the class Venue, filtering the
+	 * venues based on their categories as in the other methods parseVenues.
+	 * 
+	 * @param archiveDirectoryPath the path to the directory containing the
+	 * archive
+	 * @param useCategoryFilter a boolean indicating whether the venues need to
+	 * be filtered based on their categories
+	 * @param venueIds the list of venue ids to parse; all the venues of the
+	 * archive are parsed if it is null
+	 */
+	private void parseArchivedVenues(String archiveDirectoryPath, boolean useCategoryFilter, Collection<String> venueIds) {
+		// venues is reinitialized.
+		venues = new HashMap<String, Venue>();
+		
+		try {
+			VenueArchive venueArchive = VenueArchive.open(archiveDirectoryPath);
+			try {
+				if (venueIds == null) {
+					venueIds = venueArchive.getVenueIds();
+				}
+				
+				// Construction of venues.
+				for (String venueId : venueIds) {
+					String jsonString = venueArchive.getJsonString(venueId);
+					if (jsonString != null) {
+						// Creation of a venue from the current record.
+						Venue venue = new Venue(jsonString);
+						
+						// Checking whether the venue is blacklisted (i.e. the
+						// venue category is not relevant).
+						if (!useCategoryFilter || !isBlackListedVenue(venue)) {
+							venues.put(venueId, venue);
+						}
+					}
+				}
+			} finally {
+				venueArchive.close();
+			}
+		} catch (IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+
+	/**
+	 * This method reads the venues of the venue store located in the
+	 * Foursquare venue directory. It builds the map matching each Foursquare
+	 * venue id with a venue created from its record, filtering the venues
+	 * based on their categories as in the other methods parseVenues.
+	 * 
+	 * @param storeDirectoryPath the path to the directory containing the
+	 * venue store
+	 * @param useCategoryFilter a boolean indicating whether the venues need to
+	 * be filtered based on their categories
+	 * @param venueIds the list of venue ids to parse; all the venues of the
+	 * store are parsed if it is null
+	 */
+	private void parseStoredVenues(String storeDirectoryPath, boolean useCategoryFilter, Collection<String> venueIds) {
+		// venues is reinitialized.
+		venues = new HashMap<String, Venue>();
+		
+		try {
+			// Only the requested venues are created from their records.
+			VenueStore venueStore = VenueStore.open(storeDirectoryPath);
+			if (venueIds == null) {
+				venueIds = venueStore.getVenueIds();
+			}
+			
+			for (String venueId : venueIds) {
+				Venue venue = venueStore.getVenue(venueId);
+				// Checking whether the venue is blacklisted (i.e. the venue
+				// category is not relevant).
+				if (venue != null && (!useCategoryFilter || !isBlackListedVenue(venue))) {
+					venues.put(venueId, venue);
+				}
+			}
+		} catch (IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+
 	public Map<String, Venue> getVenues() {
 		return venues;
 	}
@@ -0,0 +1,181 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * This class is a spatial index over the coordinates of all the venues of the
+ * Foursquare venue directory. It finds the ids of the venues located within a
+ * radius of any point, so that a context can be any point instead of one of
+ * the cities which venue ids have been listed beforehand (see
+ * LocatedIdHandler). Only the ids and the coordinates of the venues are kept
+ * in memory, in a spatial grid (see SpatialGrid).
+ * The index is built by reading the venues one by one, either from the venue
+ * files, from an archive or from a venue store (see VenueHandler). It can be
+ * saved in an index file, which is a sequence of entries made of the venue
+ * id (in modified UTF-8), its latitude (double) and its longitude (double),
+ * and loaded from this file instead of being built again.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueLocationIndex {
+
+	// DEFAULT_CELL_SIZE is the default size (in meters) of the side of the
+	// cells of the spatial grid.
+	public static final double DEFAULT_CELL_SIZE = 2000;
+
+	private double cellSize = DEFAULT_CELL_SIZE;
+	// venueCoordinates maps each venue id with the latitude and the longitude
+	// of the venue.
+	private Map<String, double[]> venueCoordinates = new LinkedHashMap<String, double[]>();
+	private SpatialGrid<String> grid;
+
+	public void setCellSize(double cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	public int size() {
+		return venueCoordinates.size();
+	}
+
+	/**
+	 * This method builds the index from the venues located in the Foursquare
+	 * venue directory. The venues which coordinates are unknown are not
+	 * indexed.
+	 *
+	 * @param venueDirectoryPath the path to the directory containing the
+	 * venues crawled from Foursquare
+	 */
+	public void parseVenueLocations(String venueDirectoryPath) {
+		venueCoordinates = new LinkedHashMap<String, double[]>();
+
+		try {
+			if (VenueStore.isVenueStore(venueDirectoryPath)) {
+				// The venues are read from a venue store.
+				VenueStore venueStore = VenueStore.open(venueDirectoryPath);
+				for (String venueId : venueStore.getVenueIds()) {
+					addVenue(venueId, venueStore.getVenue(venueId));
+				}
+			} else if (VenueArchive.isArchive(venueDirectoryPath)) {
+				// The venues are packed in an archive.
+				VenueArchive venueArchive = VenueArchive.open(venueDirectoryPath);
+				try {
+					for (String venueId : venueArchive.getVenueIds()) {
+						addVenue(venueId, new Venue(venueArchive.getJsonString(venueId)));
+					}
+				} finally {
+					venueArchive.close();
+				}
+			} else {
+				// The venues are stored one file per venue, named by the venue
+				// id.
+				File[] venueInfoFiles = new File(venueDirectoryPath).listFiles();
+				if (venueInfoFiles == null) {
+					throw new IOException("Cannot list the venue directory " + venueDirectoryPath);
+				}
+				for (File venueInfoFile : venueInfoFiles) {
+					if (venueInfoFile.isFile() && !FilenameUtils.getBaseName(venueInfoFile.getName()).equals("")) {
+						addVenue(venueInfoFile.getName(), new Venue(FileUtils.readFileToString(venueInfoFile)));
+					}
+				}
+			}
+		} catch (IOException exception) {
+			exception.printStackTrace();
+		}
+
+		buildGrid();
+	}
+
+	private void addVenue(String venueId, Venue venue) {
+		if (venue.hasCoordinates()) {
+			venueCoordinates.put(venueId, new double[] {venue.getLat(), venue.getLon()});
+		}
+	}
+
+	/**
+	 * This method builds the spatial grid from venueCoordinates. The
+	 * projection of the grid is centered on the mean latitude of the venues.
+	 */
+	private void buildGrid() {
+		double latitudeSum = 0;
+		for (double[] coordinates : venueCoordinates.values()) {
+			latitudeSum += coordinates[0];
+		}
+
+		grid = new SpatialGrid<String>(cellSize, venueCoordinates.isEmpty() ? 0 : latitudeSum/venueCoordinates.size());
+		for (Map.Entry<String, double[]> venue : venueCoordinates.entrySet()) {
+			grid.add(venue.getKey(), venue.getValue()[0], venue.getValue()[1]);
+		}
+	}
+
+	/**
+	 * This method finds the ids of the venues located within a radius of a
+	 * location.
+	 *
+	 * @param location a location
+	 * @param radius the radius in meters
+	 *
+	 * @return the ids of the venues located within the radius of the location
+	 */
+	public List<String> getVenueIdsWithin(Location location, double radius) {
+		return grid.getItemsWithin(location.getLatitude(), location.getLongitude(), radius);
+	}
+
+	/**
+	 * This method saves the index in an index file.
+	 *
+	 * @param indexFilePath the path to the index file
+	 */
+	public void save(String indexFilePath) throws IOException {
+		DataOutputStream indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFilePath)));
+		try {
+			indexOutput.writeInt(venueCoordinates.size());
+			for (Map.Entry<String, double[]> venue : venueCoordinates.entrySet()) {
+				indexOutput.writeUTF(venue.getKey());
+				indexOutput.writeDouble(venue.getValue()[0]);
+				indexOutput.writeDouble(venue.getValue()[1]);
+			}
+		} finally {
+			indexOutput.close();
+		}
+	}
+
+	/**
+	 * This method loads the index from an index file written by the method
+	 * save.
+	 *
+	 * @param indexFilePath the path to the index file
+	 */
+	public void load(String indexFilePath) throws IOException {
+		venueCoordinates = new LinkedHashMap<String, double[]>();
+
+		DataInputStream indexInput = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFilePath)));
+		try {
+			int venueNb = indexInput.readInt();
+			for (int i = 0; i < venueNb; i++) {
+				String venueId = indexInput.readUTF();
+				double latitude = indexInput.readDouble();
+				double longitude = indexInput.readDouble();
+				venueCoordinates.put(venueId, new double[] {latitude, longitude});
+			}
+		} finally {
+			indexInput.close();
+		}
+
+		buildGrid();
+	}
+
+}
@@ -0,0 +1,224 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is used to read the Foursquare venues from a binary venue store,
+ * as written by the pipeline mode of the Foursquare venue fetcher. The store
+ * is the file venues.store of a directory. It starts with a magic number and a
+ * version (int), followed by the records of the venues. A record is made of
+ * its length (int, the number of bytes that follow), the venue id and name,
+ * the latitude and longitude (double, not a number if the venue has no
+ * location), the numbers of likes, check-ins and people here now (int), the
+ * rating (double), the number of categories (int) and the id and name of each
+ * category. A string is written as its length in bytes (int) followed by its
+ * UTF-8 bytes.
+ * The store file is mapped in memory once, and an index matching each venue
+ * id with the position of its record is built by reading the ids only: a
+ * venue is created from its record, without parsing any JSON, only when it
+ * is requested. When a venue appears several times in the store, its last
+ * record is used. The opened stores are shared (see open), and a store is
+ * opened again when its file has changed (e.g. when venues have been
+ * appended to it). A store can be read concurrently by several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueStore {
+
+	// STORE_FILE_NAME is the name of the store file in its directory.
+	public static final String STORE_FILE_NAME = "venues.store";
+	// MAGIC_NUMBER ("CCVS") and VERSION identify the format of the store.
+	public static final int MAGIC_NUMBER = 0x43435653;
+	public static final int VERSION = 1;
+
+	// openedStores maps the path of the directory of each opened store with
+	// the store.
+	private static Map<String, VenueStore> openedStores = new HashMap<String, VenueStore>();
+
+	private File storeFile;
+	// length and lastModified are the length and the time of the last
+	// modification of the store file when it was mapped.
+	private long length;
+	private long lastModified;
+	private MappedByteBuffer buffer;
+	// positions maps each venue id with the position of its last record (after
+	// the length of the record), in the order of the store.
+	private Map<String, Integer> positions = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * This constructor maps the store located in the given directory and
+	 * indexes its records.
+	 *
+	 * @param storeDirectoryPath the path to the directory of the store
+	 */
+	private VenueStore(String storeDirectoryPath) throws IOException {
+		storeFile = new File(storeDirectoryPath, STORE_FILE_NAME);
+		length = storeFile.length();
+		lastModified = storeFile.lastModified();
+
+		RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Venue store too large to be mapped: " + channel.size() + " bytes");
+			}
+			// The mapping remains valid after the file is closed.
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+
+		ByteBuffer indexBuffer = buffer.duplicate();
+		if (indexBuffer.remaining() < 8 || indexBuffer.getInt() != MAGIC_NUMBER || indexBuffer.getInt() != VERSION) {
+			throw new IOException("Not a venue store: " + storeDirectoryPath);
+		}
+
+		while (indexBuffer.remaining() >= 4) {
+			int recordLength = indexBuffer.getInt();
+			if (recordLength > indexBuffer.remaining()) {
+				// The last record is incomplete (interrupted write).
+				break;
+			}
+			int recordStart = indexBuffer.position();
+
+			try {
+				// Only the id of the venue is read.
+				String venueId = readString(indexBuffer);
+				// The previous record of the venue, if any, is replaced.
+				positions.remove(venueId);
+				positions.put(venueId, recordStart);
+			} catch (BufferUnderflowException exception) {
+				throw new IOException("Corrupted venue store: record longer than its length");
+			}
+			indexBuffer.position(recordStart + recordLength);
+		}
+	}
+
+	/**
+	 * This method indicates whether the directory which path is given
+	 * contains a venue store.
+	 *
+	 * @param directoryPath the path to a directory
+	 * @return true if the directory contains a venue store, false otherwise
+	 */
+	public static boolean isVenueStore(String directoryPath) {
+		return new File(directoryPath, STORE_FILE_NAME).isFile();
+	}
+
+	/**
+	 * This method gives the store located in the given directory. The store
+	 * is only mapped and indexed the first time it is requested, or again if
+	 * its file has changed since.
+	 *
+	 * @param storeDirectoryPath the path to the directory of the store
+	 * @return the store
+	 */
+	public static synchronized VenueStore open(String storeDirectoryPath) throws IOException {
+		VenueStore venueStore = openedStores.get(storeDirectoryPath);
+		if (venueStore == null || venueStore.isModified()) {
+			venueStore = new VenueStore(storeDirectoryPath);
+			openedStores.put(storeDirectoryPath, venueStore);
+		}
+		return venueStore;
+	}
+
+	/**
+	 * This method indicates whether the store file has changed since it was
+	 * mapped.
+	 *
+	 * @return true if the store file has changed, false otherwise
+	 */
+	public boolean isModified() {
+		return storeFile.length() != length || storeFile.lastModified() != lastModified;
+	}
+
+	public Collection<String> getVenueIds() {
+		return positions.keySet();
+	}
+
+	/**
+	 * This method creates a venue from its last record in the store.
+	 *
+	 * @param venueId the Foursquare ID of the venue
+	 * @return the venue, or null if the store does not contain the venue
+	 */
+	public Venue getVenue(String venueId) throws IOException {
+		Integer position = positions.get(venueId);
+		if (position == null) {
+			return null;
+		}
+
+		// Each read uses its own view of the buffer, so that the store can be
+		// read by several threads.
+		ByteBuffer recordBuffer = buffer.duplicate();
+		recordBuffer.position(position);
+		try {
+			return readVenue(recordBuffer);
+		} catch (BufferUnderflowException exception) {
+			throw new IOException("Corrupted venue store: record longer than its length");
+		}
+	}
+
+	/**
+	 * This method reads the venues of the store located in the given
+	 * directory.
+	 *
+	 * @param storeDirectoryPath the path to the directory of the store
+	 * @return the map matching each venue id with its venue, in the order of
+	 * the store
+	 */
+	public static Map<String, Venue> readVenues(String storeDirectoryPath) throws IOException {
+		VenueStore venueStore = open(storeDirectoryPath);
+		Map<String, Venue> venues = new LinkedHashMap<String, Venue>();
+		for (String venueId : venueStore.getVenueIds()) {
+			venues.put(venueId, venueStore.getVenue(venueId));
+		}
+		return venues;
+	}
+
+	private static Venue readVenue(ByteBuffer buffer) throws IOException {
+		Venue venue = new Venue();
+		venue.setId(readString(buffer));
+		venue.setName(readString(buffer));
+		double lat = buffer.getDouble();
+		double lon = buffer.getDouble();
+		if (!Double.isNaN(lat) && !Double.isNaN(lon)) {
+			venue.setLat(lat);
+			venue.setLon(lon);
+		}
+		venue.setLikes(buffer.getInt());
+		venue.setCheckincount(buffer.getInt());
+		venue.setHereNow(buffer.getInt());
+		venue.setRating(buffer.getDouble());
+
+		int categoryNb = buffer.getInt();
+		Map<String, String> categories = new HashMap<String, String>();
+		for (int i = 0; i < categoryNb; i++) {
+			String categoryId = readString(buffer);
+			categories.put(categoryId, readString(buffer));
+		}
+		venue.setCategories(categories);
+		venue.setPhotos(new ArrayList<String>());
+
+		return venue;
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+}
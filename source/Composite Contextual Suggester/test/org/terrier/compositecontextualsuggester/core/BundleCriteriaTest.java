@@ -0,0 +1,154 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terrier.compositecontextualsuggester.util.Bundle;
+import org.terrier.compositecontextualsuggester.util.User;
+import org.terrier.compositecontextualsuggester.util.Venue;
+
+/**
+ * This class tests that the scores of the bundles computed in log space by
+ * BundleCriteria equal the scores computed by the formula it replaces, i.e.
+ * the root of the product of the criteria raised to their weights.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class BundleCriteriaTest {
+
+	// SCORE_DELTA is the maximum difference between a score computed in log
+	// space and the same score computed with Math.pow, which only differ by
+	// rounding errors.
+	private static final double SCORE_DELTA = 1e-12;
+	// WEIGHTS contains the weights given to the criteria, including 0, with
+	// which a criterion does not contribute to the score.
+	private static final double[] WEIGHTS = {0, 0.5, 1, 2, 3, 10};
+	// CRITERIA_NB is the number of random criteria tested.
+	private static final int CRITERIA_NB = 100000;
+	private static final int MAX_VENUES_PER_BUNDLE_NB = 5;
+
+	private TestCorpus testCorpus;
+
+	@Before
+	public void setUp() throws IOException {
+		testCorpus = new TestCorpus(30);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testCorpus.delete();
+	}
+
+	/**
+	 * This method computes the score of a bundle as it was computed before
+	 * the scores were computed in log space.
+	 *
+	 * @param criteria the criteria of the bundle
+	 * @param cOpop the weight of the overall popularity (opop)
+	 * @param cTcoh the weight of the topical coherence (tcoh)
+	 * @param cEapp the weight of the estimated appreciation (eapp)
+	 *
+	 * @return the score of the bundle
+	 */
+	private static double powScore(BundleCriteria criteria, double cOpop, double cTcoh, double cEapp) {
+		return Math.pow(
+				Math.pow(criteria.getOpop(), cOpop)*
+				Math.pow(criteria.getTcoh(), cTcoh)*
+				Math.pow(criteria.getEapp(), cEapp),
+				1/(cOpop + cTcoh + cEapp));
+	}
+
+	/**
+	 * This method draws a random criterion, which is 0 or 1 with a small
+	 * probability.
+	 *
+	 * @param random the generator of random numbers
+	 *
+	 * @return the criterion
+	 */
+	private static double randomCriterion(Random random) {
+		int draw = random.nextInt(20);
+		return draw == 0 ? 0 : draw == 1 ? 1 : random.nextDouble();
+	}
+
+	private static void assertScoreEquals(String message, BundleCriteria criteria, double cOpop, double cTcoh, double cEapp) {
+		double expectedScore = powScore(criteria, cOpop, cTcoh, cEapp);
+		double score = criteria.score(cOpop, cTcoh, cEapp);
+		assertEquals(message, expectedScore, score, SCORE_DELTA);
+		assertEquals(message, Math.exp(criteria.logScore(cOpop, cTcoh, cEapp)), score, 0);
+	}
+
+	@Test
+	public void testScoreEqualsPowScoreOnRandomCriteria() {
+		Random random = new Random(30);
+		for (int i = 0; i < CRITERIA_NB; i++) {
+			// The eapp of a bundle which venues are not similar to any rated
+			// venue (i.e. which totalTsim is 0) is not a number.
+			double eapp = random.nextInt(20) == 0 ? Double.NaN : randomCriterion(random);
+			BundleCriteria criteria = new BundleCriteria(randomCriterion(random), randomCriterion(random), eapp);
+			double[] weights = new double[3];
+			for (int j = 0; j < weights.length; j++) {
+				weights[j] = random.nextBoolean() ? WEIGHTS[random.nextInt(WEIGHTS.length)] : 10*random.nextDouble();
+			}
+			if (weights[0] + weights[1] + weights[2] == 0) {
+				weights[random.nextInt(weights.length)] = 1;
+			}
+
+			String message = criteria.getOpop() + "," + criteria.getTcoh() + "," + criteria.getEapp() + "/" +
+					weights[0] + "," + weights[1] + "," + weights[2];
+			assertScoreEquals(message, criteria, weights[0], weights[1], weights[2]);
+		}
+	}
+
+	@Test
+	public void testScoreEqualsPowScoreOnBundles() {
+		// undefinedEappBundleNb is the number of bundles which eapp is not a
+		// number, which ensures that such bundles are tested.
+		int undefinedEappBundleNb = 0;
+		// The user without ratings has no venue similar to the venues of the
+		// bundles.
+		User userWithoutRatings = new User("0");
+		userWithoutRatings.setVenueRatings(new HashMap<String, Double>());
+		User[] users = {testCorpus.getUsers().get(TestCorpus.USER_IDS[0]), testCorpus.getUsers().get(TestCorpus.USER_IDS[1]),
+				userWithoutRatings};
+		for (User user : users) {
+			for (String contextId : testCorpus.getContextIds()) {
+				ContextualBundleBuilder contextualBundleBuilder = testCorpus.createBuilder(user, contextId);
+				for (Venue pivot : testCorpus.getLocalVenues(contextId).values()) {
+					Bundle<Venue> bundle = contextualBundleBuilder.pickBundle(pivot, MAX_VENUES_PER_BUNDLE_NB);
+					BundleCriteria criteria = contextualBundleBuilder.criteria(bundle);
+					if (Double.isNaN(criteria.getEapp())) {
+						undefinedEappBundleNb++;
+					}
+					for (double cOpop : WEIGHTS) {
+						for (double cTcoh : WEIGHTS) {
+							for (double cEapp : WEIGHTS) {
+								if (cOpop + cTcoh + cEapp == 0) {
+									continue;
+								}
+								String message = user.getId() + "/" + contextId + "/" + pivot.getId() + "/" + cOpop + "," + cTcoh + "," + cEapp;
+								assertScoreEquals(message, criteria, cOpop, cTcoh, cEapp);
+
+								// The upper bound on the scores of the bundles built
+								// around the pivot only depends on its opop.
+								contextualBundleBuilder.setScoreWeights(cOpop, cTcoh, cEapp);
+								assertEquals(message, Math.pow(Math.pow(contextualBundleBuilder.opop(pivot), cOpop), 1/(cOpop + cTcoh + cEapp)),
+										Math.exp(contextualBundleBuilder.logScoreUpperBound(pivot)), SCORE_DELTA);
+							}
+						}
+					}
+				}
+			}
+		}
+		assertTrue(undefinedEappBundleNb > 0);
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terrier.compositecontextualsuggester.util.Bundle;
+import org.terrier.compositecontextualsuggester.util.User;
+import org.terrier.compositecontextualsuggester.util.Venue;
+
+/**
+ * This class tests that the bundles emitted to a BundleListener are the
+ * bundles chosen by chooseBundles, in the same order, with or without
+ * pruning.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class BundleListenerTest {
+
+	private static final int MAX_VENUES_PER_BUNDLE_NB = 5;
+	private static final int BUNDLE_NB = 40;
+	private static final int RETURNED_BUNDLE_NB = 10;
+
+	private TestCorpus testCorpus;
+
+	@Before
+	public void setUp() throws IOException {
+		testCorpus = new TestCorpus(50);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testCorpus.delete();
+	}
+
+	@Test
+	public void testEmittedBundlesEqualChosenBundles() {
+		// duringBoboBundleNb is the number of bundles emitted before
+		// chooseBundles, which ensures that the bundles are streamed.
+		int duringBoboBundleNb = 0;
+		for (String userId : TestCorpus.USER_IDS) {
+			User user = testCorpus.getUsers().get(userId);
+			for (String contextId : testCorpus.getContextIds()) {
+				for (double[] scoreWeights : TestCorpus.SCORE_WEIGHTS) {
+					for (boolean pruning : new boolean[] {false, true}) {
+						final ContextualBundleBuilder contextualBundleBuilder = testCorpus.createBuilder(user, contextId);
+						contextualBundleBuilder.setScoreWeights(scoreWeights[0], scoreWeights[1], scoreWeights[2]);
+						final List<Bundle<Venue>> emittedBundles = new ArrayList<Bundle<Venue>>();
+						contextualBundleBuilder.setBundleListener(new BundleListener() {
+							public void bundleRanked(int rank, Bundle<Venue> bundle, double score) {
+								assertEquals(emittedBundles.size() + 1, rank);
+								assertEquals(contextualBundleBuilder.score(bundle), score, 0);
+								emittedBundles.add(bundle);
+							}
+						});
+
+						contextualBundleBuilder.bobo(MAX_VENUES_PER_BUNDLE_NB, BUNDLE_NB, pruning ? RETURNED_BUNDLE_NB : 0);
+						if (!pruning) {
+							assertEquals(0, emittedBundles.size());
+						}
+						duringBoboBundleNb += emittedBundles.size();
+						contextualBundleBuilder.chooseBundles(RETURNED_BUNDLE_NB);
+
+						String message = userId + "/" + contextId + "/" + scoreWeights[0] + "," + scoreWeights[1] + "," + scoreWeights[2] + "/" + pruning;
+						assertTrue(message, !emittedBundles.isEmpty());
+						assertEquals(message, new ArrayList<Bundle<Venue>>(contextualBundleBuilder.getChosenBundles()), emittedBundles);
+					}
+				}
+			}
+		}
+		assertTrue(duringBoboBundleNb > 0);
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terrier.compositecontextualsuggester.util.User;
+import org.terrier.compositecontextualsuggester.util.Venue;
+
+/**
+ * This class tests the optimizations of ContextualBundleBuilder against the
+ * computations they replace.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class ContextualBundleBuilderTest {
+
+	// EAPP_DELTA is the maximum difference between an eapp updated
+	// incrementally and the same eapp computed from scratch, which only
+	// differ by rounding errors.
+	private static final double EAPP_DELTA = 1e-12;
+	// RETURNED_BUNDLE_NBS contains the numbers of bundles chosen by the
+	// builders.
+	private static final int[] RETURNED_BUNDLE_NBS = {1, 3, 10};
+	private static final int MAX_VENUES_PER_BUNDLE_NB = 5;
+	private static final int BUNDLE_NB = 40;
+
+	private TestCorpus testCorpus;
+
+	@Before
+	public void setUp() throws IOException {
+		testCorpus = new TestCorpus(48);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testCorpus.delete();
+	}
+
+	/**
+	 * This method creates a builder for a user in a context, which rated
+	 * venues contain the venues of the context, so that they can be rated.
+	 *
+	 * @param user a user
+	 * @param contextId the id of the context
+	 * @param ratedVenues the rated venues
+	 *
+	 * @return the builder
+	 */
+	private ContextualBundleBuilder createBuilder(User user, String contextId, Map<String, Venue> ratedVenues) {
+		ContextualBundleBuilder contextualBundleBuilder = testCorpus.createBuilder(user, contextId);
+		contextualBundleBuilder.setRatedVenues(ratedVenues);
+		return contextualBundleBuilder;
+	}
+
+	/**
+	 * This method builds and chooses the bundles suggested to a user in a
+	 * context, and writes them as in a run file.
+	 *
+	 * @param contextualBundleBuilder the builder
+	 * @param userId the id of the user
+	 * @param contextId the id of the context
+	 * @param returnedBundleNb the number of bundles to choose
+	 * @param pruning true if the generation of the bundles is pruned
+	 *
+	 * @return the lines describing the chosen bundles
+	 */
+	private static String suggest(ContextualBundleBuilder contextualBundleBuilder, String userId, String contextId,
+			int returnedBundleNb, boolean pruning) {
+		contextualBundleBuilder.bobo(MAX_VENUES_PER_BUNDLE_NB, BUNDLE_NB, pruning ? returnedBundleNb : 0);
+		contextualBundleBuilder.chooseBundles(returnedBundleNb);
+		StringWriter output = new StringWriter();
+		PrintWriter printWriter = new PrintWriter(output);
+		ContextualBundleSuggester.writeBundles(printWriter, userId, contextId, contextualBundleBuilder,
+				contextualBundleBuilder.getChosenBundles());
+		printWriter.flush();
+		return output.toString();
+	}
+
+	@Test
+	public void testPrunedBundlesEqualUnprunedBundles() {
+		// prunedRunNb is the number of runs which generation has actually
+		// been pruned, which ensures that the pruning is tested.
+		int prunedRunNb = 0;
+		for (String userId : TestCorpus.USER_IDS) {
+			User user = testCorpus.getUsers().get(userId);
+			for (String contextId : testCorpus.getContextIds()) {
+				for (double[] scoreWeights : TestCorpus.SCORE_WEIGHTS) {
+					for (int returnedBundleNb : RETURNED_BUNDLE_NBS) {
+						// bobo consumes the local venues of a builder: each run
+						// has its own builder.
+						ContextualBundleBuilder unprunedBuilder = testCorpus.createBuilder(user, contextId);
+						unprunedBuilder.setScoreWeights(scoreWeights[0], scoreWeights[1], scoreWeights[2]);
+						String unprunedOutput = suggest(unprunedBuilder, userId, contextId, returnedBundleNb, false);
+						ContextualBundleBuilder prunedBuilder = testCorpus.createBuilder(user, contextId);
+						prunedBuilder.setScoreWeights(scoreWeights[0], scoreWeights[1], scoreWeights[2]);
+						String prunedOutput = suggest(prunedBuilder, userId, contextId, returnedBundleNb, true);
+						if (prunedBuilder.isPruned()) {
+							prunedRunNb++;
+						}
+
+						String message = userId + "/" + contextId + "/" + scoreWeights[0] + "," + scoreWeights[1] + "," + scoreWeights[2] + "/" + returnedBundleNb;
+						assertTrue(message, unprunedOutput.length() > 0);
+						assertEquals(message, unprunedOutput, prunedOutput);
+					}
+				}
+			}
+		}
+		assertTrue(prunedRunNb > 0);
+	}
+
+	@Test
+	public void testPickBundleIgnoresBudget() {
+		User user = testCorpus.getUsers().get(TestCorpus.USER_IDS[0]);
+		String contextId = testCorpus.getContextIds().get(0);
+		ContextualBundleBuilder contextualBundleBuilder = testCorpus.createBuilder(user, contextId);
+		ContextualBundleBuilder budgetedBuilder = testCorpus.createBuilder(user, contextId);
+		// The budget of bobo has already run out when bobo has not been
+		// executed.
+		budgetedBuilder.setTimeBudget(1);
+		budgetedBuilder.setWorkBudget(1);
+		Venue pivot = testCorpus.getLocalVenues(contextId).values().iterator().next();
+
+		List<Venue> bundleVenues = contextualBundleBuilder.pickBundle(pivot, MAX_VENUES_PER_BUNDLE_NB).getItems();
+		assertEquals(MAX_VENUES_PER_BUNDLE_NB, bundleVenues.size());
+		assertEquals(bundleVenues, budgetedBuilder.pickBundle(pivot, MAX_VENUES_PER_BUNDLE_NB).getItems());
+	}
+
+	@Test
+	public void testIncrementalEappEqualsFromScratchEapp() {
+		for (String userId : TestCorpus.USER_IDS) {
+			for (String contextId : testCorpus.getContextIds()) {
+				User user = TestCorpus.copyUser(testCorpus.getUsers().get(userId));
+				Map<String, Venue> localVenues = testCorpus.getLocalVenues(contextId);
+				Map<String, Venue> ratedVenues = new HashMap<String, Venue>(testCorpus.getRatedVenues(user));
+				ratedVenues.putAll(localVenues);
+				ContextualBundleBuilder contextualBundleBuilder = createBuilder(user, contextId, ratedVenues);
+				for (Venue venue : localVenues.values()) {
+					contextualBundleBuilder.eapp(venue);
+				}
+
+				// The changes remove a rating, change ratings (including from
+				// and to a rating that is not counted), and rate venues of the
+				// context.
+				List<String> ratedVenueIds = new ArrayList<String>(user.getVenueRatings().keySet());
+				List<String> localVenueIds = new ArrayList<String>(localVenues.keySet());
+				String[] changedVenueIds = {ratedVenueIds.get(0), ratedVenueIds.get(1), ratedVenueIds.get(2),
+						ratedVenueIds.get(2), localVenueIds.get(0), localVenueIds.get(1), localVenueIds.get(0)};
+				Double[] ratings = {null, 0.5, -0.25, 1.0, 0.75, -0.25, 0.0};
+				for (int i = 0; i < changedVenueIds.length; i++) {
+					Double previousRating = user.setVenueRating(changedVenueIds[i], ratings[i]);
+					contextualBundleBuilder.updateRating(contextualBundleBuilder.getEappTable(), ratedVenues.get(changedVenueIds[i]),
+							previousRating, ratings[i]);
+
+					ContextualBundleBuilder fromScratchBuilder = createBuilder(TestCorpus.copyUser(user), contextId, ratedVenues);
+					assertEquals(localVenues.size(), contextualBundleBuilder.getEappTable().size());
+					for (Venue venue : localVenues.values()) {
+						String message = userId + "/" + contextId + "/" + i + "/" + venue.getId();
+						assertEquals(message, fromScratchBuilder.eapp(venue), contextualBundleBuilder.eapp(venue), EAPP_DELTA);
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,419 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.terrier.compositecontextualsuggester.util.User;
+
+/**
+ * This class tests ContextualBundleService: the coalescing of identical
+ * requests, the cache of the results and the replacement of the version of
+ * the corpus.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class ContextualBundleServiceTest {
+
+	private static final SuggestionParameters PARAMETERS = new SuggestionParameters(3, 3, 10, 1, 1, 10);
+	// THREAD_NB is the number of threads sending identical requests.
+	private static final int THREAD_NB = 8;
+	// WAIT_TIME is the maximum time (in milliseconds) the tests wait for the
+	// service to reach an expected state.
+	private static final long WAIT_TIME = 10000;
+
+	private TestCorpus testCorpus;
+	private GatedCategoryHandler categoryHandler;
+	private ContextualBundleService service;
+	private String contextId;
+
+	@Before
+	public void setUp() throws IOException {
+		testCorpus = new TestCorpus(47);
+		categoryHandler = new GatedCategoryHandler();
+		categoryHandler.parseCategories(TestCorpus.CATEGORY_FILE_PATH);
+		service = testCorpus.createService(categoryHandler);
+		contextId = testCorpus.getContextIds().get(0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		categoryHandler.open();
+		service.shutdown();
+		testCorpus.delete();
+	}
+
+	private User getUser(int index) {
+		return testCorpus.getUsers().get(TestCorpus.USER_IDS[index]);
+	}
+
+	/**
+	 * This method gives the result of a request to a new service, which is
+	 * the result expected from the service tested.
+	 *
+	 * @param user the user
+	 *
+	 * @return the lines describing the suggested bundles
+	 */
+	private String suggestFromNewService(User user) {
+		ContextualBundleService newService = testCorpus.createService(testCorpus.getCategoryHandler());
+		try {
+			return newService.suggest(user, contextId, PARAMETERS);
+		} finally {
+			newService.shutdown();
+		}
+	}
+
+	/**
+	 * This method waits until the number of coalesced requests of the service
+	 * reaches an expected number.
+	 *
+	 * @param coalescedRequestNb the expected number of coalesced requests
+	 */
+	private void awaitCoalescedRequestNb(long coalescedRequestNb) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_TIME;
+		while (service.getCoalescedRequestNb() < coalescedRequestNb && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(coalescedRequestNb, service.getCoalescedRequestNb());
+	}
+
+	/**
+	 * This method waits until the number of threads waiting for the
+	 * categories (i.e. of held requests) reaches an expected number.
+	 *
+	 * @param waitingThreadNb the expected number of waiting threads
+	 */
+	private void awaitWaitingThreadNb(int waitingThreadNb) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_TIME;
+		while (categoryHandler.getWaitingThreadNb() < waitingThreadNb && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(waitingThreadNb, categoryHandler.getWaitingThreadNb());
+	}
+
+	/**
+	 * This method sends a request in another thread and waits until the
+	 * creation of its bundles is held, the category handler being closed.
+	 *
+	 * @param executor the executor running the request
+	 * @param user the user
+	 * @param locationId the id of the context
+	 *
+	 * @return the result of the request
+	 */
+	private Future<String> submitHeldRequest(ExecutorService executor, final User user, final String locationId)
+			throws InterruptedException {
+		Future<String> result = executor.submit(new Callable<String>() {
+			public String call() {
+				return service.suggest(user, locationId, PARAMETERS);
+			}
+		});
+		awaitWaitingThreadNb(1);
+		return result;
+	}
+
+	@Test
+	public void testIdenticalRequestsAreCoalesced() throws Exception {
+		// The venues of the context are fetched before the creation of the
+		// bundles is held.
+		service.suggest(getUser(1), contextId, PARAMETERS);
+		categoryHandler.close();
+
+		final User user = getUser(0);
+		ExecutorService executor = Executors.newFixedThreadPool(THREAD_NB);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < THREAD_NB; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() {
+						return service.suggest(user, contextId, PARAMETERS);
+					}
+				}));
+			}
+			// A single request creates the bundles, the others wait for it.
+			awaitCoalescedRequestNb(THREAD_NB - 1);
+			categoryHandler.open();
+
+			String expectedOutput = suggestFromNewService(user);
+			assertTrue(expectedOutput.length() > 0);
+			for (Future<String> result : results) {
+				assertEquals(expectedOutput, result.get(WAIT_TIME, TimeUnit.MILLISECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(2, service.getCache().size());
+		assertEquals(THREAD_NB - 1, service.getCoalescedRequestNb());
+	}
+
+	@Test
+	public void testTimedOutRequestIsCached() throws Exception {
+		service.suggest(getUser(1), contextId, PARAMETERS);
+		categoryHandler.close();
+
+		final User user = getUser(0);
+		try {
+			service.suggest(user, contextId, PARAMETERS, 1, TimeUnit.MILLISECONDS);
+			throw new AssertionError("The request did not time out");
+		} catch (TimeoutException exception) {
+			// The bundles are still being created.
+		}
+
+		// A request with a longer timeout waits for the same computation.
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> result = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					return service.suggest(user, contextId, PARAMETERS, WAIT_TIME, TimeUnit.MILLISECONDS);
+				}
+			});
+			awaitCoalescedRequestNb(1);
+			categoryHandler.open();
+
+			String expectedOutput = suggestFromNewService(user);
+			assertEquals(expectedOutput, result.get(WAIT_TIME, TimeUnit.MILLISECONDS));
+			long hitNb = service.getCache().getHitNb();
+			assertEquals(expectedOutput, service.suggest(user, contextId, PARAMETERS, 1, TimeUnit.MILLISECONDS));
+			assertEquals(hitNb + 1, service.getCache().getHitNb());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInterruptedRequestDoesNotCancelComputation() throws Exception {
+		service.suggest(getUser(1), contextId, PARAMETERS);
+		categoryHandler.close();
+
+		final User user = getUser(0);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// The first request creates the bundles in its thread.
+			Future<String> result = executor.submit(new Callable<String>() {
+				public String call() {
+					return service.suggest(user, contextId, PARAMETERS);
+				}
+			});
+			awaitWaitingThreadNb(1);
+
+			// The second request waits for the first one, and is interrupted.
+			final AtomicReference<Throwable> interruption = new AtomicReference<Throwable>();
+			Future<?> interruptedRequest = executor.submit(new Runnable() {
+				public void run() {
+					try {
+						service.suggest(user, contextId, PARAMETERS, WAIT_TIME, TimeUnit.MILLISECONDS);
+					} catch (Throwable throwable) {
+						interruption.set(throwable);
+					}
+				}
+			});
+			awaitCoalescedRequestNb(1);
+			interruptedRequest.cancel(true);
+			long deadline = System.currentTimeMillis() + WAIT_TIME;
+			while (interruption.get() == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			assertTrue(String.valueOf(interruption.get()), interruption.get() instanceof InterruptedException);
+
+			categoryHandler.open();
+			String expectedOutput = suggestFromNewService(user);
+			assertEquals(expectedOutput, result.get(WAIT_TIME, TimeUnit.MILLISECONDS));
+			long hitNb = service.getCache().getHitNb();
+			assertEquals(expectedOutput, service.suggest(user, contextId, PARAMETERS));
+			assertEquals(hitNb + 1, service.getCache().getHitNb());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFinishedComputationIsNotReused() {
+		User user = getUser(0);
+		String output = service.suggest(user, contextId, PARAMETERS);
+		service.invalidate(user.getId(), null);
+
+		// The result is created again instead of being taken from the
+		// finished computation.
+		long missNb = service.getCache().getMissNb();
+		assertEquals(output, service.suggest(user, contextId, PARAMETERS));
+		assertEquals(missNb + 1, service.getCache().getMissNb());
+		assertEquals(0, service.getCoalescedRequestNb());
+	}
+
+	/**
+	 * This method requests the bundles of the given users in all the contexts.
+	 *
+	 * @param users the users
+	 */
+	private void suggestAll(User... users) {
+		for (User user : users) {
+			for (String locationId : testCorpus.getContextIds()) {
+				service.suggest(user, locationId, PARAMETERS);
+			}
+		}
+	}
+
+	@Test
+	public void testChangedRatingsInvalidateOnlyTheResultsOfTheUser() {
+		User user = TestCorpus.copyUser(getUser(0));
+		User otherUser = getUser(1);
+		suggestAll(user, otherUser);
+		assertEquals(4, service.getCache().size());
+
+		// The ratings are changed without notifying the service: the change
+		// is detected from the fingerprint of the ratings.
+		String venueId = user.getVenueRatings().keySet().iterator().next();
+		user.setVenueRating(venueId, user.getVenueRatings().get(venueId) == 1.0 ? 0.0 : 1.0);
+		String output = service.suggest(user, contextId, PARAMETERS);
+		assertEquals(2, service.getCache().getInvalidationNb());
+		assertEquals(suggestFromNewService(user), output);
+
+		long hitNb = service.getCache().getHitNb();
+		suggestAll(otherUser);
+		assertEquals(hitNb + 2, service.getCache().getHitNb());
+	}
+
+	@Test
+	public void testUnchangedVenuesKeepResults() {
+		suggestAll(getUser(0), getUser(1));
+		assertEquals(0, service.reload().size());
+		assertFalse(service.reloadContext(contextId));
+		assertEquals(0, service.getCache().getInvalidationNb());
+
+		long hitNb = service.getCache().getHitNb();
+		suggestAll(getUser(0), getUser(1));
+		assertEquals(hitNb + 4, service.getCache().getHitNb());
+	}
+
+	@Test
+	public void testCacheEvictsAtCapacity() {
+		service.setCacheCapacity(3);
+		suggestAll(getUser(0), getUser(1));
+		assertEquals(3, service.getCache().size());
+		assertEquals(1, service.getCache().getEvictionNb());
+
+		// The least recently used result has been evicted.
+		long missNb = service.getCache().getMissNb();
+		service.suggest(getUser(0), testCorpus.getContextIds().get(0), PARAMETERS);
+		assertEquals(missNb + 1, service.getCache().getMissNb());
+	}
+
+	@Test
+	public void testRequestInProgressFinishesOnPreviousVersion() throws Exception {
+		User user = getUser(0);
+		suggestAll(getUser(1));
+		String previousOutput = suggestFromNewService(user);
+		categoryHandler.close();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> result = submitHeldRequest(executor, user, contextId);
+			String venueId = testCorpus.getLocalVenues(contextId).keySet().iterator().next();
+			testCorpus.setLikeNb(venueId, 1000000);
+			assertEquals(Collections.singleton(contextId), service.reload());
+			categoryHandler.open();
+
+			// The request is answered from the venues it started with, but
+			// its result is not cached as they have been replaced.
+			assertEquals(previousOutput, result.get(WAIT_TIME, TimeUnit.MILLISECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, service.getCache().size());
+		long missNb = service.getCache().getMissNb();
+		assertEquals(suggestFromNewService(user), service.suggest(user, contextId, PARAMETERS));
+		assertEquals(missNb + 1, service.getCache().getMissNb());
+	}
+
+	@Test
+	public void testUnchangedContextKeepsItsVenues() throws Exception {
+		User user = getUser(0);
+		suggestAll(getUser(1));
+		categoryHandler.close();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		String otherContextId = testCorpus.getContextIds().get(1);
+		try {
+			Future<String> result = submitHeldRequest(executor, user, contextId);
+			String venueId = testCorpus.getLocalVenues(otherContextId).keySet().iterator().next();
+			testCorpus.setLikeNb(venueId, 1000000);
+			assertEquals(Collections.singleton(otherContextId), service.reload());
+			categoryHandler.open();
+
+			// The venues of the context of the request have been kept in the
+			// new version of the corpus, which is required for the result to
+			// be cached and for the eapps computed for them to remain valid.
+			assertEquals(suggestFromNewService(user), result.get(WAIT_TIME, TimeUnit.MILLISECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		long hitNb = service.getCache().getHitNb();
+		long missNb = service.getCache().getMissNb();
+		service.suggest(user, contextId, PARAMETERS);
+		service.suggest(getUser(1), contextId, PARAMETERS);
+		service.suggest(getUser(1), otherContextId, PARAMETERS);
+		assertEquals(hitNb + 2, service.getCache().getHitNb());
+		assertEquals(missNb + 1, service.getCache().getMissNb());
+	}
+
+	@Test
+	public void testChangedCategoriesInvalidateAllResults() throws Exception {
+		User user = getUser(0);
+		suggestAll(getUser(1));
+		service.setCategoryFilePath(TestCorpus.CATEGORY_FILE_PATH);
+		assertEquals(0, service.reloadCategories().size());
+		assertEquals(0, service.getCache().getInvalidationNb());
+
+		// A category is added to the category tree.
+		File categoryFile = File.createTempFile("categories", ".json");
+		try {
+			String categories = FileUtils.readFileToString(new File(TestCorpus.CATEGORY_FILE_PATH), "UTF-8").trim();
+			FileUtils.writeStringToFile(categoryFile, categories.substring(0, categories.length() - 1) +
+					",{\"id\":\"test\",\"name\":\"Test\",\"pluralName\":\"Tests\",\"shortName\":\"Test\"," +
+					"\"icon\":{\"prefix\":\"test_\",\"suffix\":\".png\"},\"categories\":[]}]", "UTF-8");
+			service.setCategoryFilePath(categoryFile.getPath());
+			categoryHandler.close();
+
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				Future<String> result = submitHeldRequest(executor, user, contextId);
+				long corpusVersion = service.getCorpusVersion();
+				assertEquals(0, service.reloadCategories().size());
+				assertEquals(corpusVersion + 1, service.getCorpusVersion());
+				categoryHandler.open();
+
+				// The result of the previous categories is not cached.
+				result.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+			} finally {
+				executor.shutdownNow();
+			}
+		} finally {
+			categoryFile.delete();
+		}
+		assertEquals(0, service.getCache().size());
+		assertEquals(2, service.getCache().getInvalidationNb());
+		long missNb = service.getCache().getMissNb();
+		suggestAll(getUser(1));
+		assertEquals(missNb + 2, service.getCache().getMissNb());
+	}
+
+}
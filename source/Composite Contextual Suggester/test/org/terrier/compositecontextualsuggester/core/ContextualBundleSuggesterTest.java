@@ -0,0 +1,53 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the options of ContextualBundleSuggester.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class ContextualBundleSuggesterTest {
+
+	private TestCorpus testCorpus;
+	private File outputDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		testCorpus = new TestCorpus(42);
+		outputDirectory = new File(testCorpus.getVenueDirectoryPath() + "-output");
+		outputDirectory.mkdir();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testCorpus.delete();
+		FileUtils.deleteDirectory(outputDirectory);
+	}
+
+	@Test
+	public void testInvalidAdHocContextsAreRejected() throws IOException, InterruptedException {
+		File outputFile = new File(outputDirectory, "run.txt");
+		testCorpus.runSuggester(outputFile.getPath());
+		assertTrue(outputFile.exists());
+
+		// The options are rejected before any output is written.
+		String[] invalidAdHocContexts = {"c,40.0", "c,40.0,-80.0,1", ",40.0,-80.0", "c,north,-80.0", "c,40.0,"};
+		for (String invalidAdHocContext : invalidAdHocContexts) {
+			File invalidOutputFile = new File(outputDirectory, "invalid.txt");
+			testCorpus.runSuggester(invalidOutputFile.getPath(), "-adhoc", invalidAdHocContext);
+			assertFalse(invalidAdHocContext, invalidOutputFile.exists());
+		}
+	}
+
+}
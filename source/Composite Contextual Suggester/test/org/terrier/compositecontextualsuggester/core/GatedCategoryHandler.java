@@ -0,0 +1,59 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.terrier.compositecontextualsuggester.util.Category;
+import org.terrier.compositecontextualsuggester.util.CategoryHandler;
+
+/**
+ * This class is an implementation of a category handler which categories
+ * cannot be obtained while it is closed: the threads requesting them wait
+ * until it is opened. It is used by the tests to hold the creation of the
+ * bundles by ContextualBundleService, which requests the categories.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+class GatedCategoryHandler extends CategoryHandler {
+
+	// gate is the latch the threads requesting the categories wait for, or
+	// null if the handler is open.
+	private volatile CountDownLatch gate;
+	// waitingThreadNb is the number of threads waiting for the gate.
+	private AtomicInteger waitingThreadNb = new AtomicInteger();
+
+	void close() {
+		gate = new CountDownLatch(1);
+	}
+
+	void open() {
+		CountDownLatch currentGate = gate;
+		gate = null;
+		if (currentGate != null) {
+			currentGate.countDown();
+		}
+	}
+
+	int getWaitingThreadNb() {
+		return waitingThreadNb.get();
+	}
+
+	@Override
+	public Map<String, Category> getCategories() {
+		CountDownLatch currentGate = gate;
+		if (currentGate != null) {
+			waitingThreadNb.incrementAndGet();
+			try {
+				currentGate.await();
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			} finally {
+				waitingThreadNb.decrementAndGet();
+			}
+		}
+		return super.getCategories();
+	}
+
+}
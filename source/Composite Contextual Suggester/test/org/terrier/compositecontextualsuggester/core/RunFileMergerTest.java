@@ -0,0 +1,107 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests that the outputs of the shards of a run, merged with
+ * RunFileMerger, are identical to the output of the same run in a single
+ * execution.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class RunFileMergerTest {
+
+	// SHARD_NB is the number of shards of the sharded runs.
+	private static final int SHARD_NB = 3;
+
+	private TestCorpus testCorpus;
+	private File outputDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		testCorpus = new TestCorpus(44);
+		outputDirectory = new File(testCorpus.getVenueDirectoryPath() + "-output");
+		outputDirectory.mkdir();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		testCorpus.delete();
+		FileUtils.deleteDirectory(outputDirectory);
+	}
+
+	/**
+	 * This method runs the shards of a run and merges their outputs.
+	 *
+	 * @param mergedOutputFile the merged run file
+	 * @param options the options added to those of the test corpus
+	 *
+	 * @return the number of pairs of the run
+	 */
+	private int runShards(File mergedOutputFile, String... options) throws IOException, InterruptedException {
+		List<String> shardOutputFilePaths = new ArrayList<String>();
+		for (int shardIndex = 1; shardIndex <= SHARD_NB; shardIndex++) {
+			String shardOutputFilePath = new File(outputDirectory, "shard" + shardIndex + ".txt").getPath();
+			List<String> shardOptions = new ArrayList<String>(Arrays.asList(options));
+			shardOptions.add("-shard");
+			shardOptions.add(shardIndex + "/" + SHARD_NB);
+			testCorpus.runSuggester(shardOutputFilePath, shardOptions.toArray(new String[shardOptions.size()]));
+			shardOutputFilePaths.add(shardOutputFilePath);
+		}
+		// The shards are merged in an order that differs from their indices.
+		shardOutputFilePaths.add(shardOutputFilePaths.remove(0));
+		return RunFileMerger.merge(shardOutputFilePaths, mergedOutputFile.getPath());
+	}
+
+	@Test
+	public void testMergedShardsEqualSingleRun() throws IOException, InterruptedException {
+		File singleOutputFile = new File(outputDirectory, "single.txt");
+		testCorpus.runSuggester(singleOutputFile.getPath());
+		File mergedOutputFile = new File(outputDirectory, "merged.txt");
+		int pairNb = runShards(mergedOutputFile);
+
+		assertEquals(TestCorpus.CONTEXTS.length*TestCorpus.USER_IDS.length, pairNb);
+		byte[] singleOutput = FileUtils.readFileToByteArray(singleOutputFile);
+		assertTrue(singleOutput.length > 0);
+		assertArrayEquals(singleOutput, FileUtils.readFileToByteArray(mergedOutputFile));
+	}
+
+	@Test
+	public void testMergedScheduledShardsEqualSingleRun() throws IOException, InterruptedException {
+		File singleOutputFile = new File(outputDirectory, "single.txt");
+		testCorpus.runSuggester(singleOutputFile.getPath());
+		File mergedOutputFile = new File(outputDirectory, "merged.txt");
+		runShards(mergedOutputFile, "-schedule", "-threads", "2");
+
+		assertArrayEquals(FileUtils.readFileToByteArray(singleOutputFile), FileUtils.readFileToByteArray(mergedOutputFile));
+	}
+
+	@Test
+	public void testInvalidShardOptionsAreRejected() throws IOException, InterruptedException {
+		// The options are rejected before any output is written.
+		String[][] invalidOptions = {{"-shard", "1/3", "-append"}, {"-shard", "1/3", "-sweep", "nbunret=1,3"},
+				{"-shard", "4/3"}, {"-shard", "a/3"}};
+		for (String[] options : invalidOptions) {
+			File outputFile = new File(outputDirectory, "invalid.txt");
+			testCorpus.runSuggester(outputFile.getPath(), options);
+			assertFalse(Arrays.toString(options), outputFile.exists());
+			assertFalse(Arrays.toString(options), new File(RunFileMerger.getPairFilePath(outputFile.getPath())).exists());
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+package org.terrier.compositecontextualsuggester.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.terrier.compositecontextualsuggester.util.CategoryHandler;
+import org.terrier.compositecontextualsuggester.util.Location;
+import org.terrier.compositecontextualsuggester.util.User;
+import org.terrier.compositecontextualsuggester.util.UserHandler;
+import org.terrier.compositecontextualsuggester.util.Venue;
+import org.terrier.compositecontextualsuggester.util.VenueHandler;
+import org.terrier.compositecontextualsuggester.util.VenueLocationIndex;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * This class is an implementation of a small corpus used by the tests. The
+ * categories and the profiles are those of the data directory of the
+ * repository, and the venues are generated in a temporary directory: the
+ * venues rated in the profiles, and the venues of a few ad-hoc contexts
+ * located around the points given in CONTEXTS. The venues are generated from
+ * a seed, so that a corpus can be generated again identically.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+class TestCorpus {
+
+	// DATA_DIRECTORY_PATH is the path to the data directory of the repository,
+	// relative to the project directory (the working directory of the tests).
+	static final String DATA_DIRECTORY_PATH = "../../data";
+	static final String CATEGORY_FILE_PATH = DATA_DIRECTORY_PATH + "/categories.json";
+	static final String PROFILE_FILE_PATH = DATA_DIRECTORY_PATH + "/profiles2014-100.csv";
+	static final String EXAMPLE_TO_FOURSQUARE_FILE_PATH = DATA_DIRECTORY_PATH + "/example_venue2foursquare";
+	static final String CONTEXT_FILE_PATH = DATA_DIRECTORY_PATH + "/contexts2014.csv";
+
+	// CONTEXTS contains the ad-hoc contexts of the corpus, in the format of
+	// the option -adhoc of ContextualBundleSuggester ("id,lat,lon").
+	static final String[] CONTEXTS = {"a,40.0,-80.0", "b,41.0,-81.0"};
+	// CONTEXT_RADIUS is the radius (in kilometers) within which the venues of
+	// a context are generated.
+	static final double CONTEXT_RADIUS = 2;
+	// LOCAL_VENUE_NB is the number of venues generated in each context.
+	static final int LOCAL_VENUE_NB = 120;
+	// USER_IDS contains the ids of the users used by the tests.
+	static final String[] USER_IDS = {"700", "701", "702"};
+	// SCORE_WEIGHTS contains the weights of opop, tcoh and eapp with which
+	// the bundles are built.
+	static final double[][] SCORE_WEIGHTS = {{1, 1, 10}, {1, 1, 1}, {2, 0.5, 3}, {0, 1, 1}, {5, 1, 1}};
+
+	private File venueDirectory;
+	private CategoryHandler categoryHandler;
+	private Map<String, User> users;
+	// contextVenueIds maps the id of each context with the ids of its venues.
+	private Map<String, List<String>> contextVenueIds = new LinkedHashMap<String, List<String>>();
+
+	/**
+	 * This constructor generates the venues of the corpus in a new temporary
+	 * directory.
+	 *
+	 * @param seed the seed of the generation of the venues
+	 */
+	TestCorpus(long seed) throws IOException {
+		categoryHandler = new CategoryHandler();
+		categoryHandler.parseCategories(CATEGORY_FILE_PATH);
+		UserHandler userHandler = new UserHandler();
+		userHandler.parseUsers(PROFILE_FILE_PATH, EXAMPLE_TO_FOURSQUARE_FILE_PATH);
+		users = userHandler.getUsers();
+
+		venueDirectory = File.createTempFile("venues", "");
+		if (!venueDirectory.delete() || !venueDirectory.mkdir()) {
+			throw new IOException("Cannot create the venue directory " + venueDirectory);
+		}
+
+		Random random = new Random(seed);
+		List<String> categoryIds = new ArrayList<String>(categoryHandler.getCategories().keySet());
+		// The rated venues are located far from the contexts.
+		for (String venueId : userHandler.getVenueIds()) {
+			writeVenue(venueId, 0, 0, categoryIds, random);
+		}
+		for (String context : CONTEXTS) {
+			// values[0] is the id of the context, values[1] its latitude and
+			// values[2] its longitude.
+			String[] values = context.split(",");
+			List<String> venueIds = new ArrayList<String>();
+			for (int i = 0; i < LOCAL_VENUE_NB; i++) {
+				// A degree of latitude is about 111 km long, and the offsets
+				// are small enough for the venues to be within CONTEXT_RADIUS
+				// of the context.
+				String venueId = String.format("%s%023d", values[0], i);
+				writeVenue(venueId, Double.parseDouble(values[1]) + (random.nextDouble() - 0.5)*CONTEXT_RADIUS/111/2,
+						Double.parseDouble(values[2]) + (random.nextDouble() - 0.5)*CONTEXT_RADIUS/111/2, categoryIds, random);
+				venueIds.add(venueId);
+			}
+			contextVenueIds.put(values[0], venueIds);
+		}
+	}
+
+	private void writeVenue(String venueId, double lat, double lon, List<String> categoryIds, Random random) throws IOException {
+		JsonArray categories = new JsonArray();
+		int categoryNb = 1 + random.nextInt(2);
+		for (int i = 0; i < categoryNb; i++) {
+			String categoryId = categoryIds.get(random.nextInt(categoryIds.size()));
+			JsonObject category = new JsonObject();
+			category.addProperty("id", categoryId);
+			category.addProperty("name", categoryHandler.getCategories().get(categoryId).getName());
+			JsonObject icon = new JsonObject();
+			icon.addProperty("prefix", "https://ss1.4sqi.net/img/categories_v2/" + categoryId + "_");
+			icon.addProperty("suffix", ".png");
+			category.add("icon", icon);
+			categories.add(category);
+		}
+		JsonObject location = new JsonObject();
+		location.addProperty("lat", lat);
+		location.addProperty("lng", lon);
+		JsonObject likes = new JsonObject();
+		likes.addProperty("count", random.nextInt(1000));
+
+		JsonObject venue = new JsonObject();
+		venue.addProperty("id", venueId);
+		venue.addProperty("name", "Venue " + venueId);
+		venue.add("categories", categories);
+		venue.add("location", location);
+		venue.add("likes", likes);
+		FileUtils.writeStringToFile(new File(venueDirectory, venueId), venue.toString(), "UTF-8");
+	}
+
+	/**
+	 * This method deletes the venues of the corpus.
+	 */
+	void delete() throws IOException {
+		FileUtils.deleteDirectory(venueDirectory);
+	}
+
+	String getVenueDirectoryPath() {
+		return venueDirectory.getPath();
+	}
+
+	CategoryHandler getCategoryHandler() {
+		return categoryHandler;
+	}
+
+	Map<String, User> getUsers() {
+		return users;
+	}
+
+	/**
+	 * This method copies a user, so that its ratings can be changed without
+	 * changing those of the test corpus.
+	 *
+	 * @param user a user
+	 *
+	 * @return the copy of the user
+	 */
+	static User copyUser(User user) {
+		User userCopy = new User(user.getId());
+		userCopy.setVenueRatings(new HashMap<String, Double>(user.getVenueRatings()));
+		return userCopy;
+	}
+
+	/**
+	 * This method gives the venues of a context, without the venues which
+	 * categories are blacklisted.
+	 *
+	 * @param contextId the id of the context
+	 *
+	 * @return the venues of the context, mapped with their ids
+	 */
+	Map<String, Venue> getLocalVenues(String contextId) {
+		VenueHandler venueHandler = new VenueHandler();
+		venueHandler.setCategoryHandler(categoryHandler);
+		venueHandler.parseVenues(getVenueDirectoryPath(), true, contextVenueIds.get(contextId));
+		return venueHandler.getVenues();
+	}
+
+	/**
+	 * This method gives the venues rated by a user.
+	 *
+	 * @param user a user
+	 *
+	 * @return the venues rated by the user, mapped with their ids
+	 */
+	Map<String, Venue> getRatedVenues(User user) {
+		VenueHandler venueHandler = new VenueHandler();
+		venueHandler.parseVenues(getVenueDirectoryPath(), false, user.getVenueRatings().keySet());
+		return venueHandler.getVenues();
+	}
+
+	/**
+	 * This method creates a builder suggesting bundles to a user in a
+	 * context, which venue statistics have been computed.
+	 *
+	 * @param user a user
+	 * @param contextId the id of the context
+	 *
+	 * @return the builder
+	 */
+	ContextualBundleBuilder createBuilder(User user, String contextId) {
+		ContextualBundleBuilder contextualBundleBuilder = new ContextualBundleBuilder();
+		contextualBundleBuilder.setRatedVenues(new HashMap<String, Venue>(getRatedVenues(user)));
+		contextualBundleBuilder.setLocalVenues(getLocalVenues(contextId));
+		contextualBundleBuilder.setCategories(categoryHandler.getCategories());
+		contextualBundleBuilder.setUser(user);
+		contextualBundleBuilder.computeVenueStats();
+		return contextualBundleBuilder;
+	}
+
+	/**
+	 * This method gives the ids of the contexts of the corpus.
+	 *
+	 * @return the ids of the contexts
+	 */
+	List<String> getContextIds() {
+		return new ArrayList<String>(contextVenueIds.keySet());
+	}
+
+	/**
+	 * This method gives the contexts of the corpus.
+	 *
+	 * @return the contexts, mapped with their ids
+	 */
+	Map<String, Location> getLocations() {
+		Map<String, Location> locations = new LinkedHashMap<String, Location>();
+		for (String context : CONTEXTS) {
+			String[] values = context.split(",");
+			locations.put(values[0], new Location(Double.parseDouble(values[1]), Double.parseDouble(values[2])));
+		}
+		return locations;
+	}
+
+	/**
+	 * This method creates a service suggesting bundles in the contexts of the
+	 * corpus, which venues are found with an index of the venue locations.
+	 *
+	 * @param categoryHandler the handler of the categories of the service
+	 *
+	 * @return the service
+	 */
+	ContextualBundleService createService(CategoryHandler categoryHandler) {
+		VenueLocationIndex venueLocationIndex = new VenueLocationIndex();
+		venueLocationIndex.parseVenueLocations(getVenueDirectoryPath());
+		return new ContextualBundleService(categoryHandler, getVenueDirectoryPath(), null, venueLocationIndex, CONTEXT_RADIUS*1000,
+				getLocations());
+	}
+
+	/**
+	 * This method changes the number of "likes" of a venue of the corpus,
+	 * which changes its popularity.
+	 *
+	 * @param venueId the id of the venue
+	 * @param likeNb the new number of "likes" of the venue
+	 */
+	void setLikeNb(String venueId, int likeNb) throws IOException {
+		File venueFile = new File(venueDirectory, venueId);
+		JsonObject venue = new JsonParser().parse(FileUtils.readFileToString(venueFile, "UTF-8")).getAsJsonObject();
+		venue.getAsJsonObject("likes").addProperty("count", likeNb);
+		FileUtils.writeStringToFile(venueFile, venue.toString(), "UTF-8");
+	}
+
+	/**
+	 * This method runs ContextualBundleSuggester on the corpus, for the
+	 * users of USER_IDS and the contexts of CONTEXTS.
+	 *
+	 * @param outputFilePath the path to the output file
+	 * @param options the options added to those of the test corpus
+	 */
+	void runSuggester(String outputFilePath, String... options) throws IOException, InterruptedException {
+		List<String> args = new ArrayList<String>(Arrays.asList("-venues", getVenueDirectoryPath(),
+				"-categories", CATEGORY_FILE_PATH, "-profiles", PROFILE_FILE_PATH,
+				"-extfs", EXAMPLE_TO_FOURSQUARE_FILE_PATH, "-contexts", CONTEXT_FILE_PATH,
+				"-output", outputFilePath, "-contextradius", String.valueOf(CONTEXT_RADIUS),
+				"-nbunret", "3", "-nvenpbun", "3", "-nbuncreate", "10"));
+		args.add("-profileids");
+		args.addAll(Arrays.asList(USER_IDS));
+		args.add("-adhoc");
+		args.addAll(Arrays.asList(CONTEXTS));
+		args.addAll(Arrays.asList(options));
+		ContextualBundleSuggester.main(args.toArray(new String[args.size()]));
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * This class tests LruCache: the eviction of the least recently used
+ * entries, the metrics and the groups of keys.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class LruCacheTest {
+
+	// KEY_GROUPER sorts the keys "<user>:<context>" into a group per user and
+	// a group per context.
+	private static final KeyGrouper<String> KEY_GROUPER = new KeyGrouper<String>() {
+		public Collection<?> getGroups(String key) {
+			String[] values = key.split(":");
+			return Arrays.asList("user " + values[0], "context " + values[1]);
+		}
+	};
+
+	@Test
+	public void testLeastRecentlyUsedEntryIsEvicted() {
+		LruCache<String, String> cache = new LruCache<String, String>(3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals("1", cache.get("a"));
+		cache.put("d", "4");
+
+		assertEquals(3, cache.size());
+		assertEquals(Arrays.asList("c", "a", "d"), cache.getKeys());
+		assertEquals(null, cache.get("b"));
+		assertEquals(1, cache.getHitNb());
+		assertEquals(1, cache.getMissNb());
+		assertEquals(1, cache.getEvictionNb());
+		assertEquals(0, cache.getInvalidationNb());
+
+		// Replacing the value of a key does not evict any entry.
+		cache.put("c", "5");
+		assertEquals("5", cache.get("c"));
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictionNb());
+	}
+
+	@Test
+	public void testInvalidationsAreCounted() {
+		LruCache<String, String> cache = new LruCache<String, String>(10);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+
+		assertTrue(cache.invalidate("a"));
+		assertFalse(cache.invalidate("a"));
+		assertEquals(1, cache.getInvalidationNb());
+		cache.invalidateAll();
+		assertEquals(0, cache.size());
+		assertEquals(3, cache.getInvalidationNb());
+		assertEquals(0, cache.getEvictionNb());
+	}
+
+	@Test
+	public void testGroupsFollowEvictionsAndInvalidations() {
+		LruCache<String, String> cache = new LruCache<String, String>(4, KEY_GROUPER);
+		cache.put("u1:c1", "1");
+		cache.put("u1:c2", "2");
+		cache.put("u2:c1", "3");
+		cache.put("u2:c2", "4");
+		assertEquals(new HashSet<String>(Arrays.asList("u1:c1", "u2:c1")), new HashSet<String>(cache.getGroupKeys("context c1")));
+
+		// The evicted entry leaves its groups.
+		cache.put("u3:c1", "5");
+		assertEquals(new HashSet<String>(Arrays.asList("u1:c2")), new HashSet<String>(cache.getGroupKeys("user u1")));
+		assertEquals(new HashSet<String>(Arrays.asList("u2:c1", "u3:c1")), new HashSet<String>(cache.getGroupKeys("context c1")));
+
+		// Only the entries of the group are invalidated.
+		assertEquals(2, cache.invalidateGroup("context c1"));
+		assertEquals(Arrays.asList("u1:c2", "u2:c2"), cache.getKeys());
+		assertEquals(0, cache.getGroupKeys("context c1").size());
+		assertEquals(Arrays.asList("u2:c2"), cache.getGroupKeys("user u2"));
+		assertEquals(2, cache.getInvalidationNb());
+		assertEquals(0, cache.invalidateGroup("user u3"));
+
+		cache.invalidateAll();
+		assertEquals(0, cache.getGroupKeys("context c2").size());
+	}
+
+	@Test
+	public void testInvalidCapacityIsRejected() {
+		try {
+			new LruCache<String, String>(0);
+			throw new AssertionError("The capacity 0 was accepted");
+		} catch (IllegalArgumentException exception) {
+			// The capacity has to be positive.
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package org.terrier.compositecontextualsuggester.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * This class tests that the items found by SpatialGrid within a radius of a
+ * point are those found by computing the distance to every item, including
+ * for points far from the latitude on which the projection of the grid is
+ * centered.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class SpatialGridTest {
+
+	// REFERENCE_LATITUDE is the latitude on which the projection of the grid
+	// is centered.
+	private static final double REFERENCE_LATITUDE = 40;
+	// CLUSTER_LATITUDES contains the latitudes around which the points are
+	// indexed and the queries are made, most of them far from
+	// REFERENCE_LATITUDE.
+	private static final double[] CLUSTER_LATITUDES = {-65, -30, 0, 20, 40, 55, 70, 80, 88};
+	// CLUSTER_POINT_NB is the number of points indexed around each latitude.
+	private static final int CLUSTER_POINT_NB = 500;
+	// CLUSTER_SIZE is the maximum offset (in degrees of latitude) of the
+	// points from the center of their cluster.
+	private static final double CLUSTER_SIZE = 0.5;
+	private static final double[] CELL_SIZES = {500, 2000};
+	private static final double[] RADII = {200, 1000, 5000, 20000, 60000};
+	// QUERY_NB is the number of queries made around each latitude, for each
+	// cell size and radius.
+	private static final int QUERY_NB = 20;
+
+	private static class IndexedPoint {
+		private double latitude;
+		private double longitude;
+
+		private IndexedPoint(double latitude, double longitude) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+		}
+	}
+
+	/**
+	 * This method draws a point around the center of a cluster. The offset
+	 * along the parallel is scaled by the latitude, so that the cluster is
+	 * roughly round.
+	 *
+	 * @param random the generator of random numbers
+	 * @param latitude the latitude of the center of the cluster
+	 * @param longitude the longitude of the center of the cluster
+	 *
+	 * @return the point
+	 */
+	private static IndexedPoint randomPoint(Random random, double latitude, double longitude) {
+		double pointLatitude = Math.max(-89.9, Math.min(89.9, latitude + (2*random.nextDouble() - 1)*CLUSTER_SIZE));
+		double pointLongitude = longitude + (2*random.nextDouble() - 1)*CLUSTER_SIZE/Math.cos(Math.toRadians(latitude));
+		return new IndexedPoint(pointLatitude, pointLongitude);
+	}
+
+	/**
+	 * This method finds the points located within a radius of a point by
+	 * computing the distance to every point.
+	 *
+	 * @param points the points
+	 * @param latitude the latitude of the point
+	 * @param longitude the longitude of the point
+	 * @param radius the radius in meters
+	 *
+	 * @return the indices of the points located within the radius, sorted
+	 */
+	private static List<Integer> getPointsWithin(List<IndexedPoint> points, double latitude, double longitude, double radius) {
+		List<Integer> pointIndices = new ArrayList<Integer>();
+		for (int i = 0; i < points.size(); i++) {
+			if (Location.haversineDistance(latitude, longitude, points.get(i).latitude, points.get(i).longitude) <= radius) {
+				pointIndices.add(i);
+			}
+		}
+		return pointIndices;
+	}
+
+	@Test
+	public void testItemsWithinEqualBruteForceScan() {
+		Random random = new Random(41);
+		List<IndexedPoint> points = new ArrayList<IndexedPoint>();
+		double[] clusterLongitudes = new double[CLUSTER_LATITUDES.length];
+		for (int i = 0; i < CLUSTER_LATITUDES.length; i++) {
+			clusterLongitudes[i] = 300*random.nextDouble() - 150;
+			for (int j = 0; j < CLUSTER_POINT_NB; j++) {
+				points.add(randomPoint(random, CLUSTER_LATITUDES[i], clusterLongitudes[i]));
+			}
+		}
+
+		// foundPointNb is the number of points found by the queries, which
+		// ensures that the queries are not trivial.
+		long foundPointNb = 0;
+		for (double cellSize : CELL_SIZES) {
+			SpatialGrid<Integer> grid = new SpatialGrid<Integer>(cellSize, REFERENCE_LATITUDE);
+			for (int i = 0; i < points.size(); i++) {
+				grid.add(i, points.get(i).latitude, points.get(i).longitude);
+			}
+			assertEquals(points.size(), grid.getItemNb());
+
+			for (int i = 0; i < CLUSTER_LATITUDES.length; i++) {
+				for (double radius : RADII) {
+					for (int j = 0; j < QUERY_NB; j++) {
+						IndexedPoint query = randomPoint(random, CLUSTER_LATITUDES[i], clusterLongitudes[i]);
+						List<Integer> expectedPointIndices = getPointsWithin(points, query.latitude, query.longitude, radius);
+						List<Integer> pointIndices = grid.getItemsWithin(query.latitude, query.longitude, radius);
+						Collections.sort(pointIndices);
+
+						String message = query.latitude + "," + query.longitude + "/" + cellSize + "/" + radius;
+						assertEquals(message, expectedPointIndices, pointIndices);
+						foundPointNb += pointIndices.size();
+					}
+				}
+			}
+		}
+		assertTrue(foundPointNb > 0);
+	}
+
+}
@@ -0,0 +1,134 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class is an implementation of the manifest of the fetched venues. For
+ * each venue, the manifest records the time of its last fetch and the
+ * validators of the last response of the API (ETag and Last-Modified), that
+ * enable to refresh the venue with a conditional request.
+ * The manifest is stored in a text file, one line per fetch with the tab-
+ * separated venue id, fetch time (in milliseconds since the epoch), ETag and
+ * Last-Modified (empty if the API did not provide them). The lines are
+ * appended as the venues are fetched, so that an interrupted fetching keeps
+ * its manifest; when a venue appears on several lines, its last line is used.
+ * The file is rewritten with one line per venue when the manifest is saved.
+ * The manifest can be updated concurrently by several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class FetchManifest {
+
+	private File manifestFile;
+	// entries maps each venue id with its entry.
+	private Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+	/**
+	 * This class is an implementation of an entry of the manifest.
+	 */
+	public static class Entry {
+
+		private long fetchTime;
+		private String etag;
+		private String lastModified;
+
+		public Entry(long fetchTime, String etag, String lastModified) {
+			this.fetchTime = fetchTime;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		public long getFetchTime() {
+			return fetchTime;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public String getLastModified() {
+			return lastModified;
+		}
+
+	}
+
+	/**
+	 * This constructor loads the manifest stored in the file which path is
+	 * given, if it exists.
+	 *
+	 * @param manifestFilePath the path to the manifest file
+	 */
+	public FetchManifest(String manifestFilePath) throws IOException {
+		manifestFile = new File(manifestFilePath);
+
+		if (manifestFile.exists()) {
+			for (String line : FileUtils.readLines(manifestFile, "UTF-8")) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length == 4 && fields[1].matches("\\d+")) {
+					// An incomplete line (interrupted write) is ignored.
+					entries.put(fields[0], new Entry(Long.parseLong(fields[1]), emptyToNull(fields[2]), emptyToNull(fields[3])));
+				}
+			}
+		}
+	}
+
+	public synchronized Entry get(String venueId) {
+		return entries.get(venueId);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * This method records a fetch of a venue and appends it to the manifest
+	 * file.
+	 *
+	 * @param venueId the Foursquare ID of the venue
+	 * @param entry the entry of the fetch
+	 */
+	public synchronized void put(String venueId, Entry entry) throws IOException {
+		entries.put(venueId, entry);
+		FileUtils.write(manifestFile, toLine(venueId, entry), "UTF-8", true);
+	}
+
+	/**
+	 * This method rewrites the manifest file with one line per venue. The
+	 * lines are written in a temporary file that then replaces the manifest
+	 * file.
+	 */
+	public synchronized void save() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			lines.append(toLine(entry.getKey(), entry.getValue()));
+		}
+
+		File temporaryFile = new File(manifestFile.getPath() + ".tmp");
+		FileUtils.write(temporaryFile, lines, "UTF-8");
+		if ((!manifestFile.delete() && manifestFile.exists()) || !temporaryFile.renameTo(manifestFile)) {
+			throw new IOException("Cannot replace the manifest " + manifestFile.getPath());
+		}
+	}
+
+	private static String toLine(String venueId, Entry entry) {
+		return venueId + "\t" + entry.getFetchTime() +
+				"\t" + nullToEmpty(entry.getEtag()) +
+				"\t" + nullToEmpty(entry.getLastModified()) + "\n";
+	}
+
+	private static String emptyToNull(String value) {
+		return value.equals("") ? null : value;
+	}
+
+	private static String nullToEmpty(String value) {
+		// Tabulations and line breaks would break the format of the file.
+		return value == null ? "" : value.replaceAll("[\t\r\n]", " ");
+	}
+
+}
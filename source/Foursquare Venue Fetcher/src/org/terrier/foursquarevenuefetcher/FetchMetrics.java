@@ -0,0 +1,248 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.text.DecimalFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * This class is used to measure the throughput and latency of the requests
+ * sent by the fetcher: the number of requests, the number of requests per
+ * response code (-1 for the requests that failed because of a network
+ * error), the number of bytes received, the number of retries, the latency
+ * histogram of the requests and the depths of the queues of the fetcher.
+ * The latencies are counted in logarithmic buckets: the upper bound of the
+ * bucket i is 2^(i/4) milliseconds, so that the percentiles are estimated
+ * with an error below 19%. The metrics can be updated concurrently by
+ * several threads.
+ * The metrics are described either over the whole execution, or over the
+ * interval since the previous periodic report, which enables to spot a
+ * slowdown of the API during the fetching.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class FetchMetrics {
+
+	// BUCKET_NB is the number of buckets of the latency histogram; the last
+	// bucket (2^20 ms, i.e. about 17 minutes) contains all the longer
+	// latencies.
+	private static final int BUCKET_NB = 81;
+
+	private long startTime = System.currentTimeMillis();
+
+	private AtomicLong requestCount = new AtomicLong();
+	private AtomicLong byteCount = new AtomicLong();
+	private AtomicLong retryCount = new AtomicLong();
+	// responseCodeCounts maps each response code with its number of
+	// responses.
+	private ConcurrentMap<Integer, AtomicLong> responseCodeCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+	// latencyCounts is the latency histogram of the requests.
+	private AtomicLongArray latencyCounts = new AtomicLongArray(BUCKET_NB);
+	// queueDepths maps the name of each queue of the fetcher with its last
+	// observed depth.
+	private ConcurrentMap<String, Integer> queueDepths = new ConcurrentHashMap<String, Integer>();
+
+	// reportTime, reportRequestCount and reportLatencyCounts are the values
+	// at the time of the previous periodic report.
+	private long reportTime = startTime;
+	private long reportRequestCount;
+	private long[] reportLatencyCounts = new long[BUCKET_NB];
+
+	/**
+	 * This method records a request.
+	 *
+	 * @param responseCode the response code, or -1 if the request failed
+	 * because of a network error
+	 * @param latency the latency of the request in milliseconds
+	 * @param bytes the number of bytes of the body of the response
+	 */
+	public void recordRequest(int responseCode, long latency, long bytes) {
+		requestCount.incrementAndGet();
+		byteCount.addAndGet(bytes);
+		latencyCounts.incrementAndGet(getBucket(latency));
+
+		AtomicLong responseCodeCount = responseCodeCounts.get(responseCode);
+		if (responseCodeCount == null) {
+			AtomicLong newResponseCodeCount = new AtomicLong();
+			responseCodeCount = responseCodeCounts.putIfAbsent(responseCode, newResponseCodeCount);
+			if (responseCodeCount == null) {
+				responseCodeCount = newResponseCodeCount;
+			}
+		}
+		responseCodeCount.incrementAndGet();
+	}
+
+	public void recordRetry() {
+		retryCount.incrementAndGet();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * This method estimates a percentile of the latencies of all the
+	 * requests.
+	 *
+	 * @param percentile the percentile (between 0 and 100)
+	 * @return the estimated percentile in milliseconds
+	 */
+	public double getLatencyPercentile(double percentile) {
+		return getPercentile(getLatencyCounts(), percentile);
+	}
+
+	public void setQueueDepth(String queueName, int depth) {
+		queueDepths.put(queueName, depth);
+	}
+
+	private static int getBucket(long latency) {
+		if (latency <= 1) {
+			return 0;
+		}
+		int bucket = (int) Math.ceil(4*Math.log(latency)/Math.log(2));
+		return Math.min(bucket, BUCKET_NB - 1);
+	}
+
+	private static double getBucketUpperBound(int bucket) {
+		return Math.pow(2, bucket/4.0);
+	}
+
+	/**
+	 * This method estimates a percentile of the latencies from a histogram.
+	 *
+	 * @param counts the histogram
+	 * @param percentile the percentile (between 0 and 100)
+	 * @return the upper bound of the bucket containing the percentile, in
+	 * milliseconds, or 0 if the histogram is empty
+	 */
+	private static double getPercentile(long[] counts, double percentile) {
+		long totalCount = 0;
+		for (long count : counts) {
+			totalCount += count;
+		}
+		if (totalCount == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(percentile/100*totalCount);
+		long cumulativeCount = 0;
+		for (int bucket = 0; bucket < counts.length; bucket++) {
+			cumulativeCount += counts[bucket];
+			if (cumulativeCount >= Math.max(rank, 1)) {
+				return getBucketUpperBound(bucket);
+			}
+		}
+		return getBucketUpperBound(counts.length - 1);
+	}
+
+	private long[] getLatencyCounts() {
+		long[] counts = new long[BUCKET_NB];
+		for (int bucket = 0; bucket < BUCKET_NB; bucket++) {
+			counts[bucket] = latencyCounts.get(bucket);
+		}
+		return counts;
+	}
+
+	private Map<Integer, Long> getResponseCodeCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : responseCodeCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * This method creates the periodic report of the metrics: the request
+	 * rate and the latency percentiles over the interval since the previous
+	 * report, followed by the totals since the beginning of the execution.
+	 *
+	 * @return the report
+	 */
+	public synchronized String report() {
+		long time = System.currentTimeMillis();
+		long currentRequestCount = requestCount.get();
+		long[] currentLatencyCounts = getLatencyCounts();
+
+		long[] intervalLatencyCounts = new long[BUCKET_NB];
+		for (int bucket = 0; bucket < BUCKET_NB; bucket++) {
+			intervalLatencyCounts[bucket] = currentLatencyCounts[bucket] - reportLatencyCounts[bucket];
+		}
+		double intervalRate = 1000.0*(currentRequestCount - reportRequestCount)/Math.max(1, time - reportTime);
+
+		reportTime = time;
+		reportRequestCount = currentRequestCount;
+		reportLatencyCounts = currentLatencyCounts;
+
+		DecimalFormat decimalFormat = new DecimalFormat("0.0");
+		return "[metrics] " + decimalFormat.format(intervalRate) + " req/s" +
+				", latency p50/p95/p99 " + decimalFormat.format(getPercentile(intervalLatencyCounts, 50)) +
+				"/" + decimalFormat.format(getPercentile(intervalLatencyCounts, 95)) +
+				"/" + decimalFormat.format(getPercentile(intervalLatencyCounts, 99)) + " ms" +
+				" | total " + currentRequestCount + " req, " + retryCount.get() + " retries, " +
+				byteCount.get() + " bytes, codes " + getResponseCodeCounts() +
+				", queues " + new TreeMap<String, Integer>(queueDepths);
+	}
+
+	/**
+	 * This method describes the metrics over the whole execution as a JSON
+	 * string.
+	 *
+	 * @return the JSON string of the metrics
+	 */
+	public String toJson() {
+		long elapsedTime = Math.max(1, System.currentTimeMillis() - startTime);
+		long[] counts = getLatencyCounts();
+
+		JsonObject jsonObject = new JsonObject();
+		jsonObject.addProperty("elapsedMs", elapsedTime);
+		jsonObject.addProperty("requests", requestCount.get());
+		jsonObject.addProperty("requestsPerSecond", 1000.0*requestCount.get()/elapsedTime);
+		jsonObject.addProperty("retries", retryCount.get());
+		jsonObject.addProperty("bytesReceived", byteCount.get());
+
+		JsonObject responseCodeObject = new JsonObject();
+		for (Map.Entry<Integer, Long> entry : getResponseCodeCounts().entrySet()) {
+			responseCodeObject.addProperty(Integer.toString(entry.getKey()), entry.getValue());
+		}
+		jsonObject.add("responseCodes", responseCodeObject);
+
+		JsonObject latencyObject = new JsonObject();
+		latencyObject.addProperty("p50", getPercentile(counts, 50));
+		latencyObject.addProperty("p95", getPercentile(counts, 95));
+		latencyObject.addProperty("p99", getPercentile(counts, 99));
+		// The histogram gives the number of requests per bucket, keyed by
+		// the upper bound of the bucket.
+		JsonObject histogramObject = new JsonObject();
+		for (int bucket = 0; bucket < BUCKET_NB; bucket++) {
+			if (counts[bucket] > 0) {
+				histogramObject.addProperty(Double.toString(Math.round(1000*getBucketUpperBound(bucket))/1000.0), counts[bucket]);
+			}
+		}
+		latencyObject.add("histogram", histogramObject);
+		jsonObject.add("latencyMs", latencyObject);
+
+		JsonObject queueObject = new JsonObject();
+		for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(queueDepths).entrySet()) {
+			queueObject.addProperty(entry.getKey(), entry.getValue());
+		}
+		jsonObject.add("queueDepths", queueObject);
+
+		return new GsonBuilder().setPrettyPrinting().create().toJson(jsonObject);
+	}
+
+}
@@ -0,0 +1,196 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * This class is used to measure the performance of FoursquareVenueFetcher
+ * against a local stand-in of the Foursquare venue API (see
+ * MockFoursquareServer). It fetches the same venues once for each of several
+ * concurrency levels (numbers of threads), in a new temporary output
+ * directory each time, and reports for each level the throughput, the
+ * latency percentiles, the number of retries and of venues that could not be
+ * fetched, and the responses of the server. It contains a method main that
+ * runs the load test.
+ *
+ * The program is designed to be executed with the following options:
+ * -errorrate <probability>                     Probability of answering a
+ *                                              request with a 500 error;
+ *                                              default: 0 (optional).
+ * -jitter <number-of-milliseconds>             Maximum random latency added
+ *                                              to the latency; default: 0
+ *                                              (optional).
+ * -latency <number-of-milliseconds>            Latency of each response;
+ *                                              default: 50 (optional).
+ * -maxretries <number-of-retries>              Maximum number of retries
+ *                                              per venue; default: 5
+ *                                              (optional).
+ * -quota <requests-per-second>                 Number of requests per
+ *                                              second above which the
+ *                                              server throttles the
+ *                                              requests; default: no quota
+ *                                              (optional).
+ * -rate <requests-per-second>                  Maximum number of requests
+ *                                              per second of the fetcher;
+ *                                              default: no limit
+ *                                              (optional).
+ * -retryafter <number-of-seconds>              Delay given in the header
+ *                                              Retry-After of the
+ *                                              throttled responses;
+ *                                              default: 1 (optional).
+ * -threads <numbers-of-threads>                Comma-separated concurrency
+ *                                              levels; default: 1,2,4,8,16
+ *                                              (optional).
+ * -throttlerate <probability>                  Probability of throttling a
+ *                                              request; default: 0
+ *                                              (optional).
+ * -venidfile <foursquare-venue-id-file-path>   Path to the file containing
+ *                                              the ids of the venues to
+ *                                              fetch; default: all the
+ *                                              venues of the venue
+ *                                              directory (optional).
+ * -venues <venue-directory-path>               Path to the directory
+ *                                              containing the venue files
+ *                                              served by the stand-in.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class FetcherLoadTest {
+
+	/**
+	 * This method fetches the given venues from the server with the given
+	 * number of threads, and gives a line of the report.
+	 *
+	 * @param server the stand-in of the venue API
+	 * @param foursquareVenueIds the IDs of the venues to fetch
+	 * @param threadNb the number of threads of the fetcher
+	 * @param rate the maximum number of requests per second of the fetcher
+	 * @param maxRetryNb the maximum number of retries per venue
+	 * @return the line of the report
+	 */
+	public static String run(MockFoursquareServer server, Collection<String> foursquareVenueIds, int threadNb,
+			double rate, int maxRetryNb) throws Exception {
+		// The venues are fetched in a new temporary directory.
+		File outputDirectory = File.createTempFile("fetcher-load-test", "");
+		if (!outputDirectory.delete() || !outputDirectory.mkdir()) {
+			throw new IOException("Cannot create the temporary directory " + outputDirectory.getPath());
+		}
+		File journalFile = new File(outputDirectory.getPath() + ".failed");
+		File manifestFile = new File(outputDirectory.getPath() + ".manifest");
+
+		try {
+			server.resetResponseCodeCounts();
+
+			FoursquareVenueFetcher foursquareVenueFetcher = new FoursquareVenueFetcher("client-id", "client-secret");
+			foursquareVenueFetcher.setBaseUrl(server.getBaseUrl());
+			foursquareVenueFetcher.setThreadNb(threadNb);
+			foursquareVenueFetcher.setMaxInFlightRequestNb(threadNb);
+			foursquareVenueFetcher.setRateLimiter(new RateLimiter(rate, 1));
+			foursquareVenueFetcher.setMaxRetryNb(maxRetryNb);
+
+			long beginTime = System.currentTimeMillis();
+			int fetchCount = foursquareVenueFetcher.fetchVenues(foursquareVenueIds, outputDirectory.getPath());
+			long totalTime = Math.max(1, System.currentTimeMillis() - beginTime);
+
+			FetchMetrics metrics = foursquareVenueFetcher.getMetrics();
+			int failureCount = journalFile.exists() ? FileUtils.readLines(journalFile).size() : 0;
+
+			DecimalFormat decimalFormat = new DecimalFormat("0.0");
+			return String.format("%7d %9s %9s %8d %8d %8d %8s %8s %8s  %s", threadNb,
+					decimalFormat.format(totalTime/1000.0),
+					decimalFormat.format(1000.0*fetchCount/totalTime),
+					fetchCount, failureCount, metrics.getRetryCount(),
+					decimalFormat.format(metrics.getLatencyPercentile(50)),
+					decimalFormat.format(metrics.getLatencyPercentile(95)),
+					decimalFormat.format(metrics.getLatencyPercentile(99)),
+					server.getResponseCodeCounts());
+		} finally {
+			FileUtils.deleteQuietly(outputDirectory);
+			FileUtils.deleteQuietly(journalFile);
+			FileUtils.deleteQuietly(manifestFile);
+		}
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("venue-directory-path").withDescription("Path to the directory containing the venue files served by the stand-in.").create("venues"));
+		options.addOption(OptionBuilder.hasArg().withArgName("foursquare-venue-id-file-path").withDescription("Path to the file containing the ids of the venues to fetch; default: all the venues of the venue directory (optional).").create("venidfile"));
+		options.addOption(OptionBuilder.hasArg().withArgName("numbers-of-threads").withDescription("Comma-separated concurrency levels; default: 1,2,4,8,16 (optional).").create("threads"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-milliseconds").withDescription("Latency of each response; default: 50 (optional).").create("latency"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-milliseconds").withDescription("Maximum random latency added to the latency; default: 0 (optional).").create("jitter"));
+		options.addOption(OptionBuilder.hasArg().withArgName("probability").withDescription("Probability of answering a request with a 500 error; default: 0 (optional).").create("errorrate"));
+		options.addOption(OptionBuilder.hasArg().withArgName("probability").withDescription("Probability of throttling a request; default: 0 (optional).").create("throttlerate"));
+		options.addOption(OptionBuilder.hasArg().withArgName("requests-per-second").withDescription("Number of requests per second above which the server throttles the requests; default: no quota (optional).").create("quota"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-seconds").withDescription("Delay given in the header Retry-After of the throttled responses; default: 1 (optional).").create("retryafter"));
+		options.addOption(OptionBuilder.hasArg().withArgName("requests-per-second").withDescription("Maximum number of requests per second of the fetcher; default: no limit (optional).").create("rate"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-retries").withDescription("Maximum number of retries per venue; default: 5 (optional).").create("maxretries"));
+
+		try {
+			CommandLineParser parser = new GnuParser();
+			// Parsing of the program arguments.
+			CommandLine commandLine = parser.parse(options, args);
+
+			String venueDirectoryPath = commandLine.getOptionValue("venues");
+			double rate = Double.parseDouble(commandLine.getOptionValue("rate", "0"));
+			int maxRetryNb = Integer.parseInt(commandLine.getOptionValue("maxretries", "5"));
+			List<Integer> threadNbs = new ArrayList<Integer>();
+			for (String threadNb : commandLine.getOptionValue("threads", "1,2,4,8,16").split(",")) {
+				threadNbs.add(Integer.parseInt(threadNb.trim()));
+			}
+
+			Collection<String> foursquareVenueIds;
+			if (commandLine.hasOption("venidfile")) {
+				foursquareVenueIds = FoursquareVenueFetcher.getFoursquareVenueIds(commandLine.getOptionValue("venidfile"));
+			} else {
+				String[] venueFileNames = new File(venueDirectoryPath).list();
+				Arrays.sort(venueFileNames);
+				foursquareVenueIds = Arrays.asList(venueFileNames);
+			}
+
+			MockFoursquareServer server = new MockFoursquareServer(venueDirectoryPath);
+			server.setLatency(Long.parseLong(commandLine.getOptionValue("latency", "50")), Long.parseLong(commandLine.getOptionValue("jitter", "0")));
+			server.setErrorRate(Double.parseDouble(commandLine.getOptionValue("errorrate", "0")));
+			server.setThrottleRate(Double.parseDouble(commandLine.getOptionValue("throttlerate", "0")));
+			server.setQuota(Double.parseDouble(commandLine.getOptionValue("quota", "0")));
+			server.setRetryAfter(Long.parseLong(commandLine.getOptionValue("retryafter", "1")));
+			server.start(0);
+
+			try {
+				System.out.println(foursquareVenueIds.size() + " venue(s) fetched from " + server.getBaseUrl());
+				System.out.println(String.format("%7s %9s %9s %8s %8s %8s %8s %8s %8s  %s", "threads", "time (s)",
+						"venues/s", "fetched", "failed", "retries", "p50 (ms)", "p95 (ms)", "p99 (ms)", "server responses"));
+				for (int threadNb : threadNbs) {
+					System.out.println(run(server, foursquareVenueIds, threadNb, rate, maxRetryNb));
+				}
+			} finally {
+				server.stop();
+			}
+		} catch(ParseException exception) {
+			System.out.print("Parsing error: ");
+			System.out.println(exception.getMessage());
+
+			// Displaying the usage.
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("java -cp foursquare-venue-fetcher.jar org.terrier.foursquarevenuefetcher.FetcherLoadTest", options);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
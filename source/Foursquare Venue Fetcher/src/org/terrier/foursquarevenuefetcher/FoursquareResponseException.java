@@ -0,0 +1,45 @@
+package org.terrier.foursquarevenuefetcher;
+
+/**
+ * This exception is thrown when the Foursquare API answers a request with a
+ * response code other than 200 (OK). It gives the response code and, if the
+ * API specified it, the delay after which the request can be sent again.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class FoursquareResponseException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private int responseCode;
+	// retryAfter is the delay (in seconds) given by the header Retry-After of
+	// the response; -1 if the header is absent.
+	private long retryAfter;
+
+	public FoursquareResponseException(int responseCode, long retryAfter) {
+		super(Integer.toString(responseCode));
+		this.responseCode = responseCode;
+		this.retryAfter = retryAfter;
+	}
+
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * This method indicates whether the request may succeed if it is sent
+	 * again, i.e. whether the response code is 429 (too many requests) or a
+	 * server error (5xx).
+	 *
+	 * @return true if the request can be retried, false otherwise
+	 */
+	public boolean isRetryable() {
+		return responseCode == 429 || responseCode >= 500;
+	}
+
+}
@@ -4,16 +4,30 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.Collection;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -23,10 +37,13 @@ import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
 
 /**
  * This class is used to fetch the JSON files for the Foursquare venues which
@@ -35,21 +52,222 @@ import com.google.gson.JsonSyntaxException;
  * 
  * The program is designed to be executed with the following options:
  * -clid <foursquare-client-id>                 Foursquare ID of the client.
+ * -archive                                     Write the venues in a packed
+ *                                              archive in the output
+ *                                              directory instead of one
+ *                                              file per venue (optional).
+ * -baseurl <foursquare-venue-api-url>          Base URL of the venue
+ *                                              API; default:
+ *                                              https://api.foursquare.com/v2/venues/
+ *                                              (optional).
+ * -burst <number-of-requests>                  Number of requests that can
+ *                                              be sent in a burst;
+ *                                              default: 1 (optional).
  * -clsecret <foursquare-secret-id>             Foursquare secret of the
  *                                              client.
+ * -compress                                    Compress the venues written
+ *                                              in the archive (optional).
+ * -journal <failed-venue-id-file-path>         Path to the journal of the
+ *                                              venues that could not be
+ *                                              fetched; default: output
+ *                                              directory path followed by
+ *                                              ".failed" (optional).
+ * -manifest <manifest-file-path>               Path to the manifest of the
+ *                                              fetched venues; default:
+ *                                              output directory path
+ *                                              followed by ".manifest"
+ *                                              (optional).
+ * -metrics <metrics-file-path>                 Path to the JSON file in
+ *                                              which the metrics of the
+ *                                              fetching are written at the
+ *                                              end of the execution
+ *                                              (optional).
+ * -metricsinterval <number-of-seconds>         Interval between two
+ *                                              reports of the metrics with
+ *                                              -verbose; default: 10
+ *                                              (optional).
+ * -maxage <number-of-hours>                    Maximum age of a fetched
+ *                                              venue, after which it is
+ *                                              refreshed; default: no
+ *                                              refresh (optional).
+ * -maxinflight <number-of-requests>            Maximum number of requests
+ *                                              in flight; default: number
+ *                                              of threads (optional).
+ * -maxretries <number-of-retries>              Maximum number of retries
+ *                                              per venue; default: 5
+ *                                              (optional).
  * -output <output-directory-path>              Path to the output
  *                                              directory.
- * -venidfile <foursquare-venue-id-file-path>   Path to the file containing
- *                                              the ids of the Foursquare
- *                                              venues.
+ * -pipeline                                    Extract the fetched venues
+ *                                              into a venue store in the
+ *                                              output directory instead of
+ *                                              writing their JSON strings
+ *                                              (optional).
+ * -queuesize <number-of-venues>                Capacity of the queues of
+ *                                              the pipeline; default: 256
+ *                                              (optional).
+ * -rate <requests-per-second>                  Maximum number of requests
+ *                                              per second; default: no
+ *                                              limit (optional).
+ * -resume                                      Fetch again only the
+ *                                              venues of the journal
+ *                                              (optional).
+ * -threads <number-of-threads>                 Number of venues fetched
+ *                                              concurrently; default: 1
+ *                                              (optional).
+ * -venidfile <foursquare-venue-id-file-path>+  Paths to the files
+ *                                              containing the ids of the
+ *                                              Foursquare venues (optional
+ *                                              with -resume).
  * -verbose                                     Print information about the
  *                                              execution (optional).
  * 
+ * The venues are fetched concurrently by a pool of threads. The requests are
+ * governed by a token bucket rate limiter, that can be tuned to the quota of
+ * the API, and by a cap on the number of requests in flight.
+ * The requests answered with a 429 (too many requests) or 5xx (server error)
+ * response code, or that failed because of a network error, are retried
+ * after a jittered exponential backoff, honouring the header Retry-After when
+ * it is given. The venues that still cannot be fetched are written in a
+ * journal, and the fetching goes on with the other venues. The venues of the
+ * journal can then be fetched again with the option -resume. The journal is
+ * then set aside (with the suffix ".resumed") until the fetching completes,
+ * so that an interrupted resume can be resumed again.
+ * The connections to the API are kept alive and reused by the following
+ * requests (at most one idle connection per thread is kept), which saves a
+ * TLS handshake per venue.
+ * The venues are written either in one file per venue, named by the venue
+ * id, or in a packed archive (see VenueArchiveWriter). In pipeline mode, the
+ * JSON strings are not written: the venues are validated and their fields
+ * used by the suggester are extracted and appended to a binary venue store
+ * as they are fetched (see VenuePipeline and VenueStoreWriter). As the
+ * suggester reads the venues of a directory from a single source, the venues
+ * of a directory are always written in the same form: the venue files of a
+ * directory are converted into an archive with VenueArchiveMigrator.
+ * The throughput and latency of the requests are measured (see FetchMetrics);
+ * the metrics are reported periodically with -verbose and can be written in
+ * a JSON file at the end of the execution.
+ * The venues given in several id files are fetched once. Each fetch is
+ * recorded in a manifest (see FetchManifest) with the validators of the
+ * response. The venues already fetched are skipped, unless they are older
+ * than the maximum age: they are then refreshed with a conditional request,
+ * and only written again if they changed.
+ * 
  * @author Thibaut Thonet
  *
  */
 public class FoursquareVenueFetcher {
 	
+	// DEFAULT_BASE_URL is the base URL of the Foursquare venue API.
+	public static final String DEFAULT_BASE_URL = "https://api.foursquare.com/v2/venues/";
+	
+	private String clientId;
+	private String clientSecret;
+	// baseUrl is the base URL of the venue API, to which the venue ids are
+	// appended; it can point to a local server for testing.
+	private String baseUrl = DEFAULT_BASE_URL;
+	// vParam is the version parameter (v) of the requests, i.e. the date of
+	// the run.
+	private String vParam = getVParam(new Date());
+	// threadNb is the number of venues fetched concurrently.
+	private int threadNb = 1;
+	// rateLimiter limits the number of requests sent per second.
+	private RateLimiter rateLimiter = new RateLimiter(0, 1);
+	// inFlightRequests limits the number of requests in flight, whatever the
+	// number of threads.
+	private Semaphore inFlightRequests;
+	private int maxInFlightRequestNb;
+	// maxRetryNb is the maximum number of times a request is sent again after
+	// a failure.
+	private int maxRetryNb = 5;
+	// initialBackoff and maxBackoff are the initial and maximum delays (in
+	// milliseconds) before a request is sent again.
+	private long initialBackoff = 1000;
+	private long maxBackoff = 60000;
+	// journalFilePath is the path to the journal of the venues that could not
+	// be fetched.
+	private String journalFilePath;
+	// archiveWriter is the writer of the archive in which the venues are
+	// written; null if the venues are written in one file per venue.
+	private VenueArchiveWriter archiveWriter;
+	// pipeline is the pipeline to which the venues are submitted; null if
+	// the venues are written as JSON strings.
+	private VenuePipeline pipeline;
+	// manifestFilePath is the path to the manifest of the fetched venues.
+	private String manifestFilePath;
+	// maxAge is the age (in milliseconds) after which a fetched venue is
+	// refreshed; a negative age means no refresh.
+	private long maxAge = -1;
+	private Random random = new Random();
+	private FetchMetrics metrics = new FetchMetrics();
+	// metricsInterval is the interval (in seconds) between two reports of
+	// the metrics in verbose mode; no report if it is not positive.
+	private long metricsInterval = 10;
+	private boolean verbose;
+	
+	public FoursquareVenueFetcher(String clientId, String clientSecret) {
+		this.clientId = clientId;
+		this.clientSecret = clientSecret;
+	}
+	
+	public void setBaseUrl(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+	
+	public void setThreadNb(int threadNb) {
+		this.threadNb = threadNb;
+	}
+	
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	public void setMaxInFlightRequestNb(int maxInFlightRequestNb) {
+		this.maxInFlightRequestNb = maxInFlightRequestNb;
+		inFlightRequests = new Semaphore(maxInFlightRequestNb, true);
+	}
+	
+	public void setMaxRetryNb(int maxRetryNb) {
+		this.maxRetryNb = maxRetryNb;
+	}
+	
+	public void setBackoff(long initialBackoff, long maxBackoff) {
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+	
+	public void setJournalFilePath(String journalFilePath) {
+		this.journalFilePath = journalFilePath;
+	}
+	
+	public void setArchiveWriter(VenueArchiveWriter archiveWriter) {
+		this.archiveWriter = archiveWriter;
+	}
+	
+	public void setPipeline(VenuePipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+	
+	public void setManifestFilePath(String manifestFilePath) {
+		this.manifestFilePath = manifestFilePath;
+	}
+	
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+	
+	public FetchMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = metricsInterval;
+	}
+	
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+	
 	/**
 	 * This method parses the Foursquare venue ID file and creates a collection of
 	 * strings containing the IDs.
@@ -66,28 +284,94 @@ public class FoursquareVenueFetcher {
 		return foursquareIds;
 	}
 	
+	/**
+	 * This method gets the JSON string containing all the information about
+	 * a venue from the Foursquare venue API, given its ID.
+	 * 
+	 * @param venueId the Foursquare ID of a venue
+	 * @param clientId the Foursquare ID of the client
+	 * @param clientSecret the Foursquare secret of the client
+	 * @return the JSON string of the venue
+	 */
+	public static String getFoursquareVenueById(String venueId, String clientId, String clientSecret) throws Exception {
+		return getFoursquareVenueById(DEFAULT_BASE_URL, venueId, clientId, clientSecret);
+	}
+	
+	/**
+	 * This method gets the JSON string containing all the information about
+	 * a venue from the venue API which base URL is given, given its ID. The
+	 * version parameter of the request is the current date.
+	 * 
+	 * @param baseUrl the base URL of the venue API
+	 * @param venueId the Foursquare ID of a venue
+	 * @param clientId the Foursquare ID of the client
+	 * @param clientSecret the Foursquare secret of the client
+	 * @return the JSON string of the venue
+	 */
+	public static String getFoursquareVenueById(String baseUrl, String venueId, String clientId, String clientSecret) throws Exception {
+		return getFoursquareVenueById(baseUrl, venueId, clientId, clientSecret, getVParam(new Date()));
+	}
+	
+	/**
+	 * This method gives the version parameter (v) of the requests to the
+	 * Foursquare API for a given date, in the format yyyyMMdd.
+	 * 
+	 * @param date a date
+	 * @return the version parameter
+	 */
+	public static String getVParam(Date date) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		return format.format(calendar.getTime());
+	}
+	
 	/**
 	 * This method is adapted from Dyaa Albakour's and Romain Deveaud's code.
 	 * It gets the JSON string containing all the information about a venue,
 	 * given its ID.
 	 * 
+	 * The body of the response is parsed as it is read from the connection,
+	 * and then drained and closed so that the connection can be reused by
+	 * the following requests.
+	 * 
+	 * @param baseUrl the base URL of the venue API
 	 * @param venueId the Foursquare ID of a venue
 	 * @param clientId the Foursquare ID of the client
 	 * @param clientSecret the Foursquare secret of the client
+	 * @param vParam the version parameter of the request
 	 * @return the JSON string of the venue
 	 */
-	public static String getFoursquareVenueById(String venueId, String clientId, String clientSecret) throws Exception {
-		HttpsURLConnection connection = null;
+	public static String getFoursquareVenueById(String baseUrl, String venueId, String clientId, String clientSecret,
+			String vParam) throws Exception {
+		return getFoursquareVenueResponse(baseUrl, venueId, clientId, clientSecret, vParam, null, null).getJsonString();
+	}
+	
+	/**
+	 * This method gets the response of the venue API for a venue, given its
+	 * ID. If validators of a previous response are given, the request is
+	 * conditional: the API answers 304 (not modified) if the venue did not
+	 * change, and the JSON string of the returned response is then null.
+	 * 
+	 * @param baseUrl the base URL of the venue API
+	 * @param venueId the Foursquare ID of a venue
+	 * @param clientId the Foursquare ID of the client
+	 * @param clientSecret the Foursquare secret of the client
+	 * @param vParam the version parameter of the request
+	 * @param etag the ETag of the previous response, or null
+	 * @param lastModified the Last-Modified of the previous response, or null
+	 * @return the response of the API
+	 */
+	public static FoursquareVenueResponse getFoursquareVenueResponse(String baseUrl, String venueId, String clientId,
+			String clientSecret, String vParam, String etag, String lastModified) throws Exception {
+		HttpURLConnection connection = null;
 		InputStream inputStream = null;
 		int responseCode;
 		
 		String url = "";
-		Calendar calendar = Calendar.getInstance();
-		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
-		String vParam = format.format(calendar.getTime());
 		
 		try {
-			url = "https://api.foursquare.com/v2/venues/" + URLEncoder.encode(venueId,"UTF-8") +
+			url = baseUrl + URLEncoder.encode(venueId,"UTF-8") +
 					"?client_id=" + clientId +
 					"&client_secret=" + clientSecret +
 					"&v=" + vParam;
@@ -95,14 +379,17 @@ public class FoursquareVenueFetcher {
 			e.printStackTrace();
 		}
 		
-		final StringBuilder out = new StringBuilder();
-		
 		try {
-			connection = (HttpsURLConnection) (new URL(url)).openConnection();
+			connection = (HttpURLConnection) (new URL(url)).openConnection();
 
 			connection.setRequestMethod("GET");
-			connection.setDoOutput(true);
 			connection.setReadTimeout(20000);	            
+			if (etag != null) {
+				connection.setRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+			}
 
 			connection.connect();
 
@@ -111,38 +398,439 @@ public class FoursquareVenueFetcher {
 			// The headers are stored until requested.
 			responseCode = connection.getResponseCode();
 			
-			if (responseCode != HttpsURLConnection.HTTP_OK) {
-				throw new Exception(Integer.toString(responseCode));
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				// The venue did not change since the previous response; the
+				// API may give new validators.
+				drain(connection.getInputStream());
+				String newEtag = connection.getHeaderField("ETag");
+				String newLastModified = connection.getHeaderField("Last-Modified");
+				return new FoursquareVenueResponse(null, newEtag != null ? newEtag : etag,
+						newLastModified != null ? newLastModified : lastModified);
+			}
+			
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				// retryAfter is the delay in seconds given by the API, if any.
+				long retryAfter = -1;
+				String retryAfterHeader = connection.getHeaderField("Retry-After");
+				if (retryAfterHeader != null && retryAfterHeader.trim().matches("\\d+")) {
+					retryAfter = Long.parseLong(retryAfterHeader.trim());
+				}
+				// The error body is drained so that the connection can be
+				// reused.
+				drain(connection.getErrorStream());
+				throw new FoursquareResponseException(responseCode, retryAfter);
 			}
 
-			inputStream = connection.getInputStream();
-
-			final char[] buffer = new char[2048];
+			// The bytes of the body are counted as they are read.
+			CountingInputStream countingInputStream = new CountingInputStream(connection.getInputStream());
+			inputStream = countingInputStream;
 
-			final Reader in = new InputStreamReader(inputStream, "UTF-8");
-			for (;;) {
-				int readSize = in.read(buffer, 0, buffer.length);
-				if (readSize < 0)
-					break;
-				out.append(buffer, 0, readSize);
-			}
-			
-			JsonElement parsedLine;
+			JsonElement venue;
 			
 			try {
-				parsedLine = new JsonParser().parse(out.toString());
+				venue = extractVenue(new JsonReader(new InputStreamReader(inputStream, "UTF-8")));
 			} catch (JsonSyntaxException e) {
 				System.out.println("Skipped malformed line in the Foursquare crawl.");
 				throw e;
 			}
+			if (venue == null) {
+				throw new JsonSyntaxException("No venue in the response");
+			}
+			
+			// The rest of the body is drained so that the connection can be
+			// reused.
+			drain(inputStream);
+			inputStream = null;
 
-			return parsedLine.getAsJsonObject().get("response").getAsJsonObject().get("venue").toString();
+			FoursquareVenueResponse response = new FoursquareVenueResponse(venue.toString(), connection.getHeaderField("ETag"),
+					connection.getHeaderField("Last-Modified"));
+			response.setByteCount(countingInputStream.getByteCount());
+			return response;
 		} catch (ClassCastException e) {
 			throw new IllegalArgumentException("Not an HTTP URL");
 		} catch (MalformedURLException e) {
 			throw e;
 		} catch (IOException e) {	
 			throw e;
+		} finally {
+			if (inputStream != null) {
+				// The body could not be read entirely: the connection cannot
+				// be reused.
+				inputStream.close();
+			}
+		}
+	}
+	
+	/**
+	 * This method reads the JSON object of a response of the venue API and
+	 * extracts the venue (i.e. the member venue of the member response) as
+	 * it is read. The other members are skipped without being parsed.
+	 * 
+	 * @param jsonReader the reader of the response
+	 * @return the venue, or null if the response contains no venue
+	 */
+	public static JsonElement extractVenue(JsonReader jsonReader) throws IOException {
+		JsonElement venue = null;
+		
+		jsonReader.beginObject();
+		while (jsonReader.hasNext()) {
+			if (jsonReader.nextName().equals("response") && venue == null) {
+				jsonReader.beginObject();
+				while (jsonReader.hasNext()) {
+					if (jsonReader.nextName().equals("venue") && venue == null) {
+						venue = new JsonParser().parse(jsonReader);
+					} else {
+						jsonReader.skipValue();
+					}
+				}
+				jsonReader.endObject();
+			} else {
+				jsonReader.skipValue();
+			}
+		}
+		jsonReader.endObject();
+		
+		return venue;
+	}
+	
+	/**
+	 * This method reads a stream until its end and closes it.
+	 * 
+	 * @param inputStream a stream, possibly null
+	 */
+	private static void drain(InputStream inputStream) throws IOException {
+		if (inputStream == null) {
+			return;
+		}
+		
+		try {
+			byte[] buffer = new byte[4096];
+			while (inputStream.read(buffer) >= 0) {
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * This method gets the JSON string of a venue, sending the request again
+	 * when it fails with a 429 or 5xx response code or a network error. The
+	 * delay before each retry grows exponentially, with a random jitter, and
+	 * is at least the delay given by the header Retry-After of the response.
+	 * Each request is subject to the rate limiter and to the maximum number
+	 * of requests in flight. The request is conditional if a previous entry
+	 * of the venue in the manifest is given.
+	 * 
+	 * @param foursquareVenueId the Foursquare ID of a venue
+	 * @param previousEntry the previous entry of the venue in the manifest,
+	 * or null
+	 * @return the response of the API
+	 * @throws Exception the failure of the last request, or of the first
+	 * request that cannot be retried
+	 */
+	public FoursquareVenueResponse getFoursquareVenueWithRetries(String foursquareVenueId, FetchManifest.Entry previousEntry) throws Exception {
+		String etag = previousEntry != null ? previousEntry.getEtag() : null;
+		String lastModified = previousEntry != null ? previousEntry.getLastModified() : null;
+		int retryCount = 0;
+		
+		for (;;) {
+			rateLimiter.acquire();
+			
+			// retryAfter is the minimum delay (in milliseconds) before the
+			// next retry.
+			long retryAfter = 0;
+			inFlightRequests.acquire();
+			long requestTime = System.currentTimeMillis();
+			try {
+				FoursquareVenueResponse response = getFoursquareVenueResponse(baseUrl, foursquareVenueId, clientId, clientSecret, vParam, etag, lastModified);
+				metrics.recordRequest(response.isNotModified() ? HttpURLConnection.HTTP_NOT_MODIFIED : HttpURLConnection.HTTP_OK,
+						System.currentTimeMillis() - requestTime, response.getByteCount());
+				return response;
+			} catch (FoursquareResponseException exception) {
+				metrics.recordRequest(exception.getResponseCode(), System.currentTimeMillis() - requestTime, 0);
+				if (!exception.isRetryable() || retryCount >= maxRetryNb) {
+					throw exception;
+				}
+				retryAfter = 1000*exception.getRetryAfter();
+			} catch (IOException exception) {
+				// Network error (e.g. connection reset or timeout).
+				metrics.recordRequest(-1, System.currentTimeMillis() - requestTime, 0);
+				if (retryCount >= maxRetryNb) {
+					throw exception;
+				}
+			} finally {
+				inFlightRequests.release();
+			}
+			
+			// The request is sent again after the backoff, without holding a
+			// slot for the requests in flight.
+			retryCount++;
+			metrics.recordRetry();
+			Thread.sleep(Math.max(backoff(retryCount), retryAfter));
+		}
+	}
+	
+	/**
+	 * This method computes the delay before a retry. The delay doubles with
+	 * each retry, up to maxBackoff, and a random jitter between half the
+	 * delay and the delay is applied so that the retries of concurrent
+	 * requests are spread over time.
+	 * 
+	 * @param retryCount the number of the retry (starting from 1)
+	 * @return the delay in milliseconds
+	 */
+	public long backoff(int retryCount) {
+		long delay = Math.min(maxBackoff, initialBackoff << Math.min(retryCount - 1, 30));
+		return delay/2 + (long) (random.nextDouble()*(delay - delay/2));
+	}
+	
+	/**
+	 * This method writes the ID of a venue that could not be fetched in the
+	 * journal, followed by the reason of the failure.
+	 * 
+	 * @param foursquareVenueId the Foursquare ID of the venue
+	 * @param exception the failure
+	 */
+	public synchronized void journalFailure(String foursquareVenueId, Exception exception) throws IOException {
+		FileUtils.write(new File(journalFilePath), foursquareVenueId + "\t" + exception + "\n", true);
+	}
+	
+	/**
+	 * This method indicates whether a directory contains venue files, i.e.
+	 * files named by the ID of a venue (the same files as in the
+	 * VenueHandler of the suggester are considered as venue files, apart
+	 * from the files of an archive or of a venue store).
+	 * 
+	 * @param directoryPath the path to a directory
+	 * @return true if the directory contains venue files, false otherwise
+	 */
+	public static boolean hasVenueFiles(String directoryPath) {
+		File[] files = new File(directoryPath).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String fileName = file.getName();
+				if (file.isFile() && !FilenameUtils.getBaseName(fileName).equals("") && !VenueArchiveWriter.isArchiveFile(fileName)
+						&& !fileName.equals(VenueStoreWriter.STORE_FILE_NAME)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * This method parses the journal and gives the IDs of the venues that
+	 * could not be fetched.
+	 * 
+	 * @param journalFilePath the path to the journal
+	 * @return the IDs of the venues of the journal
+	 */
+	public static Collection<String> getJournaledVenueIds(String journalFilePath) throws IOException {
+		Collection<String> foursquareIds = new ArrayList<String>();
+		
+		File journalFile = new File(journalFilePath);
+		if (journalFile.exists()) {
+			for (String line : FileUtils.readLines(journalFile)) {
+				// The ID is followed by the reason of the failure.
+				String foursquareId = line.split("\t")[0].trim();
+				if (!foursquareId.equals("") && !foursquareIds.contains(foursquareId)) {
+					foursquareIds.add(foursquareId);
+				}
+			}
+		}
+		
+		return foursquareIds;
+	}
+	
+	/**
+	 * This method fetches the venues which IDs are given, and writes the
+	 * JSON string of each venue in a file named by its ID in the output
+	 * directory, or in the archive if an archive writer is set, or submits
+	 * it to the pipeline if a pipeline is set. Each venue
+	 * is fetched once, even if its ID is given several times. The venues
+	 * which file (or record) already exists are skipped, unless they were
+	 * fetched more than maxAge ago: they are then refreshed with a
+	 * conditional request. Each fetch is recorded in the manifest. The
+	 * venues are fetched concurrently by threadNb threads, within the limits
+	 * of the rate limiter and of the maximum number of requests in flight.
+	 * The venues that cannot be fetched, even after retries, are written in
+	 * the journal and the fetching goes on with the other venues.
+	 * 
+	 * @param foursquareVenueIds the Foursquare IDs of the venues to fetch
+	 * @param outputDirectoryPath the path to the output directory
+	 * @return the number of venues fetched (including the refreshed venues
+	 * that did not change)
+	 */
+	public int fetchVenues(Collection<String> foursquareVenueIds, String outputDirectoryPath) throws Exception {
+		if (inFlightRequests == null) {
+			// By default, each thread can have a request in flight.
+			setMaxInFlightRequestNb(threadNb);
+		}
+		if (journalFilePath == null) {
+			// By default, the journal is next to the output directory (and
+			// not inside, where it would be taken for a venue).
+			journalFilePath = new File(outputDirectoryPath).getPath() + ".failed";
+		}
+		if (manifestFilePath == null) {
+			// By default, the manifest is next to the output directory.
+			manifestFilePath = new File(outputDirectoryPath).getPath() + ".manifest";
+		}
+		final FetchManifest manifest = new FetchManifest(manifestFilePath);
+		
+		// failureCount counts the venues that could not be fetched, and
+		// notModifiedCount the refreshed venues that did not change.
+		final AtomicInteger failureCount = new AtomicInteger();
+		final AtomicInteger notModifiedCount = new AtomicInteger();
+		long time = System.currentTimeMillis();
+		
+		final ExecutorService executor = Executors.newFixedThreadPool(threadNb);
+		List<Future<Void>> fetches = new ArrayList<Future<Void>>();
+		if (pipeline != null) {
+			pipeline.start();
+		}
+		
+		// The metrics are reported periodically in verbose mode, with the
+		// depths of the queues of the fetcher.
+		ScheduledExecutorService reporter = null;
+		if (verbose && metricsInterval > 0) {
+			reporter = Executors.newSingleThreadScheduledExecutor();
+			reporter.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					updateQueueDepths(executor);
+					System.out.println(metrics.report());
+				}
+			}, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+		}
+		
+		try {
+			// The IDs given several times are only fetched once.
+			for (final String foursquareVenueId : new LinkedHashSet<String>(foursquareVenueIds)) {
+				final File foursquareVenueFile = new File(outputDirectoryPath + File.separator + foursquareVenueId);
+				boolean fetched;
+				if (pipeline != null) {
+					fetched = pipeline.getStoreWriter().contains(foursquareVenueId);
+				} else if (archiveWriter != null) {
+					fetched = archiveWriter.contains(foursquareVenueId);
+				} else {
+					fetched = foursquareVenueFile.exists();
+				}
+				final FetchManifest.Entry previousEntry = fetched ? manifest.get(foursquareVenueId) : null;
+				
+				if (fetched) {
+					if (maxAge < 0) {
+						continue;
+					}
+					// The fetch time of a venue missing from the manifest
+					// (fetched before the manifest existed) is the time of
+					// its file, or unknown for a record of the archive.
+					long fetchTime = previousEntry != null ? previousEntry.getFetchTime() :
+							(archiveWriter == null && pipeline == null ? foursquareVenueFile.lastModified() : 0);
+					if (time - fetchTime <= maxAge) {
+						continue;
+					}
+				}
+				
+				fetches.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						FoursquareVenueResponse response;
+						try {
+							response = getFoursquareVenueWithRetries(foursquareVenueId, previousEntry);
+						} catch (InterruptedException exception) {
+							throw exception;
+						} catch (Exception exception) {
+							// The venue is journaled and the fetching goes
+							// on with the other venues.
+							failureCount.incrementAndGet();
+							journalFailure(foursquareVenueId, exception);
+							return null;
+						}
+						
+						if (response.isNotModified()) {
+							// The venue is kept as it is.
+							notModifiedCount.incrementAndGet();
+						} else if (pipeline != null) {
+							pipeline.submit(foursquareVenueId, response.getJsonString());
+						} else if (archiveWriter != null) {
+							archiveWriter.write(foursquareVenueId, response.getJsonString());
+						} else {
+							FileUtils.write(foursquareVenueFile, response.getJsonString());
+						}
+						manifest.put(foursquareVenueId, new FetchManifest.Entry(System.currentTimeMillis(),
+								response.getEtag(), response.getLastModified()));
+						return null;
+					}
+				}));
+			}
+			
+			// Waiting for the end of the fetches.
+			int fetchCount = 0;
+			for (Future<Void> fetch : fetches) {
+				fetch.get();
+				
+				fetchCount++;
+				if (verbose && fetchCount % 100 == 0) {
+					// Displaying the progress of the execution.
+					System.out.println("[" + fetchCount + "/" + fetches.size() + "] venues fetched");
+				}
+			}
+			
+			if (pipeline != null) {
+				// Waiting for the end of the pipeline.
+				pipeline.finish();
+				if (verbose && pipeline.getInvalidCount() > 0) {
+					System.out.println(pipeline.getInvalidCount() + " venue(s) were not valid, see " + journalFilePath);
+				}
+			}
+			
+			if (verbose && notModifiedCount.get() > 0) {
+				System.out.println(notModifiedCount.get() + " refreshed venue(s) did not change");
+			}
+			if (verbose && failureCount.get() > 0) {
+				System.out.println(failureCount.get() + " venue(s) could not be fetched, see " + journalFilePath);
+			}
+			
+			return fetchCount - failureCount.get();
+		} catch (ExecutionException exception) {
+			executor.shutdownNow();
+			if (pipeline != null) {
+				// The venues already submitted are stored; the failure of the
+				// fetching is the one reported.
+				try {
+					pipeline.finish();
+				} catch (Exception pipelineException) {
+					pipelineException.printStackTrace();
+				}
+			}
+			if (exception.getCause() instanceof Exception) {
+				throw (Exception) exception.getCause();
+			}
+			throw exception;
+		} finally {
+			executor.shutdown();
+			if (reporter != null) {
+				reporter.shutdownNow();
+			}
+			updateQueueDepths(executor);
+			// The manifest is rewritten with one line per venue.
+			manifest.save();
+		}
+	}
+	
+	/**
+	 * This method updates the depths of the queues of the fetcher in the
+	 * metrics: the venues waiting for a fetching thread, the requests in
+	 * flight and, in pipeline mode, the queues of the pipeline.
+	 * 
+	 * @param executor the executor of the fetching threads
+	 */
+	private void updateQueueDepths(ExecutorService executor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			metrics.setQueueDepth("fetch", ((ThreadPoolExecutor) executor).getQueue().size());
+		}
+		metrics.setQueueDepth("inflight", maxInFlightRequestNb - inFlightRequests.availablePermits());
+		if (pipeline != null) {
+			metrics.setQueueDepth("extraction", pipeline.getExtractionQueueDepth());
+			metrics.setQueueDepth("store", pipeline.getStoreQueueDepth());
 		}
 	}
 
@@ -151,10 +839,26 @@ public class FoursquareVenueFetcher {
 		// options contains the different options that can be added as
 		// arguments to the program.
 		Options options = new Options();
-		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("foursquare-venue-id-file-path").withDescription("Path to the file containing the ids of the Foursquare venues.").create("venidfile"));
+		options.addOption(OptionBuilder.hasArgs().withArgName("foursquare-venue-id-file-path").withDescription("Paths to the files containing the ids of the Foursquare venues (optional with -resume).").create("venidfile"));
 		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("foursquare-client-id").withDescription("Foursquare ID of the client.").create("clid"));
 		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("foursquare-secret-id").withDescription("Foursquare secret of the client.").create("clsecret"));
 		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("output-directory-path").withDescription("Path to the output directory.").create("output"));
+		options.addOption(OptionBuilder.hasArg().withArgName("foursquare-venue-api-url").withDescription("Base URL of the venue API; default: " + DEFAULT_BASE_URL + " (optional).").create("baseurl"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-threads").withDescription("Number of venues fetched concurrently; default: 1 (optional).").create("threads"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-requests").withDescription("Maximum number of requests in flight; default: number of threads (optional).").create("maxinflight"));
+		options.addOption(OptionBuilder.hasArg().withArgName("requests-per-second").withDescription("Maximum number of requests per second; default: no limit (optional).").create("rate"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-requests").withDescription("Number of requests that can be sent in a burst; default: 1 (optional).").create("burst"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-retries").withDescription("Maximum number of retries per venue; default: 5 (optional).").create("maxretries"));
+		options.addOption(OptionBuilder.hasArg().withArgName("failed-venue-id-file-path").withDescription("Path to the journal of the venues that could not be fetched; default: output directory path followed by \".failed\" (optional).").create("journal"));
+		options.addOption(OptionBuilder.hasArg().withArgName("manifest-file-path").withDescription("Path to the manifest of the fetched venues; default: output directory path followed by \".manifest\" (optional).").create("manifest"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-hours").withDescription("Maximum age of a fetched venue, after which it is refreshed; default: no refresh (optional).").create("maxage"));
+		options.addOption("resume", false, "Fetch again only the venues of the journal (optional).");
+		options.addOption("archive", false, "Write the venues in a packed archive in the output directory instead of one file per venue (optional).");
+		options.addOption("compress", false, "Compress the venues written in the archive (optional).");
+		options.addOption("pipeline", false, "Extract the fetched venues into a venue store in the output directory instead of writing their JSON strings (optional).");
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-venues").withDescription("Capacity of the queues of the pipeline; default: 256 (optional).").create("queuesize"));
+		options.addOption(OptionBuilder.hasArg().withArgName("metrics-file-path").withDescription("Path to the JSON file in which the metrics of the fetching are written at the end of the execution (optional).").create("metrics"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-seconds").withDescription("Interval between two reports of the metrics with -verbose; default: 10 (optional).").create("metricsinterval"));
 		options.addOption("verbose", false, "Print information about the execution (optional).");
 		
 		try {
@@ -162,24 +866,116 @@ public class FoursquareVenueFetcher {
             // Parsing of the program arguments.
         	CommandLine commandLine = parser.parse(options, args);
             
-            String venueIdFilePath = commandLine.getOptionValue("venidfile");
+            String[] venueIdFilePaths = commandLine.getOptionValues("venidfile");
             String clientId = commandLine.getOptionValue("clid");
             String clientSecret = commandLine.getOptionValue("clsecret");
             String outputDirectoryPath = commandLine.getOptionValue("output");
+            String baseUrl = commandLine.hasOption("baseurl") ? commandLine.getOptionValue("baseurl") : DEFAULT_BASE_URL;
+            int threadNb = commandLine.hasOption("threads") ? Integer.parseInt(commandLine.getOptionValue("threads")) : 1;
+            int maxInFlightRequestNb = commandLine.hasOption("maxinflight") ? Integer.parseInt(commandLine.getOptionValue("maxinflight")) : threadNb;
+            double rate = commandLine.hasOption("rate") ? Double.parseDouble(commandLine.getOptionValue("rate")) : 0;
+            double burst = commandLine.hasOption("burst") ? Double.parseDouble(commandLine.getOptionValue("burst")) : 1;
+            int maxRetryNb = commandLine.hasOption("maxretries") ? Integer.parseInt(commandLine.getOptionValue("maxretries")) : 5;
+            String journalFilePath = commandLine.hasOption("journal") ? commandLine.getOptionValue("journal") : new File(outputDirectoryPath).getPath() + ".failed";
+            boolean resume = commandLine.hasOption("resume");
+            boolean archive = commandLine.hasOption("archive");
+            boolean compress = commandLine.hasOption("compress");
+            boolean pipelineMode = commandLine.hasOption("pipeline");
+            int queueCapacity = commandLine.hasOption("queuesize") ? Integer.parseInt(commandLine.getOptionValue("queuesize")) : 256;
+            String manifestFilePath = commandLine.hasOption("manifest") ? commandLine.getOptionValue("manifest") : new File(outputDirectoryPath).getPath() + ".manifest";
+            long maxAge = commandLine.hasOption("maxage") ? (long) (Double.parseDouble(commandLine.getOptionValue("maxage"))*3600*1000) : -1;
+            if (venueIdFilePaths == null && !resume) {
+            	throw new ParseException("Missing required option: venidfile");
+            }
+            // The suggester reads the venues of a directory from a single
+            // source (the store first, then the archive, then the venue
+            // files): the venues written in another form would be hidden.
+            boolean storedVenues = VenueStoreWriter.isVenueStore(outputDirectoryPath);
+            boolean archivedVenues = VenueArchiveWriter.isArchive(outputDirectoryPath);
+            if (pipelineMode && (archivedVenues || hasVenueFiles(outputDirectoryPath))) {
+            	throw new ParseException("The output directory " + outputDirectoryPath + " already contains venue files or an archive, which the venue store would hide; choose another output directory");
+            }
+            if (!pipelineMode && archive && (storedVenues || hasVenueFiles(outputDirectoryPath))) {
+            	throw new ParseException("The output directory " + outputDirectoryPath + " already contains a venue store or venue files; convert the venue files into an archive with VenueArchiveMigrator, or choose another output directory");
+            }
+            if (!pipelineMode && !archive && (storedVenues || archivedVenues)) {
+            	throw new ParseException("The output directory " + outputDirectoryPath + " already contains a venue store or an archive, which would hide the venue files; use -pipeline or -archive accordingly, or choose another output directory");
+            }
 		
             boolean verbose = commandLine.hasOption("verbose");
+            String metricsFilePath = commandLine.getOptionValue("metrics");
+            long metricsInterval = commandLine.hasOption("metricsinterval") ? Long.parseLong(commandLine.getOptionValue("metricsinterval")) : 10;
             
             // Beginning of the execution.
             long beginTime = System.currentTimeMillis();
             
-            Collection<String> foursquareVenueIds = getFoursquareVenueIds(venueIdFilePath);
+            Collection<String> foursquareVenueIds;
+            // resumedJournalFile is the journal set aside while its venues are
+            // fetched again.
+            File resumedJournalFile = new File(journalFilePath + ".resumed");
+            if (resume) {
+            	// Only the venues of the journal are fetched; the venues that
+            	// fail again are written in a new journal. The journal is set
+            	// aside, and only deleted once the fetching has completed: if
+            	// the execution stops before, its venues are fetched again by
+            	// the next resume.
+            	File journalFile = new File(journalFilePath);
+            	if (journalFile.exists()) {
+            		FileUtils.write(resumedJournalFile, FileUtils.readFileToString(journalFile), true);
+            		FileUtils.forceDelete(journalFile);
+            	}
+            	foursquareVenueIds = getJournaledVenueIds(resumedJournalFile.getPath());
+            } else {
+            	// The ids of all the files are gathered, without duplicates.
+            	foursquareVenueIds = new LinkedHashSet<String>();
+            	for (String venueIdFilePath : venueIdFilePaths) {
+            		foursquareVenueIds.addAll(getFoursquareVenueIds(venueIdFilePath));
+            	}
+            }
             
-            for (String foursquareVenueId : foursquareVenueIds) {
-            	File foursquareVenueFile = new File(outputDirectoryPath + File.separator + foursquareVenueId);
-            	if (!foursquareVenueFile.exists()) {
-            		String jsonString = getFoursquareVenueById(foursquareVenueId, clientId, clientSecret);
-            		FileUtils.write(foursquareVenueFile, jsonString);
+            FoursquareVenueFetcher foursquareVenueFetcher = new FoursquareVenueFetcher(clientId, clientSecret);
+            foursquareVenueFetcher.setBaseUrl(baseUrl);
+            foursquareVenueFetcher.setThreadNb(threadNb);
+            // Each thread can keep its connection alive between requests.
+            System.setProperty("http.maxConnections", Integer.toString(Math.max(5, threadNb)));
+            foursquareVenueFetcher.setMaxInFlightRequestNb(maxInFlightRequestNb);
+            foursquareVenueFetcher.setRateLimiter(new RateLimiter(rate, burst));
+            foursquareVenueFetcher.setMaxRetryNb(maxRetryNb);
+            foursquareVenueFetcher.setJournalFilePath(journalFilePath);
+            foursquareVenueFetcher.setManifestFilePath(manifestFilePath);
+            foursquareVenueFetcher.setMaxAge(maxAge);
+            foursquareVenueFetcher.setVerbose(verbose);
+            foursquareVenueFetcher.setMetricsInterval(metricsInterval);
+            VenueArchiveWriter archiveWriter = null;
+            VenueStoreWriter storeWriter = null;
+            if (pipelineMode) {
+            	storeWriter = new VenueStoreWriter(outputDirectoryPath);
+            	foursquareVenueFetcher.setPipeline(new VenuePipeline(foursquareVenueFetcher, storeWriter, queueCapacity));
+            } else if (archive) {
+            	archiveWriter = new VenueArchiveWriter(outputDirectoryPath, compress);
+            	foursquareVenueFetcher.setArchiveWriter(archiveWriter);
+            }
+            try {
+            	foursquareVenueFetcher.fetchVenues(foursquareVenueIds, outputDirectoryPath);
+            	if (resume) {
+            		// The venues of the journal set aside have been fetched or
+            		// written in the new journal.
+            		FileUtils.deleteQuietly(resumedJournalFile);
             	}
+            } finally {
+            	if (archiveWriter != null) {
+            		archiveWriter.close();
+            	}
+            	if (storeWriter != null) {
+            		storeWriter.close();
+            	}
+            	if (metricsFilePath != null) {
+            		FileUtils.write(new File(metricsFilePath), foursquareVenueFetcher.getMetrics().toJson());
+            	}
+            }
+            if (verbose) {
+            	// Final report of the metrics.
+            	System.out.println(foursquareVenueFetcher.getMetrics().report());
             }
             
             // End of the execution.
@@ -0,0 +1,54 @@
+package org.terrier.foursquarevenuefetcher;
+
+/**
+ * This class is an implementation of a response of the Foursquare venue API
+ * to a request for a venue. It contains the JSON string of the venue and the
+ * validators of the response (ETag and Last-Modified headers), that can be
+ * sent in a conditional request to fetch the venue again only if it changed.
+ * When the response to a conditional request is 304 (not modified), the JSON
+ * string is null.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class FoursquareVenueResponse {
+
+	private String jsonString;
+	// etag and lastModified are the values of the headers ETag and
+	// Last-Modified of the response; null if the API did not provide them.
+	private String etag;
+	private String lastModified;
+	// byteCount is the number of bytes of the body of the response.
+	private long byteCount;
+
+	public FoursquareVenueResponse(String jsonString, String etag, String lastModified) {
+		this.jsonString = jsonString;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	public String getJsonString() {
+		return jsonString;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	public void setByteCount(long byteCount) {
+		this.byteCount = byteCount;
+	}
+
+	public boolean isNotModified() {
+		return jsonString == null;
+	}
+
+}
@@ -0,0 +1,299 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class is an implementation of a local stand-in for the Foursquare
+ * venue API, that enables to exercise the fetcher without sending requests to
+ * the real API. It serves /v2/venues/<venue-id> from a directory of recorded
+ * venue files (one JSON file per venue, named by the venue id, as written by
+ * FoursquareVenueFetcher), wrapping each venue in a response of the API. It
+ * can inject latency, server errors (500) and throttling (429 with the header
+ * Retry-After), either at random or when a request quota is exceeded. It
+ * gives an ETag for each venue and answers 304 (not modified) to the
+ * conditional requests that match it. It contains a method main that runs
+ * the server.
+ *
+ * The program is designed to be executed with the following options:
+ * -errorrate <probability>                     Probability of answering a
+ *                                              request with a 500 error;
+ *                                              default: 0 (optional).
+ * -jitter <number-of-milliseconds>             Maximum random latency added
+ *                                              to the latency; default: 0
+ *                                              (optional).
+ * -latency <number-of-milliseconds>            Latency of each response;
+ *                                              default: 0 (optional).
+ * -port <port-number>                          Port of the server; default:
+ *                                              8080 (optional).
+ * -quota <requests-per-second>                 Number of requests per
+ *                                              second above which the
+ *                                              requests are throttled;
+ *                                              default: no quota (optional).
+ * -retryafter <number-of-seconds>              Delay given in the header
+ *                                              Retry-After of the
+ *                                              throttled responses;
+ *                                              default: 1 (optional).
+ * -throttlerate <probability>                  Probability of throttling a
+ *                                              request; default: 0
+ *                                              (optional).
+ * -venues <venue-directory-path>               Path to the directory
+ *                                              containing the venue files.
+ *
+ * The URL to give to the option -baseurl of the fetcher is then
+ * http://localhost:<port-number>/v2/venues/.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class MockFoursquareServer {
+
+	// VENUE_PATH is the path of the venue API.
+	public static final String VENUE_PATH = "/v2/venues/";
+
+	private String venueDirectoryPath;
+	private long latency;
+	private long jitter;
+	private double errorRate;
+	private double throttleRate;
+	private long retryAfter = 1;
+	// quotaLimiter throttles the requests that exceed the quota; null if
+	// there is no quota.
+	private RateLimiter quotaLimiter;
+	private Random random = new Random();
+
+	// venueJsonStrings caches the JSON strings of the venues already served.
+	private ConcurrentMap<String, String> venueJsonStrings = new ConcurrentHashMap<String, String>();
+	// responseCodeCounts maps each response code with its number of
+	// responses.
+	private ConcurrentMap<Integer, AtomicLong> responseCodeCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	public MockFoursquareServer(String venueDirectoryPath) {
+		this.venueDirectoryPath = venueDirectoryPath;
+	}
+
+	public void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+	}
+
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	public void setThrottleRate(double throttleRate) {
+		this.throttleRate = throttleRate;
+	}
+
+	public void setRetryAfter(long retryAfter) {
+		this.retryAfter = retryAfter;
+	}
+
+	public void setQuota(double quota) {
+		quotaLimiter = quota > 0 ? new RateLimiter(quota, quota) : null;
+	}
+
+	/**
+	 * This method starts the server on the given port.
+	 *
+	 * @param port the port of the server, or 0 to use any free port
+	 */
+	public void start(int port) throws IOException {
+		// The responses are sent without waiting for the acknowledgement of
+		// their headers (Nagle's algorithm), which would add latency.
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext(VENUE_PATH, new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		// Each request is served by its own thread, so that the latency of a
+		// request does not delay the others.
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public String getBaseUrl() {
+		return "http://localhost:" + getPort() + VENUE_PATH;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * This method gives the number of responses per response code since the
+	 * server started or since the counts were reset.
+	 *
+	 * @return the map matching each response code with its number of
+	 * responses
+	 */
+	public Map<Integer, Long> getResponseCodeCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : responseCodeCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public void resetResponseCodeCounts() {
+		responseCodeCounts.clear();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		// The body of the request (if any) is ignored.
+		InputStream requestBody = exchange.getRequestBody();
+		while (requestBody.read() >= 0) {
+		}
+
+		if (latency > 0 || jitter > 0) {
+			try {
+				Thread.sleep(latency + (jitter > 0 ? (long) (random.nextDouble()*jitter) : 0));
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		String venueId = exchange.getRequestURI().getPath().substring(VENUE_PATH.length());
+
+		if ((quotaLimiter != null && !quotaLimiter.tryAcquire()) || random.nextDouble() < throttleRate) {
+			exchange.getResponseHeaders().set("Retry-After", Long.toString(retryAfter));
+			respond(exchange, 429, "{\"meta\":{\"code\":429,\"errorType\":\"rate_limit_exceeded\"}}");
+			return;
+		}
+		if (random.nextDouble() < errorRate) {
+			respond(exchange, 500, "{\"meta\":{\"code\":500,\"errorType\":\"server_error\"}}");
+			return;
+		}
+
+		String jsonString = getVenueJsonString(venueId);
+		if (jsonString == null) {
+			respond(exchange, 404, "{\"meta\":{\"code\":404,\"errorType\":\"not_found\"}}");
+			return;
+		}
+
+		String etag = "\"" + Integer.toHexString(jsonString.hashCode()) + "\"";
+		exchange.getResponseHeaders().set("ETag", etag);
+		if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+			respond(exchange, 304, null);
+			return;
+		}
+		respond(exchange, 200, "{\"meta\":{\"code\":200},\"response\":{\"venue\":" + jsonString + "}}");
+	}
+
+	private String getVenueJsonString(String venueId) throws IOException {
+		String jsonString = venueJsonStrings.get(venueId);
+		if (jsonString == null) {
+			File venueFile = new File(venueDirectoryPath, venueId);
+			if (venueId.equals("") || venueId.contains("/") || !venueFile.isFile()) {
+				return null;
+			}
+			jsonString = FileUtils.readFileToString(venueFile);
+			venueJsonStrings.put(venueId, jsonString);
+		}
+
+		return jsonString;
+	}
+
+	private void respond(HttpExchange exchange, int responseCode, String body) throws IOException {
+		AtomicLong responseCodeCount = responseCodeCounts.get(responseCode);
+		if (responseCodeCount == null) {
+			AtomicLong newResponseCodeCount = new AtomicLong();
+			responseCodeCount = responseCodeCounts.putIfAbsent(responseCode, newResponseCodeCount);
+			if (responseCodeCount == null) {
+				responseCodeCount = newResponseCodeCount;
+			}
+		}
+		responseCodeCount.incrementAndGet();
+
+		if (body == null) {
+			// No body (-1 as length).
+			exchange.sendResponseHeaders(responseCode, -1);
+			return;
+		}
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(responseCode, bytes.length);
+		OutputStream responseBody = exchange.getResponseBody();
+		responseBody.write(bytes);
+		responseBody.close();
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("venue-directory-path").withDescription("Path to the directory containing the venue files.").create("venues"));
+		options.addOption(OptionBuilder.hasArg().withArgName("port-number").withDescription("Port of the server; default: 8080 (optional).").create("port"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-milliseconds").withDescription("Latency of each response; default: 0 (optional).").create("latency"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-milliseconds").withDescription("Maximum random latency added to the latency; default: 0 (optional).").create("jitter"));
+		options.addOption(OptionBuilder.hasArg().withArgName("probability").withDescription("Probability of answering a request with a 500 error; default: 0 (optional).").create("errorrate"));
+		options.addOption(OptionBuilder.hasArg().withArgName("probability").withDescription("Probability of throttling a request; default: 0 (optional).").create("throttlerate"));
+		options.addOption(OptionBuilder.hasArg().withArgName("requests-per-second").withDescription("Number of requests per second above which the requests are throttled; default: no quota (optional).").create("quota"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-seconds").withDescription("Delay given in the header Retry-After of the throttled responses; default: 1 (optional).").create("retryafter"));
+
+		try {
+			CommandLineParser parser = new GnuParser();
+			// Parsing of the program arguments.
+			CommandLine commandLine = parser.parse(options, args);
+
+			MockFoursquareServer server = new MockFoursquareServer(commandLine.getOptionValue("venues"));
+			server.setLatency(Long.parseLong(commandLine.getOptionValue("latency", "0")), Long.parseLong(commandLine.getOptionValue("jitter", "0")));
+			server.setErrorRate(Double.parseDouble(commandLine.getOptionValue("errorrate", "0")));
+			server.setThrottleRate(Double.parseDouble(commandLine.getOptionValue("throttlerate", "0")));
+			server.setQuota(Double.parseDouble(commandLine.getOptionValue("quota", "0")));
+			server.setRetryAfter(Long.parseLong(commandLine.getOptionValue("retryafter", "1")));
+			server.start(Integer.parseInt(commandLine.getOptionValue("port", "8080")));
+
+			System.out.println("Serving " + server.getBaseUrl());
+		} catch(ParseException exception) {
+			System.out.print("Parsing error: ");
+			System.out.println(exception.getMessage());
+
+			// Displaying the usage.
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("java -cp foursquare-venue-fetcher.jar org.terrier.foursquarevenuefetcher.MockFoursquareServer", options);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is an implementation of a token bucket rate limiter. The bucket
+ * is refilled at a constant rate (the number of requests allowed per second)
+ * up to its capacity (the number of requests that can be sent in a burst).
+ * Each request takes a token from the bucket; when the bucket is empty, the
+ * request waits until a token is available. The rate limiter can be shared by
+ * several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class RateLimiter {
+
+	// rate is the number of tokens added to the bucket per second; a rate
+	// lower than or equal to 0 means no limit.
+	private double rate;
+	// capacity is the maximum number of tokens in the bucket.
+	private double capacity;
+	// tokens is the number of tokens currently in the bucket. It is negative
+	// when some threads are waiting for tokens that have been reserved for
+	// them.
+	private double tokens;
+	// lastRefillTime is the time (as given by System.nanoTime) of the last
+	// refill of the bucket.
+	private long lastRefillTime;
+
+	public RateLimiter(double rate, double capacity) {
+		this.rate = rate;
+		this.capacity = Math.max(1, capacity);
+		this.tokens = this.capacity;
+		this.lastRefillTime = System.nanoTime();
+	}
+
+	/**
+	 * This method takes a token from the bucket, waiting until a token is
+	 * available if the bucket is empty. The token is reserved immediately, so
+	 * that the waiting threads get their tokens in the order of their calls.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void acquire() throws InterruptedException {
+		if (rate <= 0) {
+			// No limit.
+			return;
+		}
+
+		long waitTime;
+		synchronized (this) {
+			// The bucket is refilled according to the time elapsed since the
+			// last refill.
+			long time = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (time - lastRefillTime)*rate/1e9);
+			lastRefillTime = time;
+
+			// A token is reserved; if the bucket was empty, the thread waits
+			// until the reserved token is added to the bucket.
+			tokens--;
+			waitTime = tokens >= 0 ? 0 : (long) (-tokens*1e9/rate);
+		}
+
+		TimeUnit.NANOSECONDS.sleep(waitTime);
+	}
+
+	/**
+	 * This method takes a token from the bucket if one is available, without
+	 * waiting.
+	 *
+	 * @return true if a token was taken, false if the bucket was empty
+	 */
+	public synchronized boolean tryAcquire() {
+		if (rate <= 0) {
+			// No limit.
+			return true;
+		}
+
+		long time = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (time - lastRefillTime)*rate/1e9);
+		lastRefillTime = time;
+
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public double getCapacity() {
+		return capacity;
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * This class is used to convert a directory containing one JSON file per
+ * Foursquare venue (as written by FoursquareVenueFetcher) into a packed
+ * archive (see VenueArchiveWriter). It contains a method main that performs
+ * the conversion.
+ *
+ * The program is designed to be executed with the following options:
+ * -compress                                    Compress the venues written
+ *                                              in the archive (optional).
+ * -input <venue-directory-path>                Path to the directory
+ *                                              containing the venue files.
+ * -maxsegsize <number-of-megabytes>            Maximum size of a segment
+ *                                              of the archive; default: 64
+ *                                              (optional).
+ * -output <archive-directory-path>             Path to the archive
+ *                                              directory.
+ * -verbose                                     Print information about the
+ *                                              execution (optional).
+ *
+ * The venues already contained in the archive are not written again, so that
+ * the conversion can be resumed if it has been interrupted. The venue
+ * directory is left unchanged; the archive directory has to be another
+ * directory.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueArchiveMigrator {
+
+	/**
+	 * This method writes the venue files of a directory in an archive. The
+	 * files are processed in the order of their names.
+	 *
+	 * @param venueDirectoryPath the path to the directory containing the
+	 * venue files
+	 * @param archiveWriter the writer of the archive
+	 * @param verbose a boolean indicating whether the progress is displayed
+	 * @return the number of venues written in the archive
+	 */
+	public static int migrate(String venueDirectoryPath, VenueArchiveWriter archiveWriter, boolean verbose) throws IOException {
+		File[] venueFiles = new File(venueDirectoryPath).listFiles();
+		if (venueFiles == null) {
+			throw new IOException("Cannot list the venue directory " + venueDirectoryPath);
+		}
+		Arrays.sort(venueFiles);
+
+		int writeCount = 0;
+		for (File venueFile : venueFiles) {
+			// The file name is the id of the venue (the same files as in
+			// VenueHandler are considered as venue files).
+			String venueId = venueFile.getName();
+			if (venueFile.isFile() && !FilenameUtils.getBaseName(venueId).equals("") && !archiveWriter.contains(venueId)) {
+				archiveWriter.write(venueId, FileUtils.readFileToString(venueFile));
+
+				writeCount++;
+				if (verbose && writeCount % 1000 == 0) {
+					// Displaying the progress of the execution.
+					System.out.println("[" + writeCount + "] venues written");
+				}
+			}
+		}
+
+		return writeCount;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) {
+		Options options = new Options();
+		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("venue-directory-path").withDescription("Path to the directory containing the venue files.").create("input"));
+		options.addOption(OptionBuilder.hasArg().isRequired().withArgName("archive-directory-path").withDescription("Path to the archive directory.").create("output"));
+		options.addOption(OptionBuilder.hasArg().withArgName("number-of-megabytes").withDescription("Maximum size of a segment of the archive; default: 64 (optional).").create("maxsegsize"));
+		options.addOption("compress", false, "Compress the venues written in the archive (optional).");
+		options.addOption("verbose", false, "Print information about the execution (optional).");
+
+		try {
+			CommandLineParser parser = new GnuParser();
+			// Parsing of the program arguments.
+			CommandLine commandLine = parser.parse(options, args);
+
+			String venueDirectoryPath = commandLine.getOptionValue("input");
+			String archiveDirectoryPath = commandLine.getOptionValue("output");
+			long maxSegmentSize = commandLine.hasOption("maxsegsize") ? Long.parseLong(commandLine.getOptionValue("maxsegsize"))*1024*1024 : VenueArchiveWriter.DEFAULT_MAX_SEGMENT_SIZE;
+			boolean compress = commandLine.hasOption("compress");
+			boolean verbose = commandLine.hasOption("verbose");
+			// The archive would hide the venue files or be hidden by the
+			// venue store of its directory (see FoursquareVenueFetcher).
+			if (FoursquareVenueFetcher.hasVenueFiles(archiveDirectoryPath) || VenueStoreWriter.isVenueStore(archiveDirectoryPath)) {
+				throw new ParseException("The archive directory " + archiveDirectoryPath + " contains venue files or a venue store; choose another archive directory");
+			}
+
+			// Beginning of the execution.
+			long beginTime = System.currentTimeMillis();
+
+			VenueArchiveWriter archiveWriter = new VenueArchiveWriter(archiveDirectoryPath, compress);
+			archiveWriter.setMaxSegmentSize(maxSegmentSize);
+			int writeCount;
+			try {
+				writeCount = migrate(venueDirectoryPath, archiveWriter, verbose);
+			} finally {
+				archiveWriter.close();
+			}
+
+			// End of the execution.
+			long endTime = System.currentTimeMillis();
+
+			// Total execution time.
+			float totalTime = endTime - beginTime;
+			DecimalFormat decimalFormat = new DecimalFormat("0.000");
+			if (verbose) {
+				System.out.println(writeCount + " venue(s) written in " + archiveDirectoryPath);
+				System.out.println("Execution time: " + decimalFormat.format(totalTime/1000) + " second(s)");
+			}
+		} catch(ParseException exception) {
+			System.out.print("Parsing error: ");
+			System.out.println(exception.getMessage());
+
+			// Displaying the usage.
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("java -cp foursquare-venue-fetcher.jar org.terrier.foursquarevenuefetcher.VenueArchiveMigrator", options);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
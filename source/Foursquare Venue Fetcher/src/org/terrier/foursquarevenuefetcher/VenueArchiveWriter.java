@@ -0,0 +1,251 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * This class is used to write the JSON strings of the Foursquare venues in a
+ * packed archive instead of one file per venue. An archive is a directory
+ * containing segment files and an index file:
+ * - a segment file (archive.<segment-number>.seg) is a sequence of records,
+ *   each made of the venue id (in modified UTF-8, as written by
+ *   DataOutputStream.writeUTF), a byte indicating whether the payload is
+ *   compressed (1) or not (0), the length of the payload (int) and the
+ *   payload, i.e. the JSON string of the venue in UTF-8, compressed with
+ *   Deflater or not;
+ * - the index file (archive.index) is a sequence of entries, each made of the
+ *   venue id, the segment number (int) and the offset of the record in the
+ *   segment (long).
+ * The records are appended to the current segment until it exceeds the
+ * maximum segment size; a new segment is then started. The index entry of a
+ * record is written after the record, so that an interrupted write never
+ * leaves an index entry pointing to an incomplete record. When an existing
+ * archive is opened, its index is read and the new records are appended to a
+ * new segment. When a venue is written several times, the last record is the
+ * one given by the index.
+ * The archive can be written concurrently by several threads.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueArchiveWriter {
+
+	// INDEX_FILE_NAME is the name of the index file of an archive.
+	public static final String INDEX_FILE_NAME = "archive.index";
+	// DEFAULT_MAX_SEGMENT_SIZE is the default maximum size (in bytes) of a
+	// segment file.
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L*1024*1024;
+
+	private File archiveDirectory;
+	private boolean compress;
+	private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+	// venueIds contains the ids of the venues contained in the archive.
+	private Set<String> venueIds = new HashSet<String>();
+	// segmentNumber is the number of the current segment, and segmentSize its
+	// current size in bytes.
+	private int segmentNumber;
+	private long segmentSize;
+	private DataOutputStream segmentStream;
+	private DataOutputStream indexStream;
+	private Deflater deflater;
+
+	/**
+	 * This constructor opens the archive located in the given directory,
+	 * creating it if it does not exist.
+	 *
+	 * @param archiveDirectoryPath the path to the archive directory
+	 * @param compress a boolean indicating whether the JSON strings of the
+	 * venues are compressed
+	 */
+	public VenueArchiveWriter(String archiveDirectoryPath, boolean compress) throws IOException {
+		this.archiveDirectory = new File(archiveDirectoryPath);
+		this.compress = compress;
+		if (compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
+
+		if (!archiveDirectory.isDirectory() && !archiveDirectory.mkdirs()) {
+			throw new IOException("Cannot create the archive directory " + archiveDirectoryPath);
+		}
+
+		// The ids of the venues already in the archive are read from the
+		// index, and the new records are appended to a new segment.
+		File indexFile = new File(archiveDirectory, INDEX_FILE_NAME);
+		segmentNumber = -1;
+		if (indexFile.exists()) {
+			// indexLength is the length of the complete entries of the index.
+			long indexLength = 0;
+			CountingInputStream countingInput = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			DataInputStream indexInput = new DataInputStream(countingInput);
+			try {
+				for (;;) {
+					String venueId = indexInput.readUTF();
+					int entrySegmentNumber = indexInput.readInt();
+					indexInput.readLong();
+					indexLength = countingInput.getByteCount();
+					venueIds.add(venueId);
+					segmentNumber = Math.max(segmentNumber, entrySegmentNumber);
+				}
+			} catch (EOFException exception) {
+				// End of the index.
+			} finally {
+				indexInput.close();
+			}
+
+			if (indexLength < indexFile.length()) {
+				// The last entry is incomplete (the previous write was
+				// interrupted) and is removed so that the new entries are
+				// appended after the complete ones.
+				RandomAccessFile randomAccessIndexFile = new RandomAccessFile(indexFile, "rw");
+				try {
+					randomAccessIndexFile.setLength(indexLength);
+				} finally {
+					randomAccessIndexFile.close();
+				}
+			}
+		}
+		while (getSegmentFile(archiveDirectory, segmentNumber + 1).exists()) {
+			// A segment which records are not indexed is not reused.
+			segmentNumber++;
+		}
+
+		// The new segment is created at the first write.
+		indexStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+	}
+
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * This method gives the file of a segment of an archive.
+	 *
+	 * @param archiveDirectory the archive directory
+	 * @param segmentNumber the number of the segment
+	 * @return the segment file
+	 */
+	public static File getSegmentFile(File archiveDirectory, int segmentNumber) {
+		return new File(archiveDirectory, String.format("archive.%05d.seg", segmentNumber));
+	}
+
+	/**
+	 * This method indicates whether a file is a file of an archive (i.e. its
+	 * index or one of its segments).
+	 *
+	 * @param fileName the name of the file
+	 * @return true if the file is a file of an archive, false otherwise
+	 */
+	public static boolean isArchiveFile(String fileName) {
+		return fileName.equals(INDEX_FILE_NAME) || fileName.matches("archive\\.\\d+\\.seg");
+	}
+
+	/**
+	 * This method indicates whether the directory which path is given
+	 * contains an archive.
+	 *
+	 * @param directoryPath the path to a directory
+	 * @return true if the directory contains an archive, false otherwise
+	 */
+	public static boolean isArchive(String directoryPath) {
+		return new File(directoryPath, INDEX_FILE_NAME).isFile();
+	}
+
+	private void startSegment() throws IOException {
+		if (segmentStream != null) {
+			segmentStream.close();
+		}
+		segmentNumber++;
+		segmentSize = 0;
+		segmentStream = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(getSegmentFile(archiveDirectory, segmentNumber))));
+	}
+
+	public synchronized boolean contains(String venueId) {
+		return venueIds.contains(venueId);
+	}
+
+	public synchronized int size() {
+		return venueIds.size();
+	}
+
+	/**
+	 * This method appends the JSON string of a venue to the archive.
+	 *
+	 * @param venueId the Foursquare ID of the venue
+	 * @param jsonString the JSON string of the venue
+	 */
+	public synchronized void write(String venueId, String jsonString) throws IOException {
+		byte[] payload = jsonString.getBytes("UTF-8");
+		if (compress) {
+			payload = deflate(payload);
+		}
+
+		if (segmentStream == null || segmentSize >= maxSegmentSize) {
+			startSegment();
+		}
+
+		// The record is written (and flushed) before its index entry.
+		long offset = segmentSize;
+		int sizeBefore = segmentStream.size();
+		segmentStream.writeUTF(venueId);
+		segmentStream.writeByte(compress ? 1 : 0);
+		segmentStream.writeInt(payload.length);
+		segmentStream.write(payload);
+		segmentStream.flush();
+		segmentSize += segmentStream.size() - sizeBefore;
+
+		indexStream.writeUTF(venueId);
+		indexStream.writeInt(segmentNumber);
+		indexStream.writeLong(offset);
+		indexStream.flush();
+
+		venueIds.add(venueId);
+	}
+
+	private byte[] deflate(byte[] bytes) {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length/2 + 64);
+		byte[] buffer = new byte[4096];
+		while (!deflater.finished()) {
+			int deflatedSize = deflater.deflate(buffer);
+			output.write(buffer, 0, deflatedSize);
+		}
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * This method closes the current segment and the index.
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			if (segmentStream != null) {
+				segmentStream.close();
+			}
+			indexStream.close();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is an implementation of the pipeline that turns the fetched
+ * venues into records of a venue store. The fetching threads submit the JSON
+ * strings of the venues to the pipeline, which has two stages running in
+ * their own threads:
+ * - the extraction stage validates the JSON string of each venue and
+ *   extracts its record (see VenueRecord); the invalid venues are written in
+ *   the journal of the fetcher;
+ * - the store stage appends the records to the venue store.
+ * The stages are connected by bounded queues: when a stage is slower than the
+ * previous one, its queue fills up and the previous stage waits, down to the
+ * fetching threads. The memory used by the pipeline is thus bounded whatever
+ * the number of venues.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenuePipeline {
+
+	// END_OF_VENUES is put in the queues to signal the end of the venues.
+	private static final String[] END_OF_VENUES = new String[0];
+	private static final VenueRecord END_OF_RECORDS = new VenueRecord();
+
+	private FoursquareVenueFetcher fetcher;
+	private VenueStoreWriter storeWriter;
+
+	// jsonStrings contains the pairs (venue id, JSON string) to extract, and
+	// venueRecords the records to store.
+	private BlockingQueue<String[]> jsonStrings;
+	private BlockingQueue<VenueRecord> venueRecords;
+
+	private Thread extractionThread;
+	private Thread storeThread;
+	// failure is the exception that stopped a stage, if any.
+	private volatile Exception failure;
+	// invalidCount counts the venues that could not be extracted.
+	private AtomicInteger invalidCount = new AtomicInteger();
+
+	/**
+	 * This constructor creates a pipeline writing in the given store.
+	 *
+	 * @param fetcher the fetcher, in which journal the invalid venues are
+	 * written
+	 * @param storeWriter the writer of the venue store
+	 * @param queueCapacity the capacity of the queues between the stages
+	 */
+	public VenuePipeline(FoursquareVenueFetcher fetcher, VenueStoreWriter storeWriter, int queueCapacity) {
+		this.fetcher = fetcher;
+		this.storeWriter = storeWriter;
+		jsonStrings = new ArrayBlockingQueue<String[]>(queueCapacity);
+		venueRecords = new ArrayBlockingQueue<VenueRecord>(queueCapacity);
+	}
+
+	public VenueStoreWriter getStoreWriter() {
+		return storeWriter;
+	}
+
+	public int getInvalidCount() {
+		return invalidCount.get();
+	}
+
+	public int getExtractionQueueDepth() {
+		return jsonStrings.size();
+	}
+
+	public int getStoreQueueDepth() {
+		return venueRecords.size();
+	}
+
+	/**
+	 * This method starts the threads of the stages.
+	 */
+	public void start() {
+		extractionThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (;;) {
+						String[] jsonString = jsonStrings.take();
+						if (jsonString == END_OF_VENUES) {
+							break;
+						}
+
+						VenueRecord venueRecord;
+						try {
+							venueRecord = VenueRecord.fromJson(jsonString[0], jsonString[1]);
+						} catch (RuntimeException exception) {
+							// The venue is not valid (e.g. malformed JSON or
+							// missing fields).
+							invalidCount.incrementAndGet();
+							fetcher.journalFailure(jsonString[0], exception);
+							continue;
+						}
+						venueRecords.put(venueRecord);
+					}
+					venueRecords.put(END_OF_RECORDS);
+				} catch (Exception exception) {
+					fail(exception);
+					// The store stage is stopped as well.
+					venueRecords.clear();
+					venueRecords.offer(END_OF_RECORDS);
+				}
+			}
+		}, "venue-extraction");
+
+		storeThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (;;) {
+						VenueRecord venueRecord = venueRecords.take();
+						if (venueRecord == END_OF_RECORDS) {
+							break;
+						}
+						storeWriter.write(venueRecord);
+					}
+					storeWriter.flush();
+				} catch (Exception exception) {
+					fail(exception);
+				}
+			}
+		}, "venue-store");
+
+		extractionThread.start();
+		storeThread.start();
+	}
+
+	private void fail(Exception exception) {
+		if (failure == null) {
+			failure = exception;
+		}
+		// The previous stages are unblocked so that they can see the failure.
+		jsonStrings.clear();
+		venueRecords.clear();
+	}
+
+	/**
+	 * This method submits the JSON string of a fetched venue to the
+	 * pipeline. It waits while the queue of the extraction stage is full.
+	 *
+	 * @param venueId the Foursquare ID of the venue
+	 * @param jsonString the JSON string of the venue
+	 * @throws Exception the exception that stopped a stage, if any
+	 */
+	public void submit(String venueId, String jsonString) throws Exception {
+		String[] element = new String[] {venueId, jsonString};
+		while (failure == null) {
+			if (jsonStrings.offer(element, 100, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * This method signals the end of the venues and waits until all the
+	 * submitted venues are stored.
+	 *
+	 * @throws Exception the exception that stopped a stage, if any
+	 */
+	public void finish() throws Exception {
+		while (failure == null && !jsonStrings.offer(END_OF_VENUES, 100, TimeUnit.MILLISECONDS)) {
+			// Waiting for room in the queue.
+		}
+		if (failure != null) {
+			// The extraction stage may be waiting for a venue.
+			extractionThread.interrupt();
+		}
+		extractionThread.join();
+		storeThread.join();
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+}
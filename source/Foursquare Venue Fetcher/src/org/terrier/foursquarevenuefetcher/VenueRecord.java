@@ -0,0 +1,141 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * This class is an implementation of the record of a venue in a venue store
+ * (see VenueStoreWriter). It only contains the fields of the venue that are
+ * used to suggest bundles of venues: its id, name, location, categories,
+ * and popularity statistics (likes, check-ins, people here now, rating).
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueRecord {
+
+	private String id;
+	private String name;
+	// lat and lon are not a number if the venue has no location.
+	private double lat = Double.NaN;
+	private double lon = Double.NaN;
+	private int likes;
+	private int checkincount = -1;
+	private int hereNow;
+	private double rating;
+	// categories maps the id of each category of the venue with its name.
+	private Map<String, String> categories = new LinkedHashMap<String, String>();
+
+	/**
+	 * This method validates the JSON string of a venue, as given by the
+	 * Foursquare venue API, and extracts its record. The venue is valid if
+	 * it has a name and its categories all have an id and a name.
+	 *
+	 * @param venueId the Foursquare ID of the venue
+	 * @param jsonString the JSON string of the venue
+	 * @return the record of the venue
+	 * @throws IllegalArgumentException if the venue is not valid
+	 */
+	public static VenueRecord fromJson(String venueId, String jsonString) {
+		JsonElement jsonElement = new JsonParser().parse(jsonString);
+		if (!jsonElement.isJsonObject()) {
+			throw new IllegalArgumentException("Invalid venue: not a JSON object");
+		}
+		JsonObject jsonObject = jsonElement.getAsJsonObject();
+
+		VenueRecord venueRecord = new VenueRecord();
+		venueRecord.id = venueId;
+		venueRecord.name = getString(jsonObject, "name");
+		if (venueRecord.name == null) {
+			throw new IllegalArgumentException("Invalid venue: no name");
+		}
+
+		if (!jsonObject.has("categories") || !jsonObject.get("categories").isJsonArray()) {
+			throw new IllegalArgumentException("Invalid venue: no categories");
+		}
+		JsonArray categoryArray = jsonObject.get("categories").getAsJsonArray();
+		for (JsonElement categoryElement : categoryArray) {
+			String categoryId = categoryElement.isJsonObject() ? getString(categoryElement.getAsJsonObject(), "id") : null;
+			String categoryName = categoryElement.isJsonObject() ? getString(categoryElement.getAsJsonObject(), "name") : null;
+			if (categoryId == null || categoryName == null) {
+				throw new IllegalArgumentException("Invalid venue: malformed category");
+			}
+			venueRecord.categories.put(categoryId, categoryName);
+		}
+
+		JsonObject locationObject = getObject(jsonObject, "location");
+		if (locationObject != null && locationObject.has("lat") && locationObject.has("lng")) {
+			venueRecord.lat = locationObject.get("lat").getAsDouble();
+			venueRecord.lon = locationObject.get("lng").getAsDouble();
+		}
+		JsonObject statObject = getObject(jsonObject, "stats");
+		if (statObject != null && statObject.has("checkinsCount")) {
+			venueRecord.checkincount = statObject.get("checkinsCount").getAsInt();
+		}
+		JsonObject hereNowObject = getObject(jsonObject, "hereNow");
+		if (hereNowObject != null && hereNowObject.has("count")) {
+			venueRecord.hereNow = hereNowObject.get("count").getAsInt();
+		}
+		JsonObject likeObject = getObject(jsonObject, "likes");
+		if (likeObject != null && likeObject.has("count")) {
+			venueRecord.likes = likeObject.get("count").getAsInt();
+		}
+		if (jsonObject.has("rating")) {
+			venueRecord.rating = jsonObject.get("rating").getAsDouble();
+		}
+
+		return venueRecord;
+	}
+
+	private static String getString(JsonObject jsonObject, String memberName) {
+		JsonElement member = jsonObject.get(memberName);
+		return member != null && member.isJsonPrimitive() ? member.getAsString() : null;
+	}
+
+	private static JsonObject getObject(JsonObject jsonObject, String memberName) {
+		JsonElement member = jsonObject.get(memberName);
+		return member != null && member.isJsonObject() ? member.getAsJsonObject() : null;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public double getLat() {
+		return lat;
+	}
+
+	public double getLon() {
+		return lon;
+	}
+
+	public int getLikes() {
+		return likes;
+	}
+
+	public int getCheckincount() {
+		return checkincount;
+	}
+
+	public int getHereNow() {
+		return hereNow;
+	}
+
+	public double getRating() {
+		return rating;
+	}
+
+	public Map<String, String> getCategories() {
+		return categories;
+	}
+
+}
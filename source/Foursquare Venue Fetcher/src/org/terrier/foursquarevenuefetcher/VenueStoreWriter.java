@@ -0,0 +1,174 @@
+package org.terrier.foursquarevenuefetcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class is used to write the records of the Foursquare venues (see
+ * VenueRecord) in a compact binary venue store, that the Composite Contextual
+ * Suggester maps in memory instead of parsing the JSON files of the venues.
+ * The store is the file venues.store of a directory. It starts with a magic
+ * number and a version (int), followed by the records. A record is made of
+ * its length (int, the number of bytes that follow), the venue id and name,
+ * the latitude and longitude (double, not a number if the venue has no
+ * location), the numbers of likes, check-ins and people here now (int), the
+ * rating (double), the number of categories (int) and the id and name of each
+ * category. A string is written as its length in bytes (int) followed by its
+ * UTF-8 bytes.
+ * When an existing store is opened, the records are appended after the last
+ * complete record. When a venue is written several times, its last record is
+ * the one read by the suggester.
+ *
+ * @author Thibaut Thonet
+ *
+ */
+public class VenueStoreWriter {
+
+	// STORE_FILE_NAME is the name of the store file in its directory.
+	public static final String STORE_FILE_NAME = "venues.store";
+	// MAGIC_NUMBER ("CCVS") and VERSION identify the format of the store.
+	public static final int MAGIC_NUMBER = 0x43435653;
+	public static final int VERSION = 1;
+
+	// venueIds contains the ids of the venues contained in the store.
+	private Set<String> venueIds = new HashSet<String>();
+	private DataOutputStream storeStream;
+
+	/**
+	 * This constructor opens the store located in the given directory,
+	 * creating it if it does not exist.
+	 *
+	 * @param storeDirectoryPath the path to the directory of the store
+	 */
+	public VenueStoreWriter(String storeDirectoryPath) throws IOException {
+		File storeDirectory = new File(storeDirectoryPath);
+		if (!storeDirectory.isDirectory() && !storeDirectory.mkdirs()) {
+			throw new IOException("Cannot create the store directory " + storeDirectoryPath);
+		}
+
+		File storeFile = new File(storeDirectory, STORE_FILE_NAME);
+		// storeLength is the length of the header and the complete records.
+		long storeLength = 0;
+		if (storeFile.exists() && storeFile.length() > 0) {
+			DataInputStream storeInput = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+			try {
+				if (storeInput.readInt() != MAGIC_NUMBER || storeInput.readInt() != VERSION) {
+					throw new IOException("Not a venue store: " + storeFile.getPath());
+				}
+				storeLength = 8;
+				for (;;) {
+					int recordLength = storeInput.readInt();
+					byte[] record = new byte[recordLength];
+					storeInput.readFully(record);
+					venueIds.add(readString(new DataInputStream(new ByteArrayInputStream(record))));
+					storeLength += 4 + recordLength;
+				}
+			} catch (EOFException exception) {
+				// End of the store.
+			} finally {
+				storeInput.close();
+			}
+
+			if (storeLength < storeFile.length()) {
+				// The last record is incomplete (the previous write was
+				// interrupted) and is removed.
+				RandomAccessFile randomAccessStoreFile = new RandomAccessFile(storeFile, "rw");
+				try {
+					randomAccessStoreFile.setLength(storeLength);
+				} finally {
+					randomAccessStoreFile.close();
+				}
+			}
+		}
+
+		storeStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile, true), 1 << 16));
+		if (storeLength == 0) {
+			storeStream.writeInt(MAGIC_NUMBER);
+			storeStream.writeInt(VERSION);
+		}
+	}
+
+	/**
+	 * This method indicates whether the directory which path is given
+	 * contains a venue store.
+	 *
+	 * @param directoryPath the path to a directory
+	 * @return true if the directory contains a venue store, false otherwise
+	 */
+	public static boolean isVenueStore(String directoryPath) {
+		return new File(directoryPath, STORE_FILE_NAME).isFile();
+	}
+
+	public synchronized boolean contains(String venueId) {
+		return venueIds.contains(venueId);
+	}
+
+	public synchronized int size() {
+		return venueIds.size();
+	}
+
+	/**
+	 * This method appends the record of a venue to the store.
+	 *
+	 * @param venueRecord the record of the venue
+	 */
+	public synchronized void write(VenueRecord venueRecord) throws IOException {
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+		DataOutputStream recordStream = new DataOutputStream(recordBytes);
+		writeString(recordStream, venueRecord.getId());
+		writeString(recordStream, venueRecord.getName());
+		recordStream.writeDouble(venueRecord.getLat());
+		recordStream.writeDouble(venueRecord.getLon());
+		recordStream.writeInt(venueRecord.getLikes());
+		recordStream.writeInt(venueRecord.getCheckincount());
+		recordStream.writeInt(venueRecord.getHereNow());
+		recordStream.writeDouble(venueRecord.getRating());
+		recordStream.writeInt(venueRecord.getCategories().size());
+		for (Map.Entry<String, String> category : venueRecord.getCategories().entrySet()) {
+			writeString(recordStream, category.getKey());
+			writeString(recordStream, category.getValue());
+		}
+
+		storeStream.writeInt(recordBytes.size());
+		recordBytes.writeTo(storeStream);
+
+		venueIds.add(venueRecord.getId());
+	}
+
+	private static void writeString(DataOutputStream stream, String string) throws IOException {
+		byte[] bytes = string.getBytes("UTF-8");
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+
+	private static String readString(DataInputStream stream) throws IOException {
+		byte[] bytes = new byte[stream.readInt()];
+		stream.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * This method writes the buffered records in the store file.
+	 */
+	public synchronized void flush() throws IOException {
+		storeStream.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		storeStream.close();
+	}
+
+}